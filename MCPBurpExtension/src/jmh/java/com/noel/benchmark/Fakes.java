@@ -0,0 +1,277 @@
+package com.noel.benchmark;
+
+import burp.api.montoya.MontoyaApi;
+import burp.api.montoya.core.ByteArray;
+import burp.api.montoya.http.HttpService;
+import burp.api.montoya.http.message.ContentType;
+import burp.api.montoya.http.message.HttpHeader;
+import burp.api.montoya.http.message.MimeType;
+import burp.api.montoya.http.message.requests.HttpRequest;
+import burp.api.montoya.http.message.responses.HttpResponse;
+import burp.api.montoya.logging.Logging;
+import burp.api.montoya.proxy.Proxy;
+import burp.api.montoya.proxy.ProxyHttpRequestResponse;
+
+import java.lang.reflect.InvocationHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-memory stand-ins for the Montoya interfaces the query engine touches, so the benchmarks run without Burp.
+ * They are dynamic proxies answering only the methods the engine calls, anything else throws.
+ */
+final class Fakes {
+
+    private Fakes() {
+    }
+
+    static ByteArray bytes(byte[] data) {
+        return bytes(data, 0, data.length);
+    }
+
+    /**
+     * A view of data[from, to), the array is shared and never copied unless getBytes() is called
+     */
+    static ByteArray bytes(byte[] data, int from, int to) {
+        return fake(ByteArray.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "length":
+                    return to - from;
+                case "getByte":
+                    return data[from + (Integer) args[0]];
+                case "getBytes":
+                    return Arrays.copyOfRange(data, from, to);
+                case "copy":
+                    return bytes(Arrays.copyOfRange(data, from, to));
+                case "subArray":
+                    return bytes(data, from + (Integer) args[0], from + (Integer) args[1]);
+                case "indexOf":
+                    if (args.length >= 2 && args[0] instanceof String) {
+                        int start = args.length == 4 ? from + (Integer) args[2] : from;
+                        int end = args.length == 4 ? from + (Integer) args[3] : to;
+                        int found = indexOf(data, start, end, (String) args[0], (Boolean) args[1]);
+                        return found < 0 ? -1 : found - from;
+                    }
+                    break;
+                case "toString":
+                    return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+            }
+            throw unsupported(ByteArray.class, method.getName());
+        });
+    }
+
+    static HttpService service(String host, int port, boolean secure) {
+        return fake(HttpService.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "host":
+                    return host;
+                case "port":
+                    return port;
+                case "secure":
+                    return secure;
+                case "toString":
+                    return (secure ? "https://" : "http://") + host + ":" + port;
+            }
+            throw unsupported(HttpService.class, method.getName());
+        });
+    }
+
+    static HttpHeader header(String name, String value) {
+        return fake(HttpHeader.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "name":
+                    return name;
+                case "value":
+                    return value;
+                case "toString":
+                    return name + ": " + value;
+            }
+            throw unsupported(HttpHeader.class, method.getName());
+        });
+    }
+
+    static HttpRequest request(HttpService service, String method, String path, ContentType contentType,
+                               List<HttpHeader> headers, byte[] body) {
+        String url = service + path;
+        int queryStart = path.indexOf('?');
+        byte[] head = head(method + " " + path + " HTTP/1.1", headers);
+        return fake(HttpRequest.class, (proxy, m, args) -> {
+            switch (m.getName()) {
+                case "httpService":
+                    return service;
+                case "url":
+                    return url;
+                case "method":
+                    return method;
+                case "path":
+                    return path;
+                case "pathWithoutQuery":
+                    return queryStart >= 0 ? path.substring(0, queryStart) : path;
+                case "query":
+                    return queryStart >= 0 ? path.substring(queryStart + 1) : "";
+                case "contentType":
+                    return contentType;
+                case "httpVersion":
+                    return "HTTP/1.1";
+                case "headers":
+                    return headers;
+                case "headerValue":
+                    return headerValue(headers, (String) args[0]);
+                case "hasHeader":
+                    return headerValue(headers, (String) args[0]) != null;
+                case "body":
+                    return bytes(body);
+                case "bodyToString":
+                    return new String(body, StandardCharsets.ISO_8859_1);
+                case "bodyOffset":
+                    return head.length;
+                case "toByteArray":
+                    return bytes(concat(head, body));
+                case "toString":
+                    return new String(concat(head, body), StandardCharsets.ISO_8859_1);
+            }
+            throw unsupported(HttpRequest.class, m.getName());
+        });
+    }
+
+    static HttpResponse response(short statusCode, MimeType mimeType, List<HttpHeader> headers, byte[] body) {
+        byte[] head = head("HTTP/1.1 " + statusCode + " OK", headers);
+        return fake(HttpResponse.class, (proxy, m, args) -> {
+            switch (m.getName()) {
+                case "statusCode":
+                    return statusCode;
+                case "reasonPhrase":
+                    return "OK";
+                case "httpVersion":
+                    return "HTTP/1.1";
+                case "mimeType":
+                case "statedMimeType":
+                case "inferredMimeType":
+                    return mimeType;
+                case "headers":
+                    return headers;
+                case "headerValue":
+                    return headerValue(headers, (String) args[0]);
+                case "hasHeader":
+                    return headerValue(headers, (String) args[0]) != null;
+                case "body":
+                    return bytes(body);
+                case "bodyToString":
+                    return new String(body, StandardCharsets.ISO_8859_1);
+                case "bodyOffset":
+                    return head.length;
+                case "toByteArray":
+                    return bytes(concat(head, body));
+                case "toString":
+                    return new String(concat(head, body), StandardCharsets.ISO_8859_1);
+            }
+            throw unsupported(HttpResponse.class, m.getName());
+        });
+    }
+
+    static ProxyHttpRequestResponse item(HttpRequest request, HttpResponse response) {
+        return fake(ProxyHttpRequestResponse.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "request":
+                case "finalRequest":
+                    return request;
+                case "response":
+                case "originalResponse":
+                    return response;
+                case "hasResponse":
+                    return response != null;
+                case "toString":
+                    return request.url();
+            }
+            throw unsupported(ProxyHttpRequestResponse.class, method.getName());
+        });
+    }
+
+    /**
+     * An api whose logging goes nowhere and whose proxy history is the given list
+     */
+    static MontoyaApi api(List<ProxyHttpRequestResponse> history) {
+        Logging logging = fake(Logging.class, (proxy, method, args) -> null);
+        Proxy burpProxy = fake(Proxy.class, (proxy, method, args) -> {
+            if (method.getName().equals("history") && (args == null || args.length == 0)) {
+                return history;
+            }
+            throw unsupported(Proxy.class, method.getName());
+        });
+        return fake(MontoyaApi.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "logging":
+                    return logging;
+                case "proxy":
+                    return burpProxy;
+            }
+            throw unsupported(MontoyaApi.class, method.getName());
+        });
+    }
+
+    private static byte[] head(String firstLine, List<HttpHeader> headers) {
+        StringBuilder head = new StringBuilder(firstLine).append("\r\n");
+        for (HttpHeader header : headers) {
+            head.append(header.name()).append(": ").append(header.value()).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The whole message is built on every call like Burp does, bodies stay shared between the fakes
+     */
+    private static byte[] concat(byte[] head, byte[] body) {
+        byte[] raw = Arrays.copyOf(head, head.length + body.length);
+        System.arraycopy(body, 0, raw, head.length, body.length);
+        return raw;
+    }
+
+    private static String headerValue(List<HttpHeader> headers, String name) {
+        for (HttpHeader header : headers) {
+            if (header.name().equalsIgnoreCase(name)) {
+                return header.value();
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, String needle, boolean caseSensitive) {
+        int length = needle.length();
+        outer:
+        for (int i = start; i <= end - length; i++) {
+            for (int j = 0; j < length; j++) {
+                char a = (char) (data[i + j] & 0xFF);
+                char b = needle.charAt(j);
+                if (a != b && (caseSensitive || Character.toLowerCase(a) != Character.toLowerCase(b))) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    static List<HttpHeader> headers(String... namesAndValues) {
+        List<HttpHeader> headers = new ArrayList<>();
+        for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+            headers.add(header(namesAndValues[i], namesAndValues[i + 1]));
+        }
+        return headers;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, InvocationHandler handler) {
+        return (T) java.lang.reflect.Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static UnsupportedOperationException unsupported(Class<?> type, String method) {
+        return new UnsupportedOperationException("Not faked: " + type.getSimpleName() + "." + method);
+    }
+}
@@ -0,0 +1,179 @@
+package com.noel.benchmark;
+
+import burp.api.montoya.MontoyaApi;
+import com.google.gson.Gson;
+import com.noel.JsonResponse;
+import com.noel.StreamingJsonResponse;
+import com.noel.index.HistoryEntry;
+import com.noel.index.HistoryIndex;
+import com.noel.index.RequestFingerprint;
+import com.noel.utils.QueryContext;
+import com.noel.utils.RowContext;
+import com.noel.utils.SQLParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query engine benchmarks over a synthetic history, one stage per benchmark:
+ * parse, filter (sequential and parallel scan), dedup, projection and JSON serialization.
+ * Run with the gc profiler (the default of `./gradlew jmh`) to see the allocation rate of every stage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms8g", "-Xmx8g"})
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    /**
+     * Queries shaped like the ones agents send
+     */
+    public enum Query {
+        // Answered by the secondary indexes
+        HOST_STATUS("SELECT url, status_code FROM proxy WHERE host = 'api.example.com' and status_code = 200 LIMIT 20"),
+        // Body search that the cheap method check should guard
+        BODY_LIKE("SELECT url, resp.body FROM proxy WHERE resp.body like 'token' and method = 'GET' LIMIT 20"),
+        // Many matches, stresses dedup, projection and serialization
+        WIDE("SELECT url, method, status_code, resp.content_type FROM proxy WHERE url like '/api/' LIMIT 1000"),
+        // Rare match without LIMIT, scans the whole history
+        RARE("SELECT url, req.body FROM proxy WHERE req.body like 'password' and not status_code = 200");
+
+        private final String sql;
+
+        Query(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    /**
+     * The indexes the filter may narrow the scan with
+     */
+    public enum Indexes {
+        // Secondary indexes and the n-gram index
+        ALL,
+        // Secondary indexes only, `like` conditions scan
+        SECONDARY,
+        // Every query scans the whole history
+        NONE
+    }
+
+    @Param({"10000", "100000", "500000", "1000000"})
+    public int size;
+
+    @Param({"HOST_STATUS", "BODY_LIKE", "WIDE", "RARE"})
+    public Query query;
+
+    @Param({"ALL", "SECONDARY", "NONE"})
+    public Indexes indexes;
+
+    private HistoryIndex historyIndex;
+    private MontoyaApi api;
+    private SQLParser parser;
+    private List<HistoryEntry> matches;
+    private final Gson gson = new Gson();
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        List<burp.api.montoya.proxy.ProxyHttpRequestResponse> history = new HistoryGenerator(42).generate(size);
+        api = Fakes.api(history);
+        historyIndex = new HistoryIndex();
+        boolean ngram = indexes == Indexes.ALL;
+        if (ngram) {
+            historyIndex.enableFullTextIndex(256L * 1024 * 1024, 1024 * 1024);
+        }
+        historyIndex.backfill(history);
+        while (ngram && !historyIndex.fullTextIndex().isIdle()) {
+            Thread.sleep(100);
+        }
+        parser = new SQLParser(query.sql, api, historyIndex);
+        matches = parser.filterHistoryBySQL();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        historyIndex.close();
+    }
+
+    @Benchmark
+    public SQLParser parse() {
+        return new SQLParser(query.sql, api, historyIndex);
+    }
+
+    @Benchmark
+    public int filterSequential(Blackhole blackhole) {
+        return filter(false, null, blackhole);
+    }
+
+    @Benchmark
+    public int filterParallel(Blackhole blackhole) {
+        return filter(true, null, blackhole);
+    }
+
+    @Benchmark
+    public int dedupFull(Blackhole blackhole) {
+        return filter(false, RequestFingerprint.Keys.FULL, blackhole);
+    }
+
+    @Benchmark
+    public int dedupNone(Blackhole blackhole) {
+        return filter(false, RequestFingerprint.Keys.NONE, blackhole);
+    }
+
+    @Benchmark
+    public void projection(Blackhole blackhole) {
+        String[] fields = parser.getSelectFields();
+        RowContext row = parser.newRow();
+        for (HistoryEntry entry : matches) {
+            blackhole.consume(parser.selectFields(row.reset(entry), fields));
+        }
+    }
+
+    @Benchmark
+    public String serializeBuffered() {
+        List<Map<String, Object>> rows = parser.processSelectedFields(matches, parser.getSelectFields());
+        return gson.toJson(new JsonResponse(200, "success", rows));
+    }
+
+    @Benchmark
+    public void serializeStreaming() throws IOException {
+        String[] fields = parser.getSelectFields();
+        RowContext row = parser.newRow();
+        StreamingJsonResponse response = new StreamingJsonResponse(Writer.nullWriter());
+        response.begin();
+        for (HistoryEntry entry : matches) {
+            response.writeRow(parser.selectFields(row.reset(entry), fields));
+        }
+        response.finish(200, "success", null);
+    }
+
+    private int filter(boolean parallel, RequestFingerprint.Keys dedupKeys, Blackhole blackhole) {
+        QueryContext context = QueryContext.unlimited();
+        context.setParallel(parallel);
+        context.setDedupKeys(dedupKeys);
+        context.setUseIndexes(indexes != Indexes.NONE);
+        SQLParser parser = new SQLParser(query.sql, api, historyIndex, context);
+        return parser.filterHistoryBySQL(row -> {
+            blackhole.consume(row.entry());
+            return true;
+        });
+    }
+}
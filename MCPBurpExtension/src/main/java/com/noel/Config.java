@@ -0,0 +1,38 @@
+package com.noel;
+
+/**
+ * Extension settings, read from JVM system properties prefixed with "burpmcp.",
+ * e.g. start Burp with -Dburpmcp.ngram.enabled=false
+ */
+public final class Config {
+    private static final String PREFIX = "burpmcp.";
+
+    private Config() {
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(PREFIX + key);
+        return value == null ? defaultValue : value.trim();
+    }
+}
@@ -1,30 +1,487 @@
 package com.noel;
 
 import burp.api.montoya.MontoyaApi;
+import com.noel.index.HistoryIndex;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.noel.index.RequestFingerprint;
+import com.noel.source.TableSource;
+import com.noel.source.TableSources;
+import com.noel.subscription.Subscription;
+import com.noel.subscription.SubscriptionManager;
+import com.noel.utils.BatchQuery;
+import com.noel.utils.ByteBudget;
+import com.noel.utils.FieldRegistry;
+import com.noel.utils.HistoryScan;
+import com.noel.utils.QueryCache;
+import com.noel.utils.QueryContext;
+import com.noel.utils.QueryProfile;
+import com.noel.utils.QueryTimeoutException;
 import com.noel.utils.SQLParser;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.*;
 
 public class Handers {
 
     private MontoyaApi api;
+    private final TableSources tables;
+    private final long queryTimeoutMillis;
+    private final QueryCache queryCache;
+    private final long maxFieldBytes;
+    private final long maxResponseBytes;
+    private final int maxBatchQueries;
+    private final SubscriptionManager subscriptions;
+    private final long maxPollMillis;
 
-    Handers(MontoyaApi api) {
+    Handers(MontoyaApi api, TableSources tables, SubscriptionManager subscriptions) {
         this.api = api;
+        this.tables = tables;
+        this.subscriptions = subscriptions;
+        this.queryTimeoutMillis = Config.getLong("query.timeoutMs", 30_000);
+        this.queryCache = new QueryCache(Config.getInt("cache.maxEntries", 256), Config.getLong("cache.maxIds", 1_000_000));
+        this.maxFieldBytes = Config.getLong("projection.maxFieldBytes", 1_048_576);
+        this.maxResponseBytes = Config.getLong("projection.maxResponseBytes", 16_777_216);
+        this.maxBatchQueries = Config.getInt("batch.maxQueries", 32);
+        this.maxPollMillis = Config.getLong("subscribe.maxPollMs", 30_000);
     }
 
     /**
-     * Search burp suite proxy history using SQL style query
+     * Search burp suite history tables using SQL style query
      */
     public List<Map<String, Object>> QueryHistoryBySQL(String sql) {
+        return QueryHistoryBySQL(sql, Collections.emptyMap());
+    }
+
+    /**
+     * Search burp suite history tables using SQL style query
+     * @param options per-query options from the request, e.g. parallel=true|false
+     */
+    public List<Map<String, Object>> QueryHistoryBySQL(String sql, Map<String, Object> options) {
+        TableSource source = null;
+        HistoryIndex index = null;
         try {
-            SQLParser parser = new SQLParser(sql, this.api);
-            List<Map<String, Object>> rst = parser.processSelectedFields(parser.filterHistoryBySQL(), parser.getSelectFields());
-            api.logging().logToOutput("[Info ]SQL execute success, get records: " + rst.size());
+            source = tables.get(SQLParser.tableOf(sql));
+            index = source.open();
+            SQLParser parser = createParser(sql, options, source, index, source.fields(index));
+            if (parser.isExplain()) {
+                return List.of(parser.explain());
+            }
+            if (parser.isAggregate()) {
+                List<Map<String, Object>> groups = parser.aggregate();
+                parser.getContext().getProfile().publish();
+                return groups;
+            }
+            List<Map<String, Object>> rst = new ArrayList<>();
+            String[] fields = parser.getSelectFields();
+            QueryProfile profile = parser.getContext().getProfile();
+            ByteBudget budget = parser.getContext().getByteBudget();
+            // Project inside the scan so the fields the WHERE clause extracted are reused
+            parser.filterHistoryBySQL(row -> {
+                long projectStart = System.nanoTime();
+                rst.add(SQLParser.toStrings(budget.apply(parser.selectFields(row, fields))));
+                profile.add(QueryProfile.Stage.PROJECT, System.nanoTime() - projectStart);
+                return !budget.isExhausted();
+            });
+            profile.publish();
+            Log.debug("SQL execute success, get records: " + rst.size());
             return rst;
+        } catch (QueryTimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("[Error] SQL execute error: " + e.getMessage());
+        } finally {
+            if (index != null) {
+                source.release(index);
+            }
+        }
+    }
+
+    /**
+     * Search burp suite history tables using SQL style query, writing every match to the response as it is found.
+     * The response is only started once the query is parsed, so parse errors can still be sent as a normal error.
+     * The response is finished with the cursor of the next page, null once the history is exhausted.
+     * @return the number of records written
+     */
+    public int StreamHistoryBySQL(String sql, Map<String, Object> options, StreamingJsonResponse response) throws IOException {
+        TableSource source;
+        HistoryIndex index;
+        try {
+            source = tables.get(SQLParser.tableOf(sql));
+            index = source.open();
         } catch (Exception e) {
             throw new RuntimeException("[Error] SQL execute error: " + e.getMessage());
         }
+        try {
+            SQLParser parser;
+            try {
+                parser = createParser(sql, options, source, index, source.fields(index));
+            } catch (Exception e) {
+                throw new RuntimeException("[Error] SQL execute error: " + e.getMessage());
+            }
+            return stream(parser, response);
+        } finally {
+            source.release(index);
+        }
+    }
+
+    /**
+     * Write the results of a parsed query to the response, the index it runs against stays open meanwhile
+     */
+    private int stream(SQLParser parser, StreamingJsonResponse response) throws IOException {
+        response.begin();
+        if (parser.isExplain()) {
+            response.writeRow(parser.explain());
+            response.finish(200, "success", null);
+            return 1;
+        }
+        String[] fields = parser.getSelectFields();
+        QueryContext context = parser.getContext();
+        QueryProfile profile = context.getProfile();
+        ByteBudget budget = context.getByteBudget();
+        int rst;
+        if (parser.isAggregate()) {
+            // Groups are only known once the scan is over, they are small enough to write at once
+            List<Map<String, Object>> groups = parser.aggregate();
+            long serializeStart = System.nanoTime();
+            for (Map<String, Object> group : groups) {
+                response.writeRow(group);
+            }
+            profile.add(QueryProfile.Stage.SERIALIZE, System.nanoTime() - serializeStart);
+            rst = groups.size();
+        } else {
+            try {
+                rst = parser.filterHistoryBySQL(row -> {
+                    try {
+                        long projectStart = System.nanoTime();
+                        Map<String, Object> selected = budget.apply(parser.selectFields(row, fields));
+                        long serializeStart = System.nanoTime();
+                        response.writeRow(selected);
+                        profile.add(QueryProfile.Stage.PROJECT, serializeStart - projectStart);
+                        profile.add(QueryProfile.Stage.SERIALIZE, System.nanoTime() - serializeStart);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return !budget.isExhausted();
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        profile.setBytesSerialized(response.getBytesWritten());
+        Map<String, Object> extra = new HashMap<>();
+        extra.put("cursor", parser.getNextCursor());
+        if (budget.isTruncated()) {
+            extra.put("truncated", budget.toMap());
+        }
+        if (context.isProfileRequested()) {
+            extra.put("profile", profile.toMap());
+        }
+        response.finish(200, "success", extra);
+        profile.setBytesSerialized(response.getBytesWritten());
+        profile.publish();
+        Log.debug("SQL execute success, get records: " + rst);
+        return rst;
+    }
+
+    /**
+     * Run several queries in one pass over the history, see {@link BatchQuery}.
+     * By default every query gets one entry in the data array with its rows, cursor and truncation.
+     * With stream=true rows are written as they are found, tagged with the index of their query,
+     * and the per-query cursors follow in "queries".
+     * @param queries JSON array of SQL strings or of objects with "query" and the per-query options
+     * @return the number of records written
+     */
+    public int BatchHistoryBySQL(String queries, Map<String, Object> options, StreamingJsonResponse response) throws IOException {
+        // The index of the batch's table, released once every query of the batch is done
+        Map<TableSource, HistoryIndex> opened = new HashMap<>();
+        try {
+            return runBatch(queries, options, response, opened);
+        } finally {
+            opened.forEach(TableSource::release);
+        }
+    }
+
+    private int runBatch(String queries, Map<String, Object> options, StreamingJsonResponse response,
+                         Map<TableSource, HistoryIndex> opened) throws IOException {
+        boolean stream = options.get("stream") != null && Boolean.parseBoolean(options.get("stream").toString().trim());
+        QueryContext batchContext = new QueryContext(this.queryTimeoutMillis);
+        BatchQuery batch = null;
+        TableSource source = null;
+        List<SQLParser> parsers = new ArrayList<>();
+        List<SQLParser.Pass> passes = new ArrayList<>();
+        List<List<Map<String, Object>>> results = new ArrayList<>();
+        int[] written = new int[1];
+        try {
+            List<Map<String, Object>> items = parseBatch(queries);
+            if (items.size() > maxBatchQueries) {
+                throw new IllegalArgumentException("At most " + maxBatchQueries + " queries can be run in one batch");
+            }
+            for (Map<String, Object> item : items) {
+                int index = parsers.size();
+                Map<String, Object> queryOptions = new HashMap<>(options);
+                queryOptions.putAll(item);
+                String sql = (String) item.get("query");
+                TableSource table = tables.get(SQLParser.tableOf(sql));
+                if (batch == null) {
+                    source = table;
+                    HistoryIndex tableIndex = source.open();
+                    opened.put(source, tableIndex);
+                    batch = new BatchQuery(tableIndex, source.fields(tableIndex), batchContext);
+                } else if (table != source) {
+                    throw new IllegalArgumentException("Every query of a batch has to select from the same table");
+                }
+                SQLParser parser = createParser(sql, queryOptions, source, batch.index(), batch.fields());
+                if (parser.isExplain()) {
+                    throw new IllegalArgumentException("EXPLAIN is not supported in a batch");
+                }
+                String[] fields = parser.getSelectFields();
+                QueryProfile profile = parser.getContext().getProfile();
+                ByteBudget budget = parser.getContext().getByteBudget();
+                List<Map<String, Object>> rows = new ArrayList<>();
+                HistoryScan.Sink sink = row -> {
+                    long projectStart = System.nanoTime();
+                    Map<String, Object> selected = budget.apply(parser.selectFields(row, fields));
+                    profile.add(QueryProfile.Stage.PROJECT, System.nanoTime() - projectStart);
+                    if (stream) {
+                        writeTagged(response, index, selected);
+                        written[0]++;
+                    } else {
+                        rows.add(SQLParser.toStrings(selected));
+                    }
+                    return !budget.isExhausted();
+                };
+                SQLParser.Pass pass = parser.openPass(sink);
+                batch.add(pass);
+                parsers.add(parser);
+                passes.add(pass);
+                results.add(rows);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("[Error] SQL execute error in batch query " + parsers.size() + ": " + e.getMessage());
+        }
+
+        response.begin();
+        try {
+            if (batch != null) {
+                batch.run();
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<Map<String, Object>> summaries = new ArrayList<>();
+        for (int i = 0; i < parsers.size(); i++) {
+            SQLParser parser = parsers.get(i);
+            QueryContext context = parser.getContext();
+            List<Map<String, Object>> rows = results.get(i);
+            if (parser.isAggregate()) {
+                rows = passes.get(i).groups();
+                if (stream) {
+                    for (Map<String, Object> group : rows) {
+                        writeTagged(response, i, group);
+                        written[0]++;
+                    }
+                }
+            }
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("query", i);
+            if (!stream) {
+                summary.put("data", rows);
+                written[0] += rows.size();
+            }
+            summary.put("cursor", parser.getNextCursor());
+            if (context.getByteBudget().isTruncated()) {
+                summary.put("truncated", context.getByteBudget().toMap());
+            }
+            if (context.isProfileRequested()) {
+                summary.put("profile", context.getProfile().toMap());
+            }
+            context.getProfile().publish();
+            if (stream) {
+                summaries.add(summary);
+            } else {
+                response.writeRow(summary);
+            }
+        }
+        Map<String, Object> extra = new HashMap<>();
+        if (stream) {
+            extra.put("queries", summaries);
+        }
+        response.finish(200, "success", extra);
+        Log.debug("Batch of " + parsers.size() + " queries executed, get records: " + written[0]);
+        return written[0];
+    }
+
+    /**
+     * Register a continuous query, matches in traffic captured from now on are buffered for the subscriber
+     * @return the id of the subscription
+     */
+    public Map<String, Object> Subscribe(String sql, Map<String, Object> options) {
+        Subscription subscription;
+        try {
+            TableSource source = tables.get(SQLParser.tableOf(sql));
+            if (!source.isStreamable()) {
+                throw new IllegalArgumentException("Subscriptions only watch tables indexed as traffic is captured, "
+                        + source.name() + " is not");
+            }
+            subscription = subscriptions.subscribe(createParser(sql, options, source, source.open(), subscriptions.fields()));
+        } catch (Exception e) {
+            throw new RuntimeException("[Error] SQL execute error: " + e.getMessage());
+        }
+        Log.info("New subscription " + subscription.id() + ": " + sql);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id", subscription.id());
+        return result;
+    }
+
+    /**
+     * Long-poll the matches of a subscription: returns as soon as there is at least one, or after the timeout
+     * @return the matches, oldest first, and the number of matches dropped because the buffer was full
+     */
+    public Map<String, Object> PollSubscription(String id, int max, long timeoutMillis) throws InterruptedException {
+        Subscription subscription = requireSubscription(id);
+        List<Map<String, Object>> rows = subscription.poll(max, Math.min(timeoutMillis, maxPollMillis));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("matches", rows);
+        result.put("dropped", subscription.takeDropped());
+        result.put("closed", subscription.isClosed());
+        return result;
+    }
+
+    /**
+     * Write the matches of a subscription as Server-Sent Events until it is closed or the client goes away:
+     * a "match" event per match, a "dropped" event when matches were dropped, and a comment as keep-alive.
+     */
+    public void StreamSubscription(String id, Writer out) throws IOException, InterruptedException {
+        Subscription subscription = requireSubscription(id);
+        Gson gson = new Gson();
+        while (!subscription.isClosed()) {
+            List<Map<String, Object>> rows = subscription.poll(100, maxPollMillis);
+            long dropped = subscription.takeDropped();
+            if (dropped > 0) {
+                out.write("event: dropped\ndata: {\"dropped\":" + dropped + "}\n\n");
+            }
+            for (Map<String, Object> row : rows) {
+                out.write("event: match\ndata: " + gson.toJson(row) + "\n\n");
+            }
+            if (rows.isEmpty() && dropped == 0) {
+                out.write(": keep-alive\n\n");
+            }
+            out.flush();
+        }
+        out.write("event: closed\ndata: {}\n\n");
+        out.flush();
+    }
+
+    public boolean Unsubscribe(String id) {
+        return subscriptions.unsubscribe(id);
+    }
+
+    private Subscription requireSubscription(String id) {
+        Subscription subscription = subscriptions.get(id);
+        if (subscription == null) {
+            throw new IllegalArgumentException("No such subscription: " + id);
+        }
+        return subscription;
+    }
+
+    private static void writeTagged(StreamingJsonResponse response, int query, Map<String, Object> row) {
+        Map<String, Object> tagged = new LinkedHashMap<>();
+        tagged.put("query", query);
+        tagged.putAll(row);
+        try {
+            response.writeRow(tagged);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The queries of a batch, a plain string is a query without options
+     */
+    private static List<Map<String, Object>> parseBatch(String queries) {
+        if (queries == null || queries.isBlank()) {
+            throw new IllegalArgumentException("Missing queries");
+        }
+        JsonElement json = JsonParser.parseString(queries);
+        if (!json.isJsonArray()) {
+            throw new IllegalArgumentException("Queries must be a JSON array");
+        }
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (JsonElement element : json.getAsJsonArray()) {
+            Map<String, Object> item = new HashMap<>();
+            if (element.isJsonPrimitive()) {
+                item.put("query", element.getAsString());
+            } else if (element.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> option : element.getAsJsonObject().entrySet()) {
+                    if (option.getValue().isJsonPrimitive()) {
+                        item.put(option.getKey(), option.getValue().getAsString());
+                    }
+                }
+            }
+            if (!(item.get("query") instanceof String)) {
+                throw new IllegalArgumentException("Every query needs its SQL in \"query\"");
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * @param fields the fields of the table, shared by the queries evaluated over the same rows
+     */
+    private SQLParser createParser(String sql, Map<String, Object> options, TableSource source, HistoryIndex index, FieldRegistry fields) {
+        QueryContext context = new QueryContext(this.queryTimeoutMillis);
+        Object parallel = options.get("parallel");
+        if (parallel != null) {
+            context.setParallel(Boolean.parseBoolean(parallel.toString().trim()));
+        }
+        Object cursor = options.get("cursor");
+        if (cursor != null && !cursor.toString().isBlank()) {
+            context.setCursor(cursor.toString());
+        }
+        Object dedup = options.get("dedup");
+        if (dedup != null && !dedup.toString().isBlank()) {
+            context.setDedupKeys(RequestFingerprint.Keys.of(dedup.toString()));
+        } else if (source.defaultDedupKeys() != null) {
+            context.setDedupKeys(source.defaultDedupKeys());
+        }
+        Object profile = options.get("profile");
+        if (profile != null) {
+            context.setProfileRequested(Boolean.parseBoolean(profile.toString().trim()));
+        }
+        // A query may lower the byte budgets, not raise them
+        context.setByteBudget(new ByteBudget(
+                budgetOption(options.get("maxFieldBytes"), maxFieldBytes),
+                budgetOption(options.get("maxResponseBytes"), maxResponseBytes)));
+        long parseStart = System.nanoTime();
+        SQLParser parser = new SQLParser(sql, this.api, index, context, fields);
+        context.getProfile().add(QueryProfile.Stage.PARSE, System.nanoTime() - parseStart);
+        // Cached ids are only extended, a table whose index is rebuilt would hand out stale ids
+        if (source.isStreamable()) {
+            parser.setQueryCache(this.queryCache);
+        }
+        return parser;
+    }
+
+    private static long budgetOption(Object value, long configured) {
+        if (value == null || value.toString().isBlank()) {
+            return configured;
+        }
+        long requested;
+        try {
+            requested = (long) Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number of bytes: " + value);
+        }
+        if (requested <= 0) {
+            return configured;
+        }
+        return configured > 0 ? Math.min(requested, configured) : requested;
     }
 
 }
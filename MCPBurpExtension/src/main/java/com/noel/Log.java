@@ -0,0 +1,208 @@
+package com.noel;
+
+import burp.api.montoya.logging.Logging;
+import com.noel.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Leveled logging that never blocks the caller.
+ * Burp's output panel is a Swing component and gets slow under load, so messages go into a bounded queue
+ * and a single thread hands them to Montoya in batches, at most one batch per flush interval.
+ * When the queue is full the message is dropped and counted (log.dropped) instead of waiting.
+ * Until {@link #install(Logging)} is called, e.g. in the benchmarks, messages are discarded.
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG("Debug"), INFO("Info"), WARN("Warn"), ERROR("Error");
+
+        private final String label;
+
+        Level(String label) {
+            this.label = label;
+        }
+
+        static Level of(String name) {
+            for (Level level : values()) {
+                if (level.name().equalsIgnoreCase(name.trim())) {
+                    return level;
+                }
+            }
+            return INFO;
+        }
+    }
+
+    private static final Level LEVEL = Level.of(Config.getString("log.level", "info"));
+    private static final int MAX_MESSAGE_CHARS = Config.getInt("log.maxMessageChars", 2000);
+    private static final long FLUSH_INTERVAL_MILLIS = Config.getLong("log.flushIntervalMs", 100);
+    private static final int BATCH_SIZE = 256;
+
+    private static final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(Config.getInt("log.queueSize", 10_000));
+    private static final LongAdder dropped = Metrics.counter("log.dropped");
+    private static volatile Logging logging;
+    private static volatile Thread drainer;
+
+    private Log() {
+    }
+
+    /**
+     * Start draining the queue to Burp's extension output
+     */
+    public static synchronized void install(Logging logging) {
+        Log.logging = logging;
+        if (drainer == null) {
+            drainer = new Thread(Log::drain, "BurpSuiteMCP-Logger");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+    }
+
+    /**
+     * Stop the drainer after writing what is still queued
+     */
+    public static synchronized void shutdown() {
+        Thread thread = drainer;
+        drainer = null;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0 && logging != null;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    private static void log(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        if (!queue.offer(new Message(level, truncate(message), error))) {
+            dropped.increment();
+        }
+    }
+
+    private static String truncate(String message) {
+        if (message == null || message.length() <= MAX_MESSAGE_CHARS) {
+            return message;
+        }
+        return message.substring(0, MAX_MESSAGE_CHARS) + "... (" + (message.length() - MAX_MESSAGE_CHARS) + " more chars)";
+    }
+
+    private static void drain() {
+        List<Message> batch = new ArrayList<>(BATCH_SIZE);
+        long reportedDrops = 0;
+        boolean running = true;
+        while (running || !queue.isEmpty()) {
+            try {
+                if (running) {
+                    Message first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                    }
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+
+            long drops = dropped.sum();
+            if (drops > reportedDrops) {
+                batch.add(new Message(Level.WARN, "Dropped " + (drops - reportedDrops) + " log messages, the log queue was full", null));
+                reportedDrops = drops;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+
+            if (running && !Thread.currentThread().isInterrupted()) {
+                try {
+                    // Bound how often the output panel is updated
+                    Thread.sleep(FLUSH_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+            } else {
+                running = false;
+            }
+        }
+    }
+
+    /**
+     * One output call and one error call per batch, errors with a stack trace are written on their own
+     */
+    private static void write(List<Message> batch) {
+        Logging target = logging;
+        StringBuilder output = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        for (Message message : batch) {
+            if (message.error != null) {
+                target.logToError(message.format(), message.error);
+            } else if (message.level == Level.ERROR) {
+                append(errors, message.format());
+            } else {
+                append(output, message.format());
+            }
+        }
+        if (output.length() > 0) {
+            target.logToOutput(output.toString());
+        }
+        if (errors.length() > 0) {
+            target.logToError(errors.toString());
+        }
+    }
+
+    private static void append(StringBuilder text, String line) {
+        if (text.length() > 0) {
+            text.append('\n');
+        }
+        text.append(line);
+    }
+
+    private static class Message {
+        private final Level level;
+        private final String text;
+        private final Throwable error;
+
+        Message(Level level, String text, Throwable error) {
+            this.level = level;
+            this.text = text;
+            this.error = error;
+        }
+
+        String format() {
+            return "[" + level.label + "] " + text;
+        }
+    }
+}
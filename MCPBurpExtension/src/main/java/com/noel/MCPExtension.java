@@ -6,23 +6,49 @@ import burp.api.montoya.MontoyaApi;
 import burp.api.montoya.extension.Extension;
 import burp.api.montoya.extension.ExtensionUnloadingHandler;
 import burp.api.montoya.logging.Logging;
+import burp.api.montoya.proxy.ProxyHttpRequestResponse;
 import com.google.gson.Gson;
+import com.noel.index.HistoryIndex;
+import com.noel.index.HistoryStore;
+import com.noel.index.ProxyHistoryListener;
+import com.noel.metrics.Metrics;
+import com.noel.source.ProxySource;
+import com.noel.source.SiteMapSource;
+import com.noel.source.TableSources;
+import com.noel.source.WebSocketSource;
+import com.noel.subscription.SubscriptionManager;
+import com.noel.utils.HistoryScan;
+import com.noel.utils.QueryTimeoutException;
 import org.jboss.com.sun.net.httpserver.HttpExchange;
+import org.jboss.com.sun.net.httpserver.HttpHandler;
 import org.jboss.com.sun.net.httpserver.HttpServer;
 
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 
 public class MCPExtension implements BurpExtension {
 
     private HttpServer server;
+    private ExecutorService executor;
     private Logging logging;
     private  Handers handers;
+    private HistoryIndex historyIndex;
+    private TableSources tables;
+    private SubscriptionManager subscriptions;
 
 
     @Override
@@ -33,12 +59,53 @@ public class MCPExtension implements BurpExtension {
     @Override
     public void initialize(MontoyaApi api) {
         this.logging = api.logging();
-        this.handers = new Handers(api);
+        Log.install(this.logging);
+
+        // Backfill the index once, then keep it up to date from the proxy handlers.
+        // The handlers are registered first and buffer what arrives while the backfill runs
+        this.historyIndex = new HistoryIndex();
+        Metrics.gauge("columns.bytes", historyIndex.columns()::memoryBytes);
+        if (Config.getBoolean("ngram.enabled", true)) {
+            historyIndex.enableFullTextIndex(Config.getLong("ngram.maxMemoryMb", 256) * 1024 * 1024,
+                    Config.getInt("ngram.maxBodyBytes", 1024 * 1024));
+        }
+        int parsedCacheMaxValues = Config.getInt("parsed.cacheMaxValues", 100_000);
+        if (parsedCacheMaxValues > 0) {
+            historyIndex.enableParsedFieldCache(parsedCacheMaxValues);
+            Metrics.gauge("parsed.values", historyIndex.parsedFieldCache()::size);
+        }
+        if (Config.getBoolean("messages.compress", true)) {
+            historyIndex.enableMessageCompression(Config.getLong("messages.maxOffHeapMb", 1024) * 1024 * 1024);
+        }
+        ProxyHistoryListener historyListener = new ProxyHistoryListener(historyIndex);
+        api.proxy().registerRequestHandler(historyListener);
+        api.proxy().registerResponseHandler(historyListener);
+        List<ProxyHttpRequestResponse> history = api.proxy().history();
+        backfill(api, history);
+        int buffered = historyListener.drain(history);
+        Log.info("Indexed proxy history items: " + historyIndex.size() + ", captured during the backfill: " + buffered);
+
+        // Only traffic captured from now on is pushed to subscribers
+        this.subscriptions = new SubscriptionManager(historyIndex, Config.getInt("subscribe.maxSubscriptions", 64),
+                Config.getInt("subscribe.queueSize", 10_000), Config.getInt("subscribe.bufferSize", 1000),
+                Config.getLong("subscribe.idleTimeoutMs", 300_000));
+        historyIndex.addListener(subscriptions);
+
+        // The other tables are indexed when a query first selects from them
+        long refreshInterval = Config.getLong("sources.refreshIntervalMs", 2000);
+        this.tables = new TableSources();
+        tables.add(new ProxySource(historyIndex));
+        tables.add(new SiteMapSource(api, refreshInterval,
+                Config.getBoolean("ngram.enabled", true) ? Config.getLong("ngram.maxMemoryMb", 256) * 1024 * 1024 : 0,
+                Config.getInt("ngram.maxBodyBytes", 1024 * 1024), parsedCacheMaxValues));
+        tables.add(new WebSocketSource(api, refreshInterval));
+
+        this.handers = new Handers(api, tables, subscriptions);
 
         try{
             startServer();
         }catch (IOException e){
-            this.logging.logToError("[Error] Can not start the server", e);
+            Log.error("Can not start the server", e);
         }
 
 
@@ -47,6 +114,27 @@ public class MCPExtension implements BurpExtension {
     }
 
 
+    /**
+     * Load the existing proxy history, from the history store when it is enabled
+     */
+    private void backfill(MontoyaApi api, List<ProxyHttpRequestResponse> history) {
+        if (Config.getBoolean("store.enabled", false)) {
+            String project = api.project().id().replaceAll("[^A-Za-z0-9._-]", "_");
+            Path directory = Paths.get(Config.getString("store.dir",
+                    Paths.get(System.getProperty("user.home"), ".burpmcp", "history").toString())).resolve(project);
+            try {
+                HistoryStore store = new HistoryStore(directory, Config.getBoolean("store.bodies", false),
+                        Config.getInt("store.maxBodyBytes", 1024 * 1024));
+                historyIndex.backfill(history, store, Config.getLong("store.syncIntervalMs", 10_000));
+                Log.info("Opened the history store with " + store.size() + " items: " + directory);
+                return;
+            } catch (IOException e) {
+                Log.error("Can not open the history store, indexing from the proxy history", e);
+            }
+        }
+        historyIndex.backfill(history);
+    }
+
     private void startServer() throws IOException {
         int defaultPort = 8889;
 
@@ -55,49 +143,220 @@ public class MCPExtension implements BurpExtension {
         try{
             this.server = HttpServer.create(new InetSocketAddress(defaultPort), 0);
 
-            server.createContext("/", exchange -> {
+            createContext("/", exchange -> {
                 sendResponse(exchange, "Burp Suite HTTP server for MCP started!");
             });
 
-            server.createContext("/query", exchange->{
+            createContext("/query", limited("query", Config.getInt("server.maxConcurrentQueries", 4), exchange->{
+                Map<String, Object> postData = parsePostParams(exchange);
+                String sql = (String) postData.get("query");
+                // Matches are streamed from the scan into the response, nothing is buffered
+                try (StreamingJsonResponse response = new StreamingJsonResponse(exchange)) {
+                    try {
+                        this.handers.StreamHistoryBySQL(sql, postData, response);
+                    } catch (QueryTimeoutException e) {
+                        Metrics.counter("query.timeouts").increment();
+                        Log.error(e.getMessage() + ": " + sql);
+                        sendError(exchange, response, 408, "Query Timeout", e.getMessage());
+                    } catch (IOException e) {
+                        Metrics.counter("query.errors").increment();
+                        Log.warn("Error sending response, client went away? " + e);
+                    } catch (Exception e) {
+                        Metrics.counter("query.errors").increment();
+                        Log.error("Error processing or sending response", e);
+                        sendError(exchange, response, 500, "Server Error", e.getMessage());
+                    }
+                }
+            }));
+
+            // Several queries in one pass over the history, limited like /query
+            createContext("/batch", limited("batch", Config.getInt("server.maxConcurrentQueries", 4), exchange->{
+                Map<String, Object> postData = parsePostParams(exchange);
+                String queries = (String) postData.remove("queries");
+                try (StreamingJsonResponse response = new StreamingJsonResponse(exchange)) {
+                    try {
+                        this.handers.BatchHistoryBySQL(queries, postData, response);
+                    } catch (QueryTimeoutException e) {
+                        Metrics.counter("query.timeouts").increment();
+                        Log.error(e.getMessage() + ": " + queries);
+                        sendError(exchange, response, 408, "Query Timeout", e.getMessage());
+                    } catch (IOException e) {
+                        Metrics.counter("query.errors").increment();
+                        Log.warn("Error sending response, client went away? " + e);
+                    } catch (Exception e) {
+                        Metrics.counter("query.errors").increment();
+                        Log.error("Error processing or sending response", e);
+                        sendError(exchange, response, 500, "Server Error", e.getMessage());
+                    }
+                }
+            }));
+
+            // Continuous queries: register a WHERE clause, then long-poll or stream its matches in new traffic
+            createContext("/subscribe", exchange -> {
                 Map<String, Object> postData = parsePostParams(exchange);
                 String sql = (String) postData.get("query");
-                Gson gson = new Gson();
-                String responseJson = "";
-                try{
-                    List<Map<String, Object>> history = this.handers.QueryHistoryBySQL(sql);
-                    JsonResponse jsonResponse = new JsonResponse(200,"success", history);
-                    responseJson = gson.toJson(jsonResponse);
-                }catch (Exception e){
-                    JsonResponse jsonResponse = new JsonResponse(500,"Server Error", e);
-                    responseJson = gson.toJson(jsonResponse);
-                    this.logging.logToError("[Error] Error processing or sending response", e);
-                }finally {
-                    sendResponse(exchange, responseJson);
+                sendJson(exchange, () -> this.handers.Subscribe(sql, postData));
+            });
+
+            // Long polls and streams hold a worker while they wait, at most half of the pool may do so, so queries still run
+            int maxStreams = Math.max(1, Math.min(Config.getInt("subscribe.maxStreams", 4), Config.getInt("server.poolSize", 16) / 2));
+            UnaryOperator<HttpHandler> streams = limiter("subscribe.streams", maxStreams);
+
+            createContext("/subscribe/poll", streams.apply(exchange -> {
+                Map<String, Object> postData = parsePostParams(exchange);
+                sendJson(exchange, () -> this.handers.PollSubscription((String) postData.get("id"),
+                        Integer.parseInt(postData.getOrDefault("max", "100").toString().trim()),
+                        Long.parseLong(postData.getOrDefault("timeoutMs", "20000").toString().trim())));
+            }));
+
+            createContext("/subscribe/events", streams.apply(exchange -> {
+                String id = parseQueryParams(exchange).get("id");
+                if (this.subscriptions.get(id) == null) {
+                    sendResponse(exchange, new Gson().toJson(new JsonResponse(404, "Not Found", "No such subscription: " + id)));
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.sendResponseHeaders(200, 0);
+                try (Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)) {
+                    this.handers.StreamSubscription(id, out);
+                } catch (IOException e) {
+                    Log.debug("Subscription stream closed by the client: " + id);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    Log.error("Error streaming subscription " + id, e);
+                } finally {
+                    exchange.close();
+                }
+            }));
+
+            createContext("/unsubscribe", exchange -> {
+                Map<String, Object> postData = parsePostParams(exchange);
+                sendJson(exchange, () -> this.handers.Unsubscribe((String) postData.get("id")));
+            });
+
+            // JSON by default, Prometheus text format with ?format=prometheus or when the scraper asks for text/plain
+            createContext("/metrics", exchange -> {
+                String accept = exchange.getRequestHeaders().getFirst("Accept");
+                if ("prometheus".equalsIgnoreCase(parseQueryParams(exchange).get("format"))
+                        || (accept != null && accept.contains("text/plain"))) {
+                    sendResponse(exchange, Metrics.prometheus(), "text/plain; version=0.0.4; charset=utf-8");
+                } else {
+                    sendResponse(exchange, new Gson().toJson(new JsonResponse(200, "success", Metrics.snapshot())));
                 }
             });
 
         }catch(IOException e){
-            this.logging.logToError("[Error] Can't start server: " + e);
+            Log.error("Can't start server: " + e);
         }catch (Exception e){
-            this.logging.logToOutput("[Error] Unknown error while starting server: " + e);
+            Log.error("Unknown error while starting server: " + e);
         }
 
 
 
 
-        server.setExecutor(null);
+        // Requests run on their own threads, a slow query must not block the dispatcher or other clients
+        this.executor = ServerExecutor.create(Config.getBoolean("server.virtualThreads", true),
+                Config.getInt("server.poolSize", 16));
+        server.setExecutor(executor);
         new Thread(() -> {
             server.start();
-            this.logging.logToOutput("Start the BurpSite MCP HTTP on localhost:" + defaultPort);
+            Log.info("Start the BurpSite MCP HTTP on localhost:" + defaultPort
+                    + (ServerExecutor.isVirtual(executor) ? " (virtual threads)" : " (thread pool)"));
         }, "BurpSuiteMCP-HTTP-Server")
                 .start();
     }
 
 
+    /**
+     * Register an endpoint. Requests the worker pool had no room for are answered right away with a JSON error
+     */
+    private void createContext(String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            if (ServerExecutor.isOverflow()) {
+                Metrics.counter("server.rejected").increment();
+                JsonResponse jsonResponse = new JsonResponse(503, "Service Unavailable",
+                        "The server is busy, all workers are taken and the queue is full");
+                sendResponse(exchange, new Gson().toJson(jsonResponse));
+                return;
+            }
+            handler.handle(exchange);
+        });
+    }
+
+    /**
+     * Limit how many requests an endpoint handles at the same time,
+     * requests that can't get a slot within a second are rejected with a JSON error
+     * @param name prefix of the endpoint metrics: &lt;name&gt;.active and &lt;name&gt;.rejected
+     */
+    private HttpHandler limited(String name, int maxConcurrent, HttpHandler handler) {
+        return limiter(name, maxConcurrent).apply(handler);
+    }
+
+    /**
+     * Like {@link #limited}, the endpoints wrapped by the returned limiter share its slots
+     */
+    private UnaryOperator<HttpHandler> limiter(String name, int maxConcurrent) {
+        Semaphore permits = new Semaphore(maxConcurrent);
+        Metrics.gauge(name + ".active", () -> maxConcurrent - permits.availablePermits());
+        return handler -> exchange -> {
+            boolean acquired = false;
+            try {
+                acquired = permits.tryAcquire(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!acquired) {
+                Metrics.counter(name + ".rejected").increment();
+                JsonResponse jsonResponse = new JsonResponse(429, "Too Many Requests",
+                        "Too many concurrent requests, at most " + maxConcurrent + " are served at the same time");
+                sendResponse(exchange, new Gson().toJson(jsonResponse));
+                return;
+            }
+            try {
+                handler.handle(exchange);
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
+    /**
+     * Answer with the result of the action as JSON data, errors become a JSON error
+     */
+    private void sendJson(HttpExchange exchange, Callable<Object> action) throws IOException {
+        try {
+            sendResponse(exchange, new Gson().toJson(new JsonResponse(200, "success", action.call())));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendResponse(exchange, new Gson().toJson(new JsonResponse(500, "Server Error", "Interrupted")));
+        } catch (Exception e) {
+            Log.error("Error processing request", e);
+            sendResponse(exchange, new Gson().toJson(new JsonResponse(500, "Server Error", e.getMessage())));
+        }
+    }
+
+    /**
+     * Report an error of a streamed query, inside the body if the rows already started
+     */
+    private void sendError(HttpExchange exchange, StreamingJsonResponse response, int code, String message, String detail) throws IOException {
+        if (response.isStarted()) {
+            Map<String, Object> extra = new HashMap<>();
+            extra.put("error", detail);
+            response.finish(code, message, extra);
+        } else {
+            sendResponse(exchange, new Gson().toJson(new JsonResponse(code, message, detail)));
+        }
+    }
+
     private void sendResponse(HttpExchange exchange, String response) throws IOException{
+        sendResponse(exchange, response, "application/json");
+    }
+
+    private void sendResponse(HttpExchange exchange, String response, String contentType) throws IOException{
         byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
         exchange.sendResponseHeaders(200, bytes.length);
 
         OutputStream outStream = exchange.getResponseBody();
@@ -133,7 +392,7 @@ public class MCPExtension implements BurpExtension {
         String bodyStr = new String(body, StandardCharsets.UTF_8);
         // url decode body str
         bodyStr = URLDecoder.decode(bodyStr, "UTF-8");
-        this.logging.logToOutput("[Info] Received POST request body: " + bodyStr);
+        Log.debug("Received POST request body: " + bodyStr);
         Map<String, Object> params = new HashMap<>();
         for (String pair : bodyStr.split("&")) {
             String[] kv = pair.split("=");
@@ -170,9 +429,15 @@ public class MCPExtension implements BurpExtension {
     private class ExtensionUnloadHandler implements ExtensionUnloadingHandler {
         @Override
         public void extensionUnloaded() {
-            logging.logToOutput("Unloading....");
+            Log.info("Unloading....");
+            subscriptions.shutdown();
             server.stop(0);
-            logging.logToOutput("Done unloading!");
+            executor.shutdownNow();
+            HistoryScan.shutdown();
+            historyIndex.close();
+            tables.close();
+            Log.info("Done unloading!");
+            Log.shutdown();
         }
     }
 }
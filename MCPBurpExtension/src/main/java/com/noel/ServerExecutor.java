@@ -0,0 +1,80 @@
+package com.noel;
+
+import com.noel.metrics.Metrics;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor for the embedded HTTP server.
+ * Uses a virtual thread per request when running on Java 21+, otherwise a bounded platform thread pool.
+ */
+public final class ServerExecutor {
+    private static final int QUEUE_CAPACITY = 256;
+    private static final ThreadLocal<Boolean> OVERFLOW = ThreadLocal.withInitial(() -> false);
+
+    private ServerExecutor() {
+    }
+
+    public static ExecutorService create(boolean preferVirtualThreads, int poolSize) {
+        if (preferVirtualThreads) {
+            ExecutorService virtual = virtualThreadExecutor();
+            if (virtual != null) {
+                return virtual;
+            }
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        // When the queue is full the request goes to the overflow thread, which only answers that the server is busy.
+        // The dispatcher never runs a request itself and keeps accepting connections
+        ThreadPoolExecutor overflow = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(() -> {
+                        OVERFLOW.set(true);
+                        runnable.run();
+                    }, "BurpSuiteMCP-HTTP-Overflow");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> Metrics.counter("server.dropped").increment());
+        // Nothing keeps the thread around once the extension is unloaded
+        overflow.allowCoreThreadTimeOut(true);
+        return new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "BurpSuiteMCP-HTTP-Worker-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, executor) -> overflow.execute(runnable));
+    }
+
+    /**
+     * True on the thread that answers the requests the worker pool had no room for, they must be rejected right away
+     */
+    public static boolean isOverflow() {
+        return OVERFLOW.get();
+    }
+
+    public static boolean isVirtual(ExecutorService executor) {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() through reflection, the extension is built for Java 17
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.noel;
+
+import burp.api.montoya.core.ByteArray;
+import com.google.gson.Gson;
+import org.jboss.com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Chunked JSON response for endpoints returning rows.
+ * Rows are written as soon as they are produced, message contents are copied from their bytes in small chunks,
+ * so neither the time to first byte nor the heap used depends on the size of the result.
+ * The envelope has the same fields as {@link JsonResponse}, with "data" first:
+ * {"data":[...],"code":200,"message":"success"}
+ * The rows and the envelope are written directly, strings are escaped chunk by chunk,
+ * only nested maps and collections go through Gson.
+ */
+public class StreamingJsonResponse implements AutoCloseable {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final HttpExchange exchange;
+    private final Gson gson = new Gson();
+    private Writer out;
+    private final char[] escapeBuffer = new char[CHUNK_SIZE * 6];
+    private boolean started;
+    private boolean firstRow = true;
+    private boolean finished;
+    private long bytesWritten;
+
+    public StreamingJsonResponse(HttpExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    /**
+     * Write the body to a plain writer without any HTTP exchange, used by the benchmarks
+     */
+    public StreamingJsonResponse(Writer out) {
+        this.exchange = null;
+        this.out = out;
+    }
+
+    /**
+     * True once the headers are sent, from then on errors have to be reported inside the body
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Send the headers and open the data array
+     */
+    public void begin() throws IOException {
+        if (exchange != null) {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            // Length 0 makes the server use chunked transfer encoding
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = new FilterOutputStream(exchange.getResponseBody()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    bytesWritten += len;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    bytesWritten++;
+                }
+            };
+            out = new OutputStreamWriter(new BufferedOutputStream(body, CHUNK_SIZE), StandardCharsets.UTF_8);
+        }
+        out.write("{\"data\":[");
+        started = true;
+    }
+
+    /**
+     * Write one row, null values are left out like Gson does for maps
+     */
+    public void writeRow(Map<String, Object> row) throws IOException {
+        if (!firstRow) {
+            out.write(',');
+        }
+        firstRow = false;
+        out.write('{');
+        boolean firstField = true;
+        for (Map.Entry<String, Object> field : row.entrySet()) {
+            Object value = field.getValue();
+            if (value == null) {
+                continue;
+            }
+            if (!firstField) {
+                out.write(',');
+            }
+            firstField = false;
+            writeString(field.getKey());
+            out.write(':');
+            writeValue(value);
+        }
+        out.write('}');
+    }
+
+    /**
+     * Close the data array and write the status of the query, extra fields are serialized with Gson
+     */
+    public void finish(int code, String message, Map<String, Object> extra) throws IOException {
+        out.write("],\"code\":");
+        out.write(Integer.toString(code));
+        out.write(",\"message\":");
+        writeString(message);
+        if (extra != null) {
+            for (Map.Entry<String, Object> field : extra.entrySet()) {
+                out.write(',');
+                writeString(field.getKey());
+                out.write(':');
+                out.write(gson.toJson(field.getValue()));
+            }
+        }
+        out.write('}');
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        if (exchange != null) {
+            exchange.close();
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Bytes of the body handed to the exchange so far, what is still buffered is not counted
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value instanceof ByteArray) {
+            writeBytes((ByteArray) value);
+        } else if (value instanceof Number) {
+            String number = value.toString();
+            if (number.equals("NaN") || number.endsWith("Infinity")) {
+                throw new IllegalArgumentException("Numeric values must be finite, but was " + number);
+            }
+            out.write(number);
+        } else if (value instanceof Boolean) {
+            out.write(value.toString());
+        } else if (value instanceof Map || value instanceof Collection) {
+            out.write(gson.toJson(value));
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Write a JSON string, escaped in chunks, null as JSON null
+     */
+    private void writeString(String text) throws IOException {
+        if (text == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        int length = text.length();
+        for (int start = 0; start < length; start += CHUNK_SIZE) {
+            int end = Math.min(start + CHUNK_SIZE, length);
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                count = escape(text.charAt(i), count);
+            }
+            out.write(escapeBuffer, 0, count);
+        }
+        out.write('"');
+    }
+
+    /**
+     * Write message bytes as a JSON string without building the whole String.
+     * Burp maps message bytes to chars one to one, the same mapping ByteArray.toString() uses.
+     */
+    private void writeBytes(ByteArray bytes) throws IOException {
+        out.write('"');
+        int length = bytes.length();
+        for (int start = 0; start < length; start += CHUNK_SIZE) {
+            byte[] chunk = bytes.subArray(start, Math.min(start + CHUNK_SIZE, length)).getBytes();
+            int count = 0;
+            for (byte b : chunk) {
+                count = escape((char) (b & 0xFF), count);
+            }
+            out.write(escapeBuffer, 0, count);
+        }
+        out.write('"');
+    }
+
+    /**
+     * Append the escaped char to the escape buffer
+     * @return the new number of chars in the buffer
+     */
+    private int escape(char c, int count) {
+        switch (c) {
+            case '"':
+                escapeBuffer[count++] = '\\';
+                escapeBuffer[count++] = '"';
+                break;
+            case '\\':
+                escapeBuffer[count++] = '\\';
+                escapeBuffer[count++] = '\\';
+                break;
+            case '\n':
+                escapeBuffer[count++] = '\\';
+                escapeBuffer[count++] = 'n';
+                break;
+            case '\r':
+                escapeBuffer[count++] = '\\';
+                escapeBuffer[count++] = 'r';
+                break;
+            case '\t':
+                escapeBuffer[count++] = '\\';
+                escapeBuffer[count++] = 't';
+                break;
+            default:
+                // Line and paragraph separators are escaped like Gson does, JavaScript rejects them in strings
+                if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                    String hex = Integer.toHexString(c);
+                    escapeBuffer[count++] = '\\';
+                    escapeBuffer[count++] = 'u';
+                    for (int i = hex.length(); i < 4; i++) {
+                        escapeBuffer[count++] = '0';
+                    }
+                    for (int i = 0; i < hex.length(); i++) {
+                        escapeBuffer[count++] = hex.charAt(i);
+                    }
+                } else {
+                    escapeBuffer[count++] = c;
+                }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,76 @@
+package com.noel.index;
+
+/**
+ * Open addressing hash set of 128-bit fingerprints stored as pairs of primitive longs.
+ * The all zero fingerprint marks an empty slot and is tracked by a flag of its own.
+ */
+public class FingerprintSet {
+    private long[] slots;
+    private int mask;
+    private int size;
+    private boolean containsZero;
+
+    public FingerprintSet() {
+        this(64);
+    }
+
+    public FingerprintSet(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+        slots = new long[capacity * 2];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return true if the fingerprint was not in the set yet
+     */
+    public boolean add(long high, long low) {
+        if (high == 0 && low == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            return true;
+        }
+        int slot = (int) (low ^ (low >>> 32)) & mask;
+        while (true) {
+            long slotHigh = slots[slot * 2];
+            long slotLow = slots[slot * 2 + 1];
+            if (slotHigh == 0 && slotLow == 0) {
+                break;
+            }
+            if (slotHigh == high && slotLow == low) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot * 2] = high;
+        slots[slot * 2 + 1] = low;
+        if (++size * 2 > mask + 1) {
+            grow();
+        }
+        return true;
+    }
+
+    public int size() {
+        return containsZero ? size + 1 : size;
+    }
+
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        mask = (mask << 1) | 1;
+        for (int i = 0; i < old.length; i += 2) {
+            long high = old[i];
+            long low = old[i + 1];
+            if (high == 0 && low == 0) {
+                continue;
+            }
+            int slot = (int) (low ^ (low >>> 32)) & mask;
+            while (slots[slot * 2] != 0 || slots[slot * 2 + 1] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot * 2] = high;
+            slots[slot * 2 + 1] = low;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.noel.index;
+
+import burp.api.montoya.http.message.responses.HttpResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional n-gram index over req.body, resp.body and url, used to narrow `like` conditions.
+ * Indexing runs on a background thread so proxied traffic is never slowed down,
+ * entries waiting for the indexer are returned as candidates until they are done.
+ */
+public class FullTextIndex implements HistoryListener {
+    public static final List<String> INDEXED_FIELDS = List.of("req.body", "resp.body", "url");
+
+    private final Map<String, NgramIndex> indexes = new ConcurrentHashMap<>();
+    // Entry id -> number of indexing tasks still queued for it
+    private final Map<Integer, Integer> pending = new ConcurrentHashMap<>();
+    private final AtomicLong memoryUsed = new AtomicLong();
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "BurpSuiteMCP-FullText-Indexer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public FullTextIndex(long maxMemoryBytes, int maxDocumentBytes) {
+        for (String field : INDEXED_FIELDS) {
+            indexes.put(field, new NgramIndex(memoryUsed, maxMemoryBytes, maxDocumentBytes));
+        }
+    }
+
+    public boolean isIndexed(String field) {
+        return indexes.containsKey(field);
+    }
+
+    /**
+     * Ascending ids of the entries whose field may contain the needle, or null if the index can't narrow it
+     */
+    public int[] candidates(String field, String needle) {
+        int[] candidates = indexes.get(field).candidates(needle);
+        if (candidates == null) {
+            return null;
+        }
+        int[] waiting = pending.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        return waiting.length == 0 ? candidates : NgramIndex.union(candidates, waiting);
+    }
+
+    /**
+     * True when no entry is waiting for the indexer
+     */
+    public boolean isIdle() {
+        return pending.isEmpty();
+    }
+
+    public long memoryUsed() {
+        return memoryUsed.get();
+    }
+
+    public void shutdown() {
+        indexer.shutdownNow();
+    }
+
+    /**
+     * Marked pending before the entry is visible, a query running before the indexer gets to it still scans it
+     */
+    @Override
+    public void beforeEntryAdded(HistoryEntry entry) {
+        pending.merge(entry.id(), 1, Integer::sum);
+    }
+
+    @Override
+    public void beforeResponseAttached(HistoryEntry entry) {
+        pending.merge(entry.id(), 1, Integer::sum);
+    }
+
+    @Override
+    public void entryAdded(HistoryEntry entry) {
+        // Backfilled entries already carry their response
+        submit(entry, true, entry.response() != null);
+    }
+
+    @Override
+    public void responseAttached(HistoryEntry entry) {
+        submit(entry, false, true);
+    }
+
+    /**
+     * Index the entry in the background, the caller marked it pending already
+     */
+    private void submit(HistoryEntry entry, boolean withRequest, boolean withResponse) {
+        indexer.execute(() -> {
+            try {
+                // Stored bodies spare a round trip through Burp's history item
+                StoredRecord stored = entry.stored();
+                if (withRequest) {
+                    byte[] body = stored != null ? stored.requestBody() : null;
+                    if (body == null) {
+                        body = entry.request().body().getBytes();
+                    }
+                    String url = stored != null ? stored.url() : entry.request().url();
+                    indexes.get("req.body").add(entry.id(), body);
+                    indexes.get("url").add(entry.id(), url.getBytes(StandardCharsets.ISO_8859_1));
+                }
+                byte[] responseBody = stored != null ? stored.responseBody() : null;
+                if (withResponse && responseBody != null) {
+                    indexes.get("resp.body").add(entry.id(), responseBody);
+                } else if (withResponse) {
+                    HttpResponse response = entry.response();
+                    if (response != null) {
+                        indexes.get("resp.body").add(entry.id(), response.body().getBytes());
+                    }
+                }
+            } finally {
+                pending.computeIfPresent(entry.id(), (id, count) -> count == 1 ? null : count - 1);
+            }
+        });
+    }
+}
@@ -0,0 +1,270 @@
+package com.noel.index;
+
+import burp.api.montoya.http.message.ContentType;
+import burp.api.montoya.http.message.requests.HttpRequest;
+import burp.api.montoya.http.message.responses.HttpResponse;
+import com.noel.Log;
+import com.noel.metrics.Metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The small fixed-width fields of every entry in primitive arrays indexed by id:
+ * host, method and mime type as ids into per-column dictionaries, status code, request content type
+ * and the message lengths. 0 in a column means the value is not known (yet), callers then read the message.
+ *
+ * With compression enabled, the raw messages of live entries are moved into {@link MessageBlocks}
+ * on a background thread once their response arrived, and are only decompressed when a row reaches
+ * a condition or a projection that needs the message itself.
+ */
+public class HistoryColumns implements HistoryListener {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final ContentType[] CONTENT_TYPES = ContentType.values();
+    private static final int BYTES_PER_ROW = Integer.BYTES + Byte.BYTES + Short.BYTES + Byte.BYTES + Short.BYTES + Integer.BYTES * 2;
+
+    private final Dictionary hosts = new Dictionary(Integer.MAX_VALUE);
+    private final Dictionary methods = new Dictionary(0xFF);
+    private final Dictionary mimeTypes = new Dictionary(0xFFFF);
+
+    private volatile int[] hostIds = new int[INITIAL_CAPACITY];
+    private volatile byte[] methodIds = new byte[INITIAL_CAPACITY];
+    private volatile short[] statusCodes = new short[INITIAL_CAPACITY];
+    private volatile byte[] requestContentTypes = new byte[INITIAL_CAPACITY];
+    private volatile short[] mimeTypeIds = new short[INITIAL_CAPACITY];
+    // Lengths are stored plus one so 0 stays "unknown"
+    private volatile int[] requestLengths = new int[INITIAL_CAPACITY];
+    private volatile int[] responseLengths = new int[INITIAL_CAPACITY];
+
+    private volatile MessageBlocks blocks;
+    private ExecutorService compressor;
+
+    /**
+     * Heap bytes taken by the columns, without the dictionaries
+     */
+    public long memoryBytes() {
+        return (long) hostIds.length * BYTES_PER_ROW;
+    }
+
+    /**
+     * Move the messages of live entries off the heap, compressed, using at most the given off-heap bytes
+     */
+    public synchronized void enableCompression(long maxBytes) {
+        MessageBlocks blocks = new MessageBlocks(maxBytes);
+        compressor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BurpSuiteMCP-Message-Compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.blocks = blocks;
+        Metrics.gauge("messages.compressed", blocks::messageCount);
+        Metrics.gauge("messages.bytes.raw", blocks::rawBytes);
+        Metrics.gauge("messages.bytes.offheap", blocks::storedBytes);
+        Metrics.gauge("messages.rejected", blocks::rejectedCount);
+        // Messages are stored in pairs, one request and one response per item
+        Metrics.gauge("messages.bytes.savedPer100k", () -> {
+            long items = blocks.messageCount() / 2;
+            return items == 0 ? 0 : (blocks.rawBytes() - blocks.storedBytes()) * 100_000 / items;
+        });
+    }
+
+    /**
+     * Stop compressing and release the off-heap blocks, only once no reader uses the entries any more
+     */
+    public synchronized void shutdown() {
+        if (compressor != null) {
+            compressor.shutdownNow();
+        }
+        if (blocks != null) {
+            blocks.close();
+        }
+    }
+
+    public String host(int id) {
+        int[] column = hostIds;
+        return id < column.length ? hosts.value(column[id]) : null;
+    }
+
+    public String method(int id) {
+        byte[] column = methodIds;
+        return id < column.length ? methods.value(column[id] & 0xFF) : null;
+    }
+
+    /**
+     * The status code, 0 if unknown or there is no response
+     */
+    public short statusCode(int id) {
+        short[] column = statusCodes;
+        return id < column.length ? column[id] : 0;
+    }
+
+    public ContentType requestContentType(int id) {
+        byte[] column = requestContentTypes;
+        int value = id < column.length ? column[id] : 0;
+        return value > 0 ? CONTENT_TYPES[value - 1] : null;
+    }
+
+    public String mimeType(int id) {
+        short[] column = mimeTypeIds;
+        return id < column.length ? mimeTypes.value(column[id] & 0xFFFF) : null;
+    }
+
+    /**
+     * Length of the request message, -1 if unknown
+     */
+    public int requestLength(int id) {
+        int[] column = requestLengths;
+        return id < column.length ? column[id] - 1 : -1;
+    }
+
+    /**
+     * Length of the response message, -1 if unknown or there is no response
+     */
+    public int responseLength(int id) {
+        int[] column = responseLengths;
+        return id < column.length ? column[id] - 1 : -1;
+    }
+
+    /**
+     * The columns are filled before the entry is published, the secondary index posts it from them
+     */
+    @Override
+    public void beforeEntryAdded(HistoryEntry entry) {
+        StoredRecord stored = entry.stored();
+        if (stored != null) {
+            setRequest(entry.id(), stored.host(), stored.method(), stored.requestContentType(), stored.requestLength());
+            if (stored.hasResponse()) {
+                setResponse(entry.id(), stored.statusCode(), stored.mimeType(), stored.responseLength());
+                return;
+            }
+        } else {
+            // Backfilled messages are not copied out of Burp just for their length
+            HttpRequest request = entry.request();
+            setRequest(entry.id(), request.httpService().host(), request.method().toUpperCase(), request.contentType(), -1);
+        }
+        if (entry.response() != null) {
+            beforeResponseAttached(entry);
+        }
+    }
+
+    @Override
+    public void beforeResponseAttached(HistoryEntry entry) {
+        HttpResponse response = entry.response();
+        setResponse(entry.id(), response.statusCode(), response.mimeType().description(), -1);
+    }
+
+    @Override
+    public void entryAdded(HistoryEntry entry) {
+    }
+
+    @Override
+    public void responseAttached(HistoryEntry entry) {
+        MessageBlocks blocks = this.blocks;
+        if (blocks != null && entry.isLive()) {
+            compressor.execute(() -> compress(entry, blocks));
+        }
+    }
+
+    private void compress(HistoryEntry entry, MessageBlocks blocks) {
+        try {
+            HttpRequest request = entry.request();
+            HttpResponse response = entry.response();
+            byte[] requestBytes = request.toByteArray().getBytes();
+            byte[] responseBytes = response.toByteArray().getBytes();
+            setLengths(entry.id(), requestBytes.length, responseBytes.length);
+
+            String host = request.httpService().host();
+            long requestHandle = blocks.put(host, requestBytes);
+            long responseHandle = requestHandle < 0 ? -1 : blocks.put(host, responseBytes);
+            if (responseHandle >= 0) {
+                entry.compact(new HistoryEntry.Compacted(blocks, request.httpService(), requestHandle, responseHandle));
+            }
+        } catch (RuntimeException e) {
+            Log.error("Can not compress the messages of history item " + entry.id(), e);
+        }
+    }
+
+    private synchronized void setRequest(int id, String host, String method, ContentType contentType, int length) {
+        ensureCapacity(id);
+        hostIds[id] = hosts.id(host);
+        methodIds[id] = (byte) methods.id(method);
+        requestContentTypes[id] = (byte) (contentType != null ? contentType.ordinal() + 1 : 0);
+        requestLengths[id] = length + 1;
+    }
+
+    private synchronized void setResponse(int id, int statusCode, String mimeType, int length) {
+        ensureCapacity(id);
+        statusCodes[id] = (short) statusCode;
+        mimeTypeIds[id] = (short) mimeTypes.id(mimeType);
+        if (length >= 0) {
+            responseLengths[id] = length + 1;
+        }
+    }
+
+    private synchronized void setLengths(int id, int requestLength, int responseLength) {
+        ensureCapacity(id);
+        requestLengths[id] = requestLength + 1;
+        responseLengths[id] = responseLength + 1;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id < hostIds.length) {
+            return;
+        }
+        int capacity = Math.max(hostIds.length * 2, id + 1);
+        requestLengths = Arrays.copyOf(requestLengths, capacity);
+        responseLengths = Arrays.copyOf(responseLengths, capacity);
+        methodIds = Arrays.copyOf(methodIds, capacity);
+        statusCodes = Arrays.copyOf(statusCodes, capacity);
+        requestContentTypes = Arrays.copyOf(requestContentTypes, capacity);
+        mimeTypeIds = Arrays.copyOf(mimeTypeIds, capacity);
+        hostIds = Arrays.copyOf(hostIds, capacity);
+    }
+
+    /**
+     * Values of a column and their ids, 0 is reserved for unknown.
+     * Values past the largest id the column can hold are stored as unknown.
+     */
+    private static class Dictionary {
+        private final int maxId;
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[16];
+        private int size = 1;
+
+        Dictionary(int maxId) {
+            this.maxId = maxId;
+        }
+
+        int id(String value) {
+            if (value == null) {
+                return 0;
+            }
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            synchronized (this) {
+                id = ids.get(value);
+                if (id == null) {
+                    if (size > maxId) {
+                        return 0;
+                    }
+                    String[] current = size == values.length ? Arrays.copyOf(values, size * 2) : values;
+                    current[size] = value;
+                    values = current;
+                    id = size++;
+                    ids.put(value, id);
+                }
+                return id;
+            }
+        }
+
+        String value(int id) {
+            String[] current = values;
+            return id > 0 && id < current.length ? current[id] : null;
+        }
+    }
+}
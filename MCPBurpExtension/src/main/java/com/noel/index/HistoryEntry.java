@@ -0,0 +1,238 @@
+package com.noel.index;
+
+import burp.api.montoya.core.ByteArray;
+import burp.api.montoya.http.HttpService;
+import burp.api.montoya.http.message.HttpRequestResponse;
+import burp.api.montoya.http.message.requests.HttpRequest;
+import burp.api.montoya.http.message.responses.HttpResponse;
+import burp.api.montoya.proxy.ProxyHttpRequestResponse;
+import burp.api.montoya.proxy.ProxyWebSocketMessage;
+
+/**
+ * One item of the indexed proxy history.
+ * Backfilled items keep a reference to Burp's own history item and resolve the messages lazily,
+ * live items hold the intercepted request and get their response attached once it arrives.
+ * Entries of the other tables keep their site map item, or their WebSocket message with the upgrade request
+ * as its request.
+ */
+public class HistoryEntry {
+    private final int id;
+    private final ProxyHttpRequestResponse item;
+    private final HttpRequestResponse siteMapItem;
+    private final ProxyWebSocketMessage message;
+    private final StoredRecord stored;
+    private volatile HttpRequest request;
+    private volatile HttpResponse response;
+    // Set once the messages of a live entry were moved into off-heap blocks
+    private volatile Compacted compacted;
+    // Request fingerprints by RequestFingerprint.Keys ordinal, computed on first use since requests never change
+    private volatile long[] fingerprints;
+    private volatile int fingerprinted;
+
+    HistoryEntry(int id, ProxyHttpRequestResponse item, StoredRecord stored) {
+        this.id = id;
+        this.item = item;
+        this.siteMapItem = null;
+        this.message = null;
+        this.request = null;
+        this.stored = stored;
+    }
+
+    HistoryEntry(int id, HttpRequest request) {
+        this.id = id;
+        this.item = null;
+        this.siteMapItem = null;
+        this.message = null;
+        this.request = request;
+        this.stored = null;
+    }
+
+    HistoryEntry(int id, HttpRequestResponse siteMapItem) {
+        this.id = id;
+        this.item = null;
+        this.siteMapItem = siteMapItem;
+        this.message = null;
+        this.request = null;
+        this.stored = null;
+    }
+
+    HistoryEntry(int id, ProxyWebSocketMessage message) {
+        this.id = id;
+        this.item = null;
+        this.siteMapItem = null;
+        this.message = message;
+        this.request = null;
+        this.stored = null;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public HttpRequest request() {
+        if (item != null) {
+            return item.request();
+        }
+        if (siteMapItem != null) {
+            return siteMapItem.request();
+        }
+        if (message != null) {
+            return message.upgradeRequest();
+        }
+        HttpRequest current = request;
+        if (current != null) {
+            return current;
+        }
+        Compacted messages = compacted;
+        return messages != null ? messages.request() : null;
+    }
+
+    public HttpResponse response() {
+        // A backfilled item still waiting for its response gets it attached like a live one
+        HttpResponse current = response;
+        if (current != null) {
+            return current;
+        }
+        if (item != null) {
+            return item.response();
+        }
+        if (siteMapItem != null) {
+            return siteMapItem.response();
+        }
+        Compacted messages = compacted;
+        return messages != null ? messages.response() : null;
+    }
+
+    /**
+     * The WebSocket message of an entry of the websocket table, null for HTTP entries
+     */
+    public ProxyWebSocketMessage webSocketMessage() {
+        return message;
+    }
+
+    /**
+     * The columns persisted by the {@link HistoryStore} in an earlier session, null if the item was not stored.
+     * Reading them does not go through Burp's history item.
+     */
+    public StoredRecord stored() {
+        return stored;
+    }
+
+    /**
+     * True once the entry will not change anymore: backfilled with its response, or with its response attached
+     */
+    boolean isSettled() {
+        if (response != null || compacted != null) {
+            return true;
+        }
+        return item != null ? item.hasResponse() : !isLive();
+    }
+
+    /**
+     * True if the entry was captured by the proxy listener rather than backfilled from Burp's history
+     */
+    boolean isLive() {
+        return item == null && siteMapItem == null && message == null;
+    }
+
+    /**
+     * High half of the request fingerprint for the given dedup keys
+     */
+    public long fingerprintHigh(RequestFingerprint.Keys keys) {
+        if (stored != null && keys == RequestFingerprint.Keys.FULL) {
+            return stored.fingerprintHigh();
+        }
+        return fingerprints(keys)[keys.ordinal() * 2];
+    }
+
+    /**
+     * Low half of the request fingerprint for the given dedup keys
+     */
+    public long fingerprintLow(RequestFingerprint.Keys keys) {
+        if (stored != null && keys == RequestFingerprint.Keys.FULL) {
+            return stored.fingerprintLow();
+        }
+        return fingerprints(keys)[keys.ordinal() * 2 + 1];
+    }
+
+    private long[] fingerprints(RequestFingerprint.Keys keys) {
+        int bit = 1 << keys.ordinal();
+        if ((fingerprinted & bit) != 0) {
+            return fingerprints;
+        }
+        synchronized (this) {
+            if ((fingerprinted & bit) == 0) {
+                long[] values = fingerprints != null ? fingerprints : new long[RequestFingerprint.Keys.values().length * 2];
+                RequestFingerprint.compute(request(), keys, values, keys.ordinal() * 2);
+                fingerprints = values;
+                fingerprinted |= bit;
+            }
+            return fingerprints;
+        }
+    }
+
+    void attachResponse(HttpResponse response) {
+        this.response = response;
+    }
+
+    /**
+     * Drop the message objects, from now on they are decompressed from the blocks when needed
+     */
+    void compact(Compacted compacted) {
+        this.compacted = compacted;
+        this.request = null;
+        this.response = null;
+    }
+
+    /**
+     * Handles of the compressed messages of a live entry.
+     * The messages last decompressed are kept per thread, a row usually reads several fields of the same message.
+     */
+    static final class Compacted {
+        private static final ThreadLocal<Decoded> DECODED = ThreadLocal.withInitial(Decoded::new);
+
+        private final MessageBlocks blocks;
+        private final HttpService service;
+        private final long requestHandle;
+        private final long responseHandle;
+
+        Compacted(MessageBlocks blocks, HttpService service, long requestHandle, long responseHandle) {
+            this.blocks = blocks;
+            this.service = service;
+            this.requestHandle = requestHandle;
+            this.responseHandle = responseHandle;
+        }
+
+        HttpRequest request() {
+            Decoded decoded = decoded();
+            if (decoded.request == null) {
+                decoded.request = HttpRequest.httpRequest(service, ByteArray.byteArray(blocks.get(requestHandle)));
+            }
+            return decoded.request;
+        }
+
+        HttpResponse response() {
+            Decoded decoded = decoded();
+            if (decoded.response == null) {
+                decoded.response = HttpResponse.httpResponse(ByteArray.byteArray(blocks.get(responseHandle)));
+            }
+            return decoded.response;
+        }
+
+        private Decoded decoded() {
+            Decoded decoded = DECODED.get();
+            if (decoded.owner != this) {
+                decoded.owner = this;
+                decoded.request = null;
+                decoded.response = null;
+            }
+            return decoded;
+        }
+    }
+
+    private static final class Decoded {
+        private Compacted owner;
+        private HttpRequest request;
+        private HttpResponse response;
+    }
+}
@@ -0,0 +1,221 @@
+package com.noel.index;
+
+import burp.api.montoya.http.message.HttpRequestResponse;
+import burp.api.montoya.http.message.requests.HttpRequest;
+import burp.api.montoya.http.message.responses.HttpResponse;
+import burp.api.montoya.proxy.ProxyHttpRequestResponse;
+import burp.api.montoya.proxy.ProxyWebSocketMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only, id-keyed index of the proxy history, or of the items of another table.
+ * Ids are dense and follow arrival order, so the newest item always has id size() - 1.
+ * Writers are serialized, readers never lock and never copy: they read size() first
+ * and every id below it is guaranteed to be visible.
+ */
+public class HistoryIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private volatile HistoryEntry[] entries = new HistoryEntry[INITIAL_CAPACITY];
+    private volatile int size;
+
+    // Ids in the order their responses were attached, lets cached results find the entries that changed
+    private int[] attachLog = new int[INITIAL_CAPACITY];
+    private volatile int attachCount;
+
+    private final List<HistoryListener> listeners = new CopyOnWriteArrayList<>();
+    private final HistoryColumns columns = new HistoryColumns();
+    private final SecondaryIndex secondaryIndex = new SecondaryIndex(columns);
+    private volatile FullTextIndex fullTextIndex;
+    private volatile ParsedFieldCache parsedFieldCache;
+    private HistoryStore store;
+    private final long generation;
+
+    public HistoryIndex() {
+        this(0);
+    }
+
+    /**
+     * @param generation tells apart the indexes a table is built into, the ids of one mean nothing in another
+     */
+    public HistoryIndex(long generation) {
+        this.generation = generation;
+        // The columns go first, the secondary index reads its values from them
+        addListener(columns);
+        addListener(secondaryIndex);
+    }
+
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Listeners are called on the proxy thread that changed the history, keep them cheap
+     */
+    public void addListener(HistoryListener listener) {
+        listeners.add(listener);
+    }
+
+    public SecondaryIndex secondaryIndex() {
+        return secondaryIndex;
+    }
+
+    public HistoryColumns columns() {
+        return columns;
+    }
+
+    /**
+     * Keep the messages of live entries compressed off the heap, must be called before {@link #backfill}
+     */
+    public void enableMessageCompression(long maxOffHeapBytes) {
+        columns.enableCompression(maxOffHeapBytes);
+    }
+
+    /**
+     * Turn on the n-gram index for `like` conditions, must be called before {@link #backfill}
+     */
+    public void enableFullTextIndex(long maxMemoryBytes, int maxDocumentBytes) {
+        fullTextIndex = new FullTextIndex(maxMemoryBytes, maxDocumentBytes);
+        addListener(fullTextIndex);
+    }
+
+    /**
+     * The n-gram index, or null when it is disabled
+     */
+    public FullTextIndex fullTextIndex() {
+        return fullTextIndex;
+    }
+
+    /**
+     * Keep the values of header, parameter and JSON fields once they are parsed, must be called before querying
+     */
+    public void enableParsedFieldCache(int maxValues) {
+        parsedFieldCache = new ParsedFieldCache(maxValues);
+    }
+
+    /**
+     * The cache of parsed field values, or null when it is disabled
+     */
+    public ParsedFieldCache parsedFieldCache() {
+        return parsedFieldCache;
+    }
+
+    public void close() {
+        columns.shutdown();
+        if (fullTextIndex != null) {
+            fullTextIndex.shutdown();
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * One-time load of the items Burp captured before the extension was loaded
+     */
+    public synchronized void backfill(List<ProxyHttpRequestResponse> history) {
+        for (ProxyHttpRequestResponse item : history) {
+            add(new HistoryEntry(size, item, null));
+        }
+    }
+
+    /**
+     * Like {@link #backfill(List)}, but the items already in the store are indexed from their stored columns
+     * instead of going through Burp's history items. The store then keeps persisting new entries in the background.
+     */
+    public synchronized void backfill(List<ProxyHttpRequestResponse> history, HistoryStore store, long syncIntervalMillis) throws IOException {
+        int stored = store.reconcile(history);
+        for (ProxyHttpRequestResponse item : history) {
+            add(new HistoryEntry(size, item, size < stored ? store.record(size) : null));
+        }
+        this.store = store;
+        store.start(this, syncIntervalMillis);
+    }
+
+    /**
+     * Index the site map items from the given position on, the ones before it are indexed already
+     */
+    public synchronized void addSiteMapItems(List<HttpRequestResponse> items, int from) {
+        for (int i = from; i < items.size(); i++) {
+            add(new HistoryEntry(size, items.get(i)));
+        }
+    }
+
+    /**
+     * Index the WebSocket messages from the given position on, the ones before it are indexed already
+     */
+    public synchronized void addWebSocketMessages(List<ProxyWebSocketMessage> messages, int from) {
+        for (int i = from; i < messages.size(); i++) {
+            add(new HistoryEntry(size, messages.get(i)));
+        }
+    }
+
+    /**
+     * Append a live request, its response is attached later by {@link #attachResponse}
+     */
+    public synchronized HistoryEntry append(HttpRequest request) {
+        HistoryEntry entry = new HistoryEntry(size, request);
+        add(entry);
+        return entry;
+    }
+
+    public void attachResponse(HistoryEntry entry, HttpResponse response) {
+        // The listeners read the response from the entry, it is published to cached results by the attach log
+        entry.attachResponse(response);
+        for (HistoryListener listener : listeners) {
+            listener.beforeResponseAttached(entry);
+        }
+        synchronized (this) {
+            if (attachCount == attachLog.length) {
+                attachLog = Arrays.copyOf(attachLog, attachLog.length * 2);
+            }
+            attachLog[attachCount] = entry.id();
+            attachCount = attachCount + 1;
+        }
+        for (HistoryListener listener : listeners) {
+            listener.responseAttached(entry);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of responses attached to live entries so far
+     */
+    public int attachCount() {
+        return attachCount;
+    }
+
+    /**
+     * Ids of the entries that got their response after the given attach count
+     */
+    public synchronized int[] attachedSince(int attachSeq) {
+        return Arrays.copyOfRange(attachLog, Math.min(attachSeq, attachCount), attachCount);
+    }
+
+    public HistoryEntry get(int id) {
+        return entries[id];
+    }
+
+    private void add(HistoryEntry entry) {
+        HistoryEntry[] current = entries;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+            entries = current;
+        }
+        current[size] = entry;
+        for (HistoryListener listener : listeners) {
+            listener.beforeEntryAdded(entry);
+        }
+        size = size + 1;
+        for (HistoryListener listener : listeners) {
+            listener.entryAdded(entry);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.noel.index;
+
+/**
+ * Notified by {@link HistoryIndex} when the history changes
+ */
+public interface HistoryListener {
+
+    /**
+     * A new entry is about to become visible to queries, called before {@link #entryAdded}
+     */
+    default void beforeEntryAdded(HistoryEntry entry) {
+    }
+
+    /**
+     * The response was attached to the entry but is not in the attach log yet, called before {@link #responseAttached}
+     */
+    default void beforeResponseAttached(HistoryEntry entry) {
+    }
+
+    /**
+     * A new entry was appended, its response may not be there yet
+     */
+    void entryAdded(HistoryEntry entry);
+
+    /**
+     * The response of an entry became available
+     */
+    void responseAttached(HistoryEntry entry);
+}
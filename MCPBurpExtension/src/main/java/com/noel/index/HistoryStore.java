@@ -0,0 +1,404 @@
+package com.noel.index;
+
+import burp.api.montoya.core.ByteArray;
+import burp.api.montoya.http.message.ContentType;
+import burp.api.montoya.http.message.requests.HttpRequest;
+import burp.api.montoya.http.message.responses.HttpResponse;
+import burp.api.montoya.proxy.ProxyHttpRequestResponse;
+import com.noel.Log;
+import com.noel.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Append-only on-disk copy of the extracted history columns, so a restart does not have to go through
+ * Burp's history item by item before queries on the indexed fields are fast again.
+ *
+ * Records are appended in id order to segment files of at most 65536 records, each prefixed with its length.
+ * The checkpoint file names the generation directory holding the segments, the record count and the end of the
+ * last segment that were forced to disk, anything written after it is cut off when the store is opened.
+ * Segments are mapped read-only on open and the records are read in place, see {@link StoredRecord}.
+ * A rebuild starts a new generation instead of deleting the mapped segments, which some platforms refuse,
+ * older generations are removed as soon as nothing maps them.
+ */
+public class HistoryStore implements AutoCloseable {
+    private static final int MAGIC = 0x424D4353;
+    private static final int VERSION = 2;
+    private static final int CHECKPOINT_SIZE = 24;
+    private static final int HEADER_SIZE = 8;
+    private static final int SEGMENT_RECORDS = 65536;
+    // A segment is mapped as a single buffer, which is limited to 2GB
+    private static final long SEGMENT_MAX_BYTES = 1L << 30;
+    // Live entries still waiting for their response are stored without it once this many newer entries exist
+    private static final int UNSETTLED_WINDOW = 1000;
+
+    private final Path directory;
+    private final boolean storeBodies;
+    private final int maxBodyBytes;
+
+    // Records found when the store was opened, the ones appended since are only on disk
+    private final List<StoredRecord> records = new ArrayList<>();
+    private int size;
+    private int generation;
+    private int segment;
+    private int segmentRecords;
+    private FileChannel writer;
+
+    private HistoryIndex index;
+    private ScheduledExecutorService syncer;
+
+    /**
+     * Open the store in the given directory, creating it if needed
+     *
+     * @param storeBodies also store the request and response bodies, deflated
+     */
+    public HistoryStore(Path directory, boolean storeBodies, int maxBodyBytes) throws IOException {
+        this.directory = directory;
+        this.storeBodies = storeBodies;
+        this.maxBodyBytes = maxBodyBytes;
+        Files.createDirectories(directory);
+        open();
+        Metrics.gauge("store.records", this::size);
+    }
+
+    /**
+     * Number of records persisted so far
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * The record of the given id, only for the records that were there when the store was opened
+     */
+    public StoredRecord record(int id) {
+        return id < records.size() ? records.get(id) : null;
+    }
+
+    /**
+     * Number of leading history items the stored records can be used for.
+     * Burp's history only grows, so the store is valid if it is not longer than the history
+     * and a sample of its records still has the request fingerprint of the item with the same id.
+     * Otherwise, e.g. when items were deleted, the store is emptied and rebuilt from the history.
+     */
+    public synchronized int reconcile(List<ProxyHttpRequestResponse> history) throws IOException {
+        int stored = records.size();
+        if (stored == 0) {
+            return 0;
+        }
+        if (stored > history.size() || !matches(history, 0) || !matches(history, stored / 2) || !matches(history, stored - 1)) {
+            Log.warn("The history store does not match the proxy history, rebuilding it");
+            reset();
+            return 0;
+        }
+        return stored;
+    }
+
+    /**
+     * Persist the history on a background thread, every interval and once more on {@link #close()}
+     */
+    public synchronized void start(HistoryIndex index, long intervalMillis) {
+        this.index = index;
+        syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BurpSuiteMCP-History-Store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(() -> {
+            try {
+                sync(index);
+            } catch (Exception e) {
+                Log.error("Can not write the history store", e);
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Append the entries that were not stored yet, in id order, and checkpoint.
+     * Stops at the first live entry still waiting for its response unless it is old enough to give up on it.
+     */
+    public synchronized void sync(HistoryIndex index) throws IOException {
+        int total = index.size();
+        int appended = 0;
+        while (size < total) {
+            HistoryEntry entry = index.get(size);
+            if (!entry.isSettled() && size >= total - UNSETTLED_WINDOW) {
+                break;
+            }
+            append(entry);
+            appended++;
+        }
+        if (appended > 0) {
+            checkpoint();
+        }
+    }
+
+    @Override
+    public void close() {
+        ScheduledExecutorService syncer;
+        synchronized (this) {
+            syncer = this.syncer;
+            this.syncer = null;
+        }
+        if (syncer != null) {
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            try {
+                if (index != null) {
+                    sync(index);
+                }
+                if (writer != null) {
+                    writer.close();
+                    writer = null;
+                }
+            } catch (IOException e) {
+                Log.error("Can not close the history store", e);
+            }
+        }
+    }
+
+    private boolean matches(List<ProxyHttpRequestResponse> history, int id) {
+        long[] fingerprint = new long[2];
+        RequestFingerprint.compute(history.get(id).request(), RequestFingerprint.Keys.FULL, fingerprint, 0);
+        StoredRecord record = records.get(id);
+        return record.fingerprintHigh() == fingerprint[0] && record.fingerprintLow() == fingerprint[1];
+    }
+
+    private void open() throws IOException {
+        int count = 0;
+        int lastSegment = 0;
+        long lastSegmentBytes = HEADER_SIZE;
+        Path checkpoint = directory.resolve("checkpoint");
+        if (Files.exists(checkpoint)) {
+            ByteBuffer state = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+            if (state.remaining() == CHECKPOINT_SIZE && state.getInt() == MAGIC && state.getInt() == VERSION) {
+                generation = state.getInt();
+                count = state.getInt();
+                lastSegment = state.getInt();
+                lastSegmentBytes = state.getInt();
+            }
+        }
+        Files.createDirectories(generationPath(generation));
+        deleteOtherGenerations();
+
+        // Drop whatever was written after the checkpoint
+        for (int i = lastSegment + 1; Files.exists(segmentPath(i)); i++) {
+            Files.delete(segmentPath(i));
+        }
+        for (int i = 0; i <= lastSegment && count > 0; i++) {
+            try (FileChannel channel = FileChannel.open(segmentPath(i), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (i == lastSegment) {
+                    channel.truncate(lastSegmentBytes);
+                }
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    throw new IOException("Not a history store segment: " + segmentPath(i));
+                }
+                int segmentStart = records.size();
+                for (int position = HEADER_SIZE; position < buffer.limit() && records.size() < count; ) {
+                    int length = buffer.getInt(position);
+                    records.add(new StoredRecord(buffer, position + Integer.BYTES));
+                    position += Integer.BYTES + length;
+                }
+                segmentRecords = records.size() - segmentStart;
+            } catch (IOException e) {
+                Log.error("The history store is damaged, rebuilding it", e);
+                reset();
+                return;
+            }
+        }
+        if (records.size() != count) {
+            Log.warn("The history store is incomplete, rebuilding it");
+            reset();
+            return;
+        }
+        size = count;
+        segment = lastSegment;
+        openWriter(count == 0);
+    }
+
+    /**
+     * Empty the store by switching to a new generation, the records may still map the segments of the current one
+     */
+    private void reset() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        records.clear();
+        generation++;
+        Files.createDirectories(generationPath(generation));
+        size = 0;
+        segment = 0;
+        segmentRecords = 0;
+        openWriter(true);
+        checkpoint();
+        deleteOtherGenerations();
+    }
+
+    /**
+     * Remove the segments of older generations, the ones still mapped are left for the next time the store is opened
+     */
+    private void deleteOtherGenerations() {
+        Path current = generationPath(generation);
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(directory, "generation-*")) {
+            for (Path child : children) {
+                if (!child.equals(current)) {
+                    deleteGeneration(child);
+                }
+            }
+            // Segments of the first store version were kept in the directory itself
+            try (DirectoryStream<Path> legacy = Files.newDirectoryStream(directory, "segment-*.seg")) {
+                for (Path segment : legacy) {
+                    Files.delete(segment);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Can not clean up the history store generations: " + e);
+        }
+    }
+
+    private static void deleteGeneration(Path generation) {
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(generation)) {
+            for (Path segment : segments) {
+                Files.delete(segment);
+            }
+            Files.delete(generation);
+        } catch (IOException e) {
+            Log.debug("Can not delete the old history store generation yet: " + generation + ", " + e);
+        }
+    }
+
+    private void openWriter(boolean fresh) throws IOException {
+        writer = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (fresh) {
+            writer.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            writer.write(header, 0);
+            segmentRecords = 0;
+        }
+        writer.position(writer.size());
+    }
+
+    private void append(HistoryEntry entry) throws IOException {
+        if (segmentRecords == SEGMENT_RECORDS || writer.size() >= SEGMENT_MAX_BYTES) {
+            writer.force(false);
+            writer.close();
+            segment++;
+            openWriter(true);
+        }
+        byte[] record = encode(entry);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + record.length).putInt(record.length).put(record);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            writer.write(buffer);
+        }
+        segmentRecords++;
+        size++;
+    }
+
+    private void checkpoint() throws IOException {
+        writer.force(false);
+        ByteBuffer state = ByteBuffer.allocate(CHECKPOINT_SIZE).putInt(MAGIC).putInt(VERSION)
+                .putInt(generation).putInt(size).putInt(segment).putInt((int) writer.size());
+        Path temp = directory.resolve("checkpoint.tmp");
+        Files.write(temp, state.array());
+        Files.move(temp, directory.resolve("checkpoint"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte[] encode(HistoryEntry entry) throws IOException {
+        HttpRequest request = entry.request();
+        HttpResponse response = entry.response();
+        byte[] requestBody = storeBodies ? deflate(request.body()) : null;
+        byte[] responseBody = storeBodies && response != null ? deflate(response.body()) : null;
+
+        int flags = (response != null ? StoredRecord.HAS_RESPONSE : 0)
+                | (requestBody != null ? StoredRecord.HAS_REQUEST_BODY : 0)
+                | (responseBody != null ? StoredRecord.HAS_RESPONSE_BODY : 0);
+        ContentType contentType = request.contentType();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(flags);
+        out.writeShort(response != null ? response.statusCode() : -1);
+        out.writeByte(contentType != null ? contentType.ordinal() : -1);
+        out.writeLong(entry.fingerprintHigh(RequestFingerprint.Keys.FULL));
+        out.writeLong(entry.fingerprintLow(RequestFingerprint.Keys.FULL));
+        out.writeInt(request.toByteArray().length());
+        out.writeInt(response != null ? response.toByteArray().length() : -1);
+        writeBytes(out, request.httpService().host().getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, request.method().toUpperCase().getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, request.url().getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, response != null ? response.mimeType().description().getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        if (requestBody != null) {
+            writeBytes(out, requestBody);
+        }
+        if (responseBody != null) {
+            writeBytes(out, responseBody);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    /**
+     * The uncompressed length followed by the deflated bytes, or null if the body is too large to store
+     */
+    private byte[] deflate(ByteArray body) {
+        if (body.length() > maxBodyBytes) {
+            return null;
+        }
+        byte[] input = body.getBytes();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 4 + 16);
+            new DataOutputStream(output).writeInt(input.length);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                output.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return output.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private Path generationPath(int generation) {
+        return directory.resolve(String.format("generation-%06d", generation));
+    }
+
+    private Path segmentPath(int segment) {
+        return generationPath(generation).resolve(String.format("segment-%06d.seg", segment));
+    }
+}
@@ -0,0 +1,72 @@
+package com.noel.index;
+
+import java.util.Arrays;
+
+/**
+ * Growable, sorted list of primitive history ids used as a posting list.
+ * Ids mostly arrive in ascending order, out of order ids (late responses) are inserted from the tail.
+ */
+public class IntList {
+    private int[] values;
+    private int size;
+
+    public IntList() {
+        this(8);
+    }
+
+    public IntList(int capacity) {
+        this.values = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Insert a value keeping the list sorted, duplicates are ignored
+     */
+    public synchronized void insertSorted(int value) {
+        int position = size;
+        while (position > 0 && values[position - 1] > value) {
+            position--;
+        }
+        if (position > 0 && values[position - 1] == value) {
+            return;
+        }
+        if (size == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        System.arraycopy(values, position, values, position + 1, size - position);
+        values[position] = value;
+        size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Copy of the current ids, ascending
+     */
+    public synchronized int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * Intersect two ascending id arrays
+     */
+    public static int[] intersect(int[] left, int[] right) {
+        int[] result = new int[Math.min(left.length, right.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length && j < right.length) {
+            if (left[i] < right[j]) {
+                i++;
+            } else if (left[i] > right[j]) {
+                j++;
+            } else {
+                result[count++] = left[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,300 @@
+package com.noel.index;
+
+import com.noel.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed raw messages in append-only off-heap blocks, so the messages of live entries
+ * do not stay on the Java heap next to Burp's own copy.
+ *
+ * Messages of the same host share most of their headers and a lot of their bodies, so every host gets
+ * a deflate preset dictionary trained on its first messages: the lines that show up in several of them,
+ * the most common ones last where deflate reaches them with the shortest distance.
+ * Only the first hosts get their own dictionary, the others share one trained on their first messages.
+ * The samples waiting for training are bounded as well: a host that runs into the bound is trained on the samples
+ * it has, and uses the shared dictionary if those are too few.
+ * A message is stored as its raw length, the dictionary id and the deflated bytes, and is addressed
+ * by a handle made of the block number and the offset in the block.
+ * Live entries are never removed, so single messages are not freed: once the budget is used up
+ * later messages are rejected and stay on the heap, and {@link #close()} releases all blocks at once.
+ */
+public class MessageBlocks {
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int TRAINING_SAMPLES = 16;
+    private static final int SAMPLE_BYTES = 8192;
+    private static final int MAX_HOST_CODECS = 256;
+    // Samples of all hosts still training, the shared codec is not counted
+    private static final long MAX_SAMPLE_BYTES = 2 * 1024 * 1024;
+    // Deflate can not reach further back than its 32KB window
+    private static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+    private static final int NO_DICTIONARY = -1;
+
+    private final long maxBytes;
+    private final List<ByteBuffer> blocks = new ArrayList<>();
+    private final List<byte[]> dictionaries = new ArrayList<>();
+    private final Map<String, HostCodec> codecs = new ConcurrentHashMap<>();
+    private final HostCodec shared = new HostCodec(false);
+    private final AtomicLong sampleBytes = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private ByteBuffer current;
+    private boolean closed;
+
+    /**
+     * @param maxBytes off-heap bytes to use at most, messages that do not fit any more are not stored
+     */
+    public MessageBlocks(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Compress and store a message
+     *
+     * @return the handle of the message, or -1 if the off-heap budget is used up or the blocks were released
+     */
+    public long put(String host, byte[] message) {
+        HostCodec codec = codecs.get(host);
+        if (codec == null) {
+            codec = codecs.size() < MAX_HOST_CODECS ? codecs.computeIfAbsent(host, key -> new HostCodec(true)) : shared;
+        }
+        int dictionaryId = codec.dictionaryFor(message);
+        byte[] compressed = deflate(message, dictionaryId == NO_DICTIONARY ? null : dictionary(dictionaryId));
+
+        int length = Integer.BYTES * 3 + compressed.length;
+        synchronized (this) {
+            if (closed) {
+                return -1;
+            }
+            if (storedBytes.get() + length > maxBytes) {
+                if (rejected.getAndIncrement() == 0) {
+                    Log.warn("The off-heap budget of " + (maxBytes >> 20) + " MB for compressed messages is used up, "
+                            + "new messages stay on the heap (see messages.rejected)");
+                }
+                return -1;
+            }
+            if (current == null || current.remaining() < length) {
+                current = ByteBuffer.allocateDirect(Math.max(BLOCK_SIZE, length));
+                blocks.add(current);
+            }
+            long handle = ((long) (blocks.size() - 1) << 32) | current.position();
+            current.putInt(message.length).putInt(dictionaryId).putInt(compressed.length).put(compressed);
+            rawBytes.addAndGet(message.length);
+            storedBytes.addAndGet(length);
+            messages.incrementAndGet();
+            return handle;
+        }
+    }
+
+    /**
+     * Decompress the message with the given handle
+     */
+    public byte[] get(long handle) {
+        ByteBuffer block;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The message blocks were released");
+            }
+            block = blocks.get((int) (handle >>> 32)).duplicate();
+        }
+        block.position((int) handle);
+        int rawLength = block.getInt();
+        int dictionaryId = block.getInt();
+        byte[] compressed = new byte[block.getInt()];
+        block.get(compressed);
+        return inflate(compressed, rawLength, dictionaryId == NO_DICTIONARY ? null : dictionary(dictionaryId));
+    }
+
+    /**
+     * Drop the blocks so their direct buffers can be freed, the handles handed out are invalid afterwards
+     */
+    public synchronized void close() {
+        closed = true;
+        blocks.clear();
+        current = null;
+        storedBytes.set(0);
+    }
+
+    public long messageCount() {
+        return messages.get();
+    }
+
+    /**
+     * Size of the stored messages before compression
+     */
+    public long rawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * Off-heap bytes taken by the stored messages
+     */
+    public long storedBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * Messages that were not stored because the off-heap budget was used up
+     */
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    private synchronized byte[] dictionary(int id) {
+        return dictionaries.get(id);
+    }
+
+    private synchronized int addDictionary(byte[] dictionary) {
+        dictionaries.add(dictionary);
+        return dictionaries.size() - 1;
+    }
+
+    private static byte[] deflate(byte[] message, byte[] dictionary) {
+        Deflater deflater = new Deflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(message);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(message.length / 4 + 16);
+            byte[] chunk = new byte[8192];
+            while (!deflater.finished()) {
+                output.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int rawLength, byte[] dictionary) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] output = new byte[rawLength];
+            int inflated = 0;
+            while (inflated < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(output, inflated, rawLength - inflated);
+                if (count == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                } else if (count == 0 && inflater.needsInput()) {
+                    break;
+                }
+                inflated += count;
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted message block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Lines found in at least two of the samples, rarest first, limited to what deflate can reach
+     */
+    static byte[] train(List<byte[]> samples) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (byte[] sample : samples) {
+            String text = new String(sample, StandardCharsets.ISO_8859_1);
+            for (String line : new HashSet<>(Arrays.asList(text.split("\n")))) {
+                if (line.length() > 3) {
+                    counts.merge(line, 1, Integer::sum);
+                }
+            }
+        }
+        List<Map.Entry<String, Integer>> common = new ArrayList<>();
+        for (Map.Entry<String, Integer> line : counts.entrySet()) {
+            if (line.getValue() >= 2) {
+                common.add(line);
+            }
+        }
+        // Most common last, they end up closest to the data
+        common.sort(Map.Entry.<String, Integer>comparingByValue().reversed());
+        List<byte[]> picked = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> line : common) {
+            byte[] bytes = (line.getKey() + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            if (size + bytes.length > MAX_DICTIONARY_BYTES) {
+                continue;
+            }
+            picked.add(bytes);
+            size += bytes.length;
+        }
+        ByteBuffer dictionary = ByteBuffer.allocate(size);
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            dictionary.put(picked.get(i));
+        }
+        return dictionary.array();
+    }
+
+    /**
+     * Collects the first messages of a host, then trains and hands out its dictionary.
+     * A host without a dictionary of its own uses the shared one.
+     */
+    private class HostCodec {
+        // False for the shared codec, its samples do not count against the sample budget
+        private final boolean budgeted;
+        private final List<byte[]> samples = new ArrayList<>();
+        private int samplesSize;
+        private volatile int dictionaryId = NO_DICTIONARY;
+        private volatile boolean trained;
+
+        HostCodec(boolean budgeted) {
+            this.budgeted = budgeted;
+        }
+
+        int dictionaryFor(byte[] message) {
+            if (!trained) {
+                synchronized (this) {
+                    if (!trained) {
+                        sample(message);
+                    }
+                }
+            }
+            int id = dictionaryId;
+            return id == NO_DICTIONARY && trained && this != shared ? shared.dictionaryFor(message) : id;
+        }
+
+        private void sample(byte[] message) {
+            byte[] sample = Arrays.copyOf(message, Math.min(message.length, SAMPLE_BYTES));
+            if (budgeted && sampleBytes.addAndGet(sample.length) > MAX_SAMPLE_BYTES) {
+                sampleBytes.addAndGet(-sample.length);
+                finishTraining();
+                return;
+            }
+            samples.add(sample);
+            samplesSize += sample.length;
+            if (samples.size() == TRAINING_SAMPLES) {
+                finishTraining();
+            }
+        }
+
+        private void finishTraining() {
+            byte[] dictionary = samples.size() >= 2 ? train(samples) : new byte[0];
+            dictionaryId = dictionary.length > 0 ? addDictionary(dictionary) : NO_DICTIONARY;
+            if (budgeted) {
+                sampleBytes.addAndGet(-samplesSize);
+            }
+            samples.clear();
+            samplesSize = 0;
+            trained = true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.noel.index;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trigram inverted index over the bytes of one field (req.body, resp.body or url).
+ * Documents larger than the size threshold, or arriving once the shared memory budget is spent,
+ * are recorded as unindexed and always returned as candidates, so lookups never lose a match.
+ * Documents shorter than a trigram are left out, they can not contain a needle the index is asked for.
+ */
+public class NgramIndex {
+    private static final int GRAM = 3;
+    // Rough per-key overhead of the map entry, the boxed key and the IntList
+    private static final int KEY_OVERHEAD = 96;
+
+    private final Map<Integer, IntList> postings = new HashMap<>();
+    private final IntList unindexed = new IntList();
+    private final AtomicLong memoryUsed;
+    private final long maxMemoryBytes;
+    private final int maxDocumentBytes;
+
+    NgramIndex(AtomicLong memoryUsed, long maxMemoryBytes, int maxDocumentBytes) {
+        this.memoryUsed = memoryUsed;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDocumentBytes = maxDocumentBytes;
+    }
+
+    void add(int id, byte[] document) {
+        if (document == null) {
+            return;
+        }
+        if (document.length < GRAM) {
+            // Too short to hold any needle the index can be asked for, lookups never need it
+            return;
+        }
+        if (document.length > maxDocumentBytes || memoryUsed.get() >= maxMemoryBytes) {
+            unindexed.insertSorted(id);
+            return;
+        }
+
+        int[] grams = distinctGrams(document);
+        long added = 0;
+        synchronized (postings) {
+            for (int gram : grams) {
+                IntList ids = postings.get(gram);
+                if (ids == null) {
+                    ids = new IntList(4);
+                    postings.put(gram, ids);
+                    added += KEY_OVERHEAD;
+                }
+                ids.insertSorted(id);
+                added += Integer.BYTES;
+            }
+        }
+        memoryUsed.addAndGet(added);
+    }
+
+    /**
+     * Ascending ids of the documents that may contain the needle, or null when the needle
+     * is too short (or not representable as bytes) for the index to narrow anything
+     */
+    int[] candidates(String needle) {
+        byte[] bytes = toBytes(needle);
+        if (bytes == null || bytes.length < GRAM) {
+            return null;
+        }
+
+        int[] grams = distinctGrams(bytes);
+        int[][] lists = new int[grams.length][];
+        synchronized (postings) {
+            for (int i = 0; i < grams.length; i++) {
+                IntList ids = postings.get(grams[i]);
+                lists[i] = ids == null ? new int[0] : ids.toArray();
+            }
+        }
+        // Intersect the rarest grams first
+        Arrays.sort(lists, (left, right) -> Integer.compare(left.length, right.length));
+        int[] result = lists[0];
+        for (int i = 1; i < lists.length && result.length > 0; i++) {
+            result = IntList.intersect(result, lists[i]);
+        }
+        return union(result, unindexed.toArray());
+    }
+
+    /**
+     * Bodies are matched the way Burp turns them into strings: one byte per char
+     */
+    static byte[] toBytes(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0xFF) {
+                return null;
+            }
+        }
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static int[] distinctGrams(byte[] bytes) {
+        int[] grams = new int[bytes.length - GRAM + 1];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+        }
+        Arrays.sort(grams);
+        int count = 0;
+        for (int i = 0; i < grams.length; i++) {
+            if (count == 0 || grams[count - 1] != grams[i]) {
+                grams[count++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, count);
+    }
+
+    static int[] union(int[] left, int[] right) {
+        int[] result = new int[left.length + right.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length || j < right.length) {
+            int next;
+            if (j >= right.length || (i < left.length && left[i] < right[j])) {
+                next = left[i++];
+            } else if (i >= left.length || right[j] < left[i]) {
+                next = right[j++];
+            } else {
+                next = left[i];
+                i++;
+                j++;
+            }
+            result[count++] = next;
+        }
+        return Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,99 @@
+package com.noel.index;
+
+import com.noel.metrics.Metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Values of the header, parameter and JSON fields parsed from the messages of an index, so structured queries
+ * that repeat never parse the same message again. A bounded LRU split into stripes, so parallel scans
+ * rarely wait for each other. Only short values are kept, and values parsed from a response only once
+ * the response arrived.
+ */
+public class ParsedFieldCache {
+    private static final int STRIPES = 16;
+    // Longer values are parsed again instead of kept
+    private static final int MAX_VALUE_CHARS = 1024;
+    // Stands for a field the message does not have
+    private static final Object ABSENT = new Object();
+
+    private final Map<String, Integer> fieldIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextFieldId = new AtomicInteger();
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder hits = Metrics.counter("parsed.hits");
+    private final LongAdder misses = Metrics.counter("parsed.misses");
+
+    public ParsedFieldCache(int maxValues) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxValues / STRIPES));
+        }
+    }
+
+    /**
+     * Wrap the parser of a field so its value is parsed once per entry
+     * @param fromResponse true if the value is parsed from the response
+     */
+    public Function<HistoryEntry, Object> cached(String field, boolean fromResponse, Function<HistoryEntry, Object> parser) {
+        long fieldKey = (long) fieldIds.computeIfAbsent(field, key -> nextFieldId.getAndIncrement()) << 32;
+        return entry -> {
+            if (fromResponse && !entry.isSettled()) {
+                return parser.apply(entry);
+            }
+            long key = fieldKey | (entry.id() & 0xFFFFFFFFL);
+            Stripe stripe = stripes[(int) ((key * 0x9E3779B97F4A7C15L) >>> 60)];
+            Object value = stripe.find(key);
+            if (value != null) {
+                hits.increment();
+                return value == ABSENT ? null : value;
+            }
+            misses.increment();
+            value = parser.apply(entry);
+            if (value == null) {
+                stripe.keep(key, ABSENT);
+            } else if (!(value instanceof String) || ((String) value).length() <= MAX_VALUE_CHARS) {
+                stripe.keep(key, value);
+            }
+            return value;
+        };
+    }
+
+    public long size() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.count();
+        }
+        return size;
+    }
+
+    private static final class Stripe extends LinkedHashMap<Long, Object> {
+        private final int maxValues;
+
+        Stripe(int maxValues) {
+            super(16, 0.75f, true);
+            this.maxValues = maxValues;
+        }
+
+        synchronized Object find(long key) {
+            return get(key);
+        }
+
+        synchronized void keep(long key, Object value) {
+            put(key, value);
+        }
+
+        synchronized int count() {
+            return size();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+            return size() > maxValues;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.noel.index;
+
+import burp.api.montoya.proxy.ProxyHttpRequestResponse;
+import burp.api.montoya.proxy.http.InterceptedRequest;
+import burp.api.montoya.proxy.http.InterceptedResponse;
+import burp.api.montoya.proxy.http.ProxyRequestHandler;
+import burp.api.montoya.proxy.http.ProxyRequestReceivedAction;
+import burp.api.montoya.proxy.http.ProxyRequestToBeSentAction;
+import burp.api.montoya.proxy.http.ProxyResponseHandler;
+import burp.api.montoya.proxy.http.ProxyResponseReceivedAction;
+import burp.api.montoya.proxy.http.ProxyResponseToBeSentAction;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keep the {@link HistoryIndex} up to date as traffic goes through the proxy.
+ * Requests are appended when they are sent upstream, responses are matched back by proxy message id.
+ * The listener is registered before the history is backfilled and buffers the traffic until {@link #drain} is called,
+ * so nothing captured while the backfill runs is lost.
+ */
+public class ProxyHistoryListener implements ProxyRequestHandler, ProxyResponseHandler {
+    // Requests that never get a response must not pile up forever
+    private static final int MAX_PENDING = 10_000;
+
+    private final HistoryIndex index;
+    private final Map<Integer, HistoryEntry> pending = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, HistoryEntry> eldest) {
+            return size() > MAX_PENDING;
+        }
+    };
+    // Requests and responses seen before the backfill finished, null once drained
+    private List<Object> buffered = new ArrayList<>();
+
+    public ProxyHistoryListener(HistoryIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Index the traffic buffered while the backfill ran and stop buffering.
+     * Messages the backfilled snapshot already holds are skipped, snapshot items still waiting for their response
+     * get it attached when it arrives.
+     * @param snapshot the proxy history the index was backfilled from, in the same order
+     * @return number of buffered messages that were indexed
+     */
+    public int drain(List<ProxyHttpRequestResponse> snapshot) {
+        synchronized (pending) {
+            Set<Integer> covered = new HashSet<>();
+            for (int i = 0; i < snapshot.size(); i++) {
+                ProxyHttpRequestResponse item = snapshot.get(i);
+                if (item.hasResponse()) {
+                    covered.add(item.id());
+                } else {
+                    pending.put(item.id(), index.get(i));
+                }
+            }
+            int indexed = 0;
+            for (Object message : buffered) {
+                if (message instanceof InterceptedRequest) {
+                    InterceptedRequest request = (InterceptedRequest) message;
+                    if (!covered.contains(request.messageId()) && !pending.containsKey(request.messageId())) {
+                        pending.put(request.messageId(), index.append(request));
+                        indexed++;
+                    }
+                } else {
+                    InterceptedResponse response = (InterceptedResponse) message;
+                    if (!covered.contains(response.messageId())) {
+                        attach(response);
+                        indexed++;
+                    }
+                }
+            }
+            buffered = null;
+            return indexed;
+        }
+    }
+
+    @Override
+    public ProxyRequestReceivedAction handleRequestReceived(InterceptedRequest interceptedRequest) {
+        return ProxyRequestReceivedAction.continueWith(interceptedRequest);
+    }
+
+    @Override
+    public ProxyRequestToBeSentAction handleRequestToBeSent(InterceptedRequest interceptedRequest) {
+        synchronized (pending) {
+            if (buffered != null) {
+                buffered.add(interceptedRequest);
+                return ProxyRequestToBeSentAction.continueWith(interceptedRequest);
+            }
+        }
+        HistoryEntry entry = index.append(interceptedRequest);
+        synchronized (pending) {
+            pending.put(interceptedRequest.messageId(), entry);
+        }
+        return ProxyRequestToBeSentAction.continueWith(interceptedRequest);
+    }
+
+    @Override
+    public ProxyResponseReceivedAction handleResponseReceived(InterceptedResponse interceptedResponse) {
+        synchronized (pending) {
+            if (buffered != null) {
+                buffered.add(interceptedResponse);
+                return ProxyResponseReceivedAction.continueWith(interceptedResponse);
+            }
+        }
+        attach(interceptedResponse);
+        return ProxyResponseReceivedAction.continueWith(interceptedResponse);
+    }
+
+    @Override
+    public ProxyResponseToBeSentAction handleResponseToBeSent(InterceptedResponse interceptedResponse) {
+        return ProxyResponseToBeSentAction.continueWith(interceptedResponse);
+    }
+
+    private void attach(InterceptedResponse interceptedResponse) {
+        HistoryEntry entry;
+        synchronized (pending) {
+            entry = pending.remove(interceptedResponse.messageId());
+        }
+        if (entry == null) {
+            entry = index.append(interceptedResponse.initiatingRequest());
+        }
+        index.attachResponse(entry, interceptedResponse);
+    }
+}
@@ -0,0 +1,187 @@
+package com.noel.index;
+
+import burp.api.montoya.core.ByteArray;
+import burp.api.montoya.http.message.requests.HttpRequest;
+
+/**
+ * 128-bit fingerprint of a request used to drop duplicate results.
+ * The method, URL, query and body are streamed straight into MurmurHash3 (x64, 128-bit) without building
+ * an identifier String, each part is followed by its length so parts can't run into each other.
+ */
+public final class RequestFingerprint {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    /**
+     * Which parts of a request make two requests duplicates
+     */
+    public enum Keys {
+        // method, URL, query and body
+        FULL,
+        // like FULL, but only the names of the query parameters count
+        IGNORE_QUERY_VALUES,
+        // method, URL and query
+        IGNORE_BODY,
+        // method and URL only
+        PATH,
+        // every request is unique
+        NONE;
+
+        public static Keys of(String name) {
+            for (Keys keys : values()) {
+                if (keys.name().equalsIgnoreCase(name.trim())) {
+                    return keys;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported dedup keys: " + name);
+        }
+    }
+
+    private long h1;
+    private long h2;
+    private long k1;
+    private long k2;
+    private int position;
+    private long length;
+
+    private RequestFingerprint() {
+    }
+
+    /**
+     * Compute the fingerprint of a request into out[offset] and out[offset + 1]
+     */
+    static void compute(HttpRequest request, Keys keys, long[] out, int offset) {
+        RequestFingerprint hash = new RequestFingerprint();
+        hash.putString(request.method(), 0, request.method().length());
+
+        String url = request.url();
+        int queryStart = url.indexOf('?');
+        int pathEnd = queryStart >= 0 ? queryStart : url.length();
+        hash.putString(url, 0, pathEnd);
+
+        if (keys != Keys.PATH && queryStart >= 0) {
+            if (keys == Keys.IGNORE_QUERY_VALUES) {
+                hash.putParameterNames(url, queryStart + 1);
+            } else {
+                hash.putString(url, queryStart + 1, url.length());
+            }
+        }
+        if (keys == Keys.FULL || keys == Keys.IGNORE_QUERY_VALUES) {
+            ByteArray body = request.body();
+            if (body != null && body.length() > 0) {
+                byte[] bytes = body.getBytes();
+                for (byte b : bytes) {
+                    hash.putByte(b);
+                }
+                hash.putLength(bytes.length);
+            }
+        }
+        hash.finish(out, offset);
+    }
+
+    /**
+     * Burp maps message bytes to chars one to one, so the low byte is enough for almost every char
+     */
+    private void putString(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c > 0xFF) {
+                putByte(c >>> 8);
+            }
+            putByte(c);
+        }
+        putLength(end - start);
+    }
+
+    private void putParameterNames(String url, int start) {
+        boolean inValue = false;
+        int count = 0;
+        for (int i = start; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '&') {
+                inValue = false;
+                putByte(c);
+            } else if (c == '=') {
+                inValue = true;
+            } else if (!inValue) {
+                putByte(c);
+                count++;
+            }
+        }
+        putLength(count);
+    }
+
+    private void putLength(int value) {
+        putByte(value);
+        putByte(value >>> 8);
+        putByte(value >>> 16);
+        putByte(value >>> 24);
+    }
+
+    private void putByte(int value) {
+        long b = value & 0xFFL;
+        if (position < 8) {
+            k1 |= b << (position * 8);
+        } else {
+            k2 |= b << ((position - 8) * 8);
+        }
+        length++;
+        if (++position == 16) {
+            mixBlock();
+        }
+    }
+
+    private void mixBlock() {
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+
+        k1 = 0;
+        k2 = 0;
+        position = 0;
+    }
+
+    private void finish(long[] out, int offset) {
+        if (position > 0) {
+            h1 ^= mixK1(k1);
+            h2 ^= mixK2(k2);
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        out[offset] = h1;
+        out[offset + 1] = h2;
+    }
+
+    private static long mixK1(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        return k * C2;
+    }
+
+    private static long mixK2(long k) {
+        k *= C2;
+        k = Long.rotateLeft(k, 33);
+        return k * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,77 @@
+package com.noel.index;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted indexes from low-cardinality field values to the sorted ids of the entries holding them.
+ * The keys use the same types as the compiled comparisons: strings for host, method and resp.content_type,
+ * an Integer for status_code and the ContentType enum for req.content_type.
+ */
+public class SecondaryIndex implements HistoryListener {
+    public static final List<String> INDEXED_FIELDS = List.of("host", "method", "req.content_type", "status_code", "resp.content_type");
+
+    private final Map<String, Map<Object, IntList>> postings = new ConcurrentHashMap<>();
+    private final HistoryColumns columns;
+
+    public SecondaryIndex(HistoryColumns columns) {
+        this.columns = columns;
+        for (String field : INDEXED_FIELDS) {
+            postings.put(field, new ConcurrentHashMap<>());
+        }
+    }
+
+    public boolean isIndexed(String field) {
+        return postings.containsKey(field);
+    }
+
+    /**
+     * Ascending ids of the entries whose field equals the value
+     */
+    public int[] lookup(String field, Object value) {
+        Map<Object, IntList> values = postings.get(field);
+        if (values == null) {
+            throw new IllegalArgumentException("Field is not indexed: " + field);
+        }
+        IntList ids = values.get(value);
+        return ids == null ? new int[0] : ids.toArray();
+    }
+
+    /**
+     * Posted before the entry is published, a query that sees it also finds it here.
+     * Its cached result then covers the entry instead of missing it for good.
+     */
+    @Override
+    public void beforeEntryAdded(HistoryEntry entry) {
+        int id = entry.id();
+        add("host", columns.host(id), id);
+        add("method", columns.method(id), id);
+        add("req.content_type", columns.requestContentType(id), id);
+        if (columns.statusCode(id) != 0) {
+            beforeResponseAttached(entry);
+        }
+    }
+
+    @Override
+    public void beforeResponseAttached(HistoryEntry entry) {
+        int id = entry.id();
+        add("status_code", (int) columns.statusCode(id), id);
+        add("resp.content_type", columns.mimeType(id), id);
+    }
+
+    @Override
+    public void entryAdded(HistoryEntry entry) {
+    }
+
+    @Override
+    public void responseAttached(HistoryEntry entry) {
+    }
+
+    private void add(String field, Object value, int id) {
+        if (value == null) {
+            return;
+        }
+        postings.get(field).computeIfAbsent(value, key -> new IntList()).insertSorted(id);
+    }
+}
@@ -0,0 +1,166 @@
+package com.noel.index;
+
+import burp.api.montoya.http.message.ContentType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The columns of one history item as persisted by {@link HistoryStore}, read in place from a mapped segment.
+ * Nothing is decoded up front, each accessor reads its column on demand,
+ * so a warm start keeps a few bytes per item on the heap instead of the messages.
+ *
+ * Layout: flags, status code, request content type, request fingerprint (two longs),
+ * request and response lengths, then host, method, url and mime type as length-prefixed UTF-8,
+ * then the deflated request and response bodies if they were stored.
+ */
+public final class StoredRecord {
+    static final int HAS_RESPONSE = 1;
+    static final int HAS_REQUEST_BODY = 2;
+    static final int HAS_RESPONSE_BODY = 4;
+
+    private static final int FLAGS = 0;
+    private static final int STATUS_CODE = 1;
+    private static final int REQUEST_CONTENT_TYPE = 3;
+    private static final int FINGERPRINT = 4;
+    private static final int REQUEST_LENGTH = 20;
+    private static final int RESPONSE_LENGTH = 24;
+    private static final int HOST = 28;
+    private static final ContentType[] CONTENT_TYPES = ContentType.values();
+
+    private final ByteBuffer buffer;
+    private final int offset;
+
+    StoredRecord(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    public boolean hasResponse() {
+        return (flags() & HAS_RESPONSE) != 0;
+    }
+
+    /**
+     * Status code of the response, null if there was none
+     */
+    public Integer statusCode() {
+        return hasResponse() ? (int) buffer.getShort(offset + STATUS_CODE) : null;
+    }
+
+    public ContentType requestContentType() {
+        int ordinal = buffer.get(offset + REQUEST_CONTENT_TYPE);
+        return ordinal >= 0 && ordinal < CONTENT_TYPES.length ? CONTENT_TYPES[ordinal] : null;
+    }
+
+    /**
+     * High half of the request fingerprint with {@link RequestFingerprint.Keys#FULL}
+     */
+    public long fingerprintHigh() {
+        return buffer.getLong(offset + FINGERPRINT);
+    }
+
+    public long fingerprintLow() {
+        return buffer.getLong(offset + FINGERPRINT + Long.BYTES);
+    }
+
+    public int requestLength() {
+        return buffer.getInt(offset + REQUEST_LENGTH);
+    }
+
+    /**
+     * Length of the response message, -1 if there was none
+     */
+    public int responseLength() {
+        return buffer.getInt(offset + RESPONSE_LENGTH);
+    }
+
+    public String host() {
+        return string(0);
+    }
+
+    public String method() {
+        return string(1);
+    }
+
+    public String url() {
+        return string(2);
+    }
+
+    /**
+     * Description of the response mime type, null if there was no response
+     */
+    public String mimeType() {
+        return hasResponse() ? string(3) : null;
+    }
+
+    /**
+     * The request body, or null if bodies were not stored
+     */
+    public byte[] requestBody() {
+        return (flags() & HAS_REQUEST_BODY) != 0 ? inflate(blob(0)) : null;
+    }
+
+    /**
+     * The response body, or null if bodies were not stored or there was no response
+     */
+    public byte[] responseBody() {
+        return (flags() & HAS_RESPONSE_BODY) != 0 ? inflate(blob((flags() & HAS_REQUEST_BODY) != 0 ? 1 : 0)) : null;
+    }
+
+    private int flags() {
+        return buffer.get(offset + FLAGS);
+    }
+
+    private String string(int index) {
+        int position = skip(offset + HOST, index);
+        int length = buffer.getInt(position);
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + Integer.BYTES);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer blob(int index) {
+        // Blobs follow the four strings and use the same length prefix
+        int position = skip(offset + HOST, 4 + index);
+        int length = buffer.getInt(position);
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + Integer.BYTES);
+        view.limit(position + Integer.BYTES + length);
+        return view.slice();
+    }
+
+    private int skip(int position, int fields) {
+        for (int i = 0; i < fields; i++) {
+            position += Integer.BYTES + buffer.getInt(position);
+        }
+        return position;
+    }
+
+    private static byte[] inflate(ByteBuffer compressed) {
+        int length = compressed.getInt();
+        byte[] input = new byte[compressed.remaining()];
+        compressed.get(input);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            byte[] output = new byte[length];
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(output, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted body in the history store", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
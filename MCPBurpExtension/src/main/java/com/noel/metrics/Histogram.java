@@ -0,0 +1,88 @@
+package com.noel.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets from 100µs to 60s, cheap enough to record every query stage
+ */
+public class Histogram {
+    // Upper bounds of the buckets in seconds, the last bucket takes everything above
+    static final double[] BOUNDS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+            0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void recordNanos(long nanos) {
+        double seconds = nanos / 1e9;
+        int bucket = 0;
+        while (bucket < BOUNDS.length && seconds > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        count.increment();
+        sumNanos.add(nanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public double sumSeconds() {
+        return sumNanos.sum() / 1e9;
+    }
+
+    /**
+     * Number of recorded values in each bucket, not cumulative, the last one is above the highest bound
+     */
+    long[] bucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Upper bound of the bucket holding the given quantile, in seconds.
+     * A quantile above the highest bound reports that bound, JSON has no Infinity.
+     */
+    public double quantile(double quantile) {
+        long[] counts = bucketCounts();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return BOUNDS[BOUNDS.length - 1];
+    }
+
+    Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", count());
+        result.put("sum_seconds", sumSeconds());
+        result.put("p50_seconds", quantile(0.5));
+        result.put("p95_seconds", quantile(0.95));
+        result.put("p99_seconds", quantile(0.99));
+        return result;
+    }
+}
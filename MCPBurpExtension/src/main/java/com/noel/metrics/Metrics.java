@@ -0,0 +1,87 @@
+package com.noel.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of named counters, gauges and latency histograms, exposed by the /metrics endpoint.
+ * Names are dotted (query.rows.scanned), the Prometheus output turns them into burpmcp_query_rows_scanned.
+ */
+public final class Metrics {
+    private static final String PROMETHEUS_PREFIX = "burpmcp_";
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Register a value that is read when the metrics are exported
+     */
+    public static void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Latency histogram, exported in seconds
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Current value of every counter and gauge, and a summary of every histogram, sorted by name
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        counters.forEach((name, counter) -> result.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> result.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> result.put(name, histogram.snapshot()));
+        return result;
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format
+     */
+    public static String prometheus() {
+        StringBuilder out = new StringBuilder();
+        new TreeMap<>(counters).forEach((name, counter) -> {
+            String metric = prometheusName(name) + "_total";
+            out.append("# TYPE ").append(metric).append(" counter\n");
+            out.append(metric).append(' ').append(counter.sum()).append('\n');
+        });
+        new TreeMap<>(gauges).forEach((name, gauge) -> {
+            String metric = prometheusName(name);
+            out.append("# TYPE ").append(metric).append(" gauge\n");
+            out.append(metric).append(' ').append(gauge.getAsLong()).append('\n');
+        });
+        new TreeMap<>(histograms).forEach((name, histogram) -> {
+            String metric = prometheusName(name) + "_seconds";
+            out.append("# TYPE ").append(metric).append(" histogram\n");
+            long[] counts = histogram.bucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < Histogram.BOUNDS.length; i++) {
+                cumulative += counts[i];
+                out.append(metric).append("_bucket{le=\"").append(Histogram.BOUNDS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts[Histogram.BOUNDS.length];
+            out.append(metric).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(metric).append("_sum ").append(histogram.sumSeconds()).append('\n');
+            out.append(metric).append("_count ").append(cumulative).append('\n');
+        });
+        return out.toString();
+    }
+
+    private static String prometheusName(String name) {
+        return PROMETHEUS_PREFIX + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+}
@@ -0,0 +1,41 @@
+package com.noel.source;
+
+import com.noel.index.HistoryIndex;
+import com.noel.utils.FieldRegistry;
+import com.noel.utils.SQLParser;
+
+/**
+ * The proxy HTTP history, kept up to date by the proxy handlers
+ */
+public class ProxySource implements TableSource {
+    private final HistoryIndex index;
+
+    public ProxySource(HistoryIndex index) {
+        this.index = index;
+    }
+
+    @Override
+    public String name() {
+        return "proxy";
+    }
+
+    @Override
+    public boolean isIndexable() {
+        return index.fullTextIndex() != null;
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return true;
+    }
+
+    @Override
+    public HistoryIndex open() {
+        return index;
+    }
+
+    @Override
+    public FieldRegistry fields(HistoryIndex index) {
+        return SQLParser.historyFields(index);
+    }
+}
@@ -0,0 +1,49 @@
+package com.noel.source;
+
+import burp.api.montoya.MontoyaApi;
+import burp.api.montoya.http.message.HttpRequestResponse;
+import burp.api.montoya.http.message.requests.HttpRequest;
+import com.noel.index.HistoryIndex;
+import com.noel.utils.FieldRegistry;
+import com.noel.utils.SQLParser;
+
+import java.util.List;
+
+/**
+ * The site map, with the same fields as the proxy history
+ */
+public class SiteMapSource extends SnapshotSource<HttpRequestResponse> {
+    private final MontoyaApi api;
+
+    public SiteMapSource(MontoyaApi api, long refreshIntervalMillis, long ngramMaxMemoryBytes, int ngramMaxDocumentBytes,
+                         int parsedCacheMaxValues) {
+        super(refreshIntervalMillis, ngramMaxMemoryBytes, ngramMaxDocumentBytes, parsedCacheMaxValues);
+        this.api = api;
+    }
+
+    @Override
+    public String name() {
+        return "sitemap";
+    }
+
+    @Override
+    public FieldRegistry fields(HistoryIndex index) {
+        return SQLParser.historyFields(index);
+    }
+
+    @Override
+    List<HttpRequestResponse> load() {
+        return api.siteMap().requestResponses();
+    }
+
+    @Override
+    void append(HistoryIndex index, List<HttpRequestResponse> items, int from) {
+        index.addSiteMapItems(items, from);
+    }
+
+    @Override
+    String key(HttpRequestResponse item) {
+        HttpRequest request = item.request();
+        return request.method() + " " + request.url();
+    }
+}
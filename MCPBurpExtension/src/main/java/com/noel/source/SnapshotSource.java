@@ -0,0 +1,161 @@
+package com.noel.source;
+
+import com.noel.Log;
+import com.noel.index.HistoryIndex;
+import com.noel.metrics.Metrics;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A table Burp only hands out as a whole list. Opening it indexes the items added since it was last opened,
+ * the items indexed before are not read again. If the list no longer starts with the indexed items,
+ * compared by a fingerprint over all of them, the index is built again as a new generation.
+ * The index it replaces is closed once the queries still reading it released it.
+ * A table opened again within the refresh interval is queried as it is.
+ */
+abstract class SnapshotSource<T> implements TableSource {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long refreshIntervalNanos;
+    private final long ngramMaxMemoryBytes;
+    private final int ngramMaxDocumentBytes;
+    private final int parsedCacheMaxValues;
+    private volatile HistoryIndex index;
+    // Fingerprint of the items indexed so far, in order
+    private long indexedFingerprint;
+    private long lastGeneration;
+    private long lastRefresh;
+    // Queries still reading an index, by index
+    private final Map<HistoryIndex, Integer> readers = new IdentityHashMap<>();
+    // Replaced indexes waiting for their last reader
+    private final Set<HistoryIndex> retired = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * @param ngramMaxMemoryBytes memory of the n-gram index, 0 to go without it
+     * @param parsedCacheMaxValues parsed header, parameter and JSON values to keep, 0 to parse them every time
+     */
+    SnapshotSource(long refreshIntervalMillis, long ngramMaxMemoryBytes, int ngramMaxDocumentBytes, int parsedCacheMaxValues) {
+        this.refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(refreshIntervalMillis);
+        this.ngramMaxMemoryBytes = ngramMaxMemoryBytes;
+        this.ngramMaxDocumentBytes = ngramMaxDocumentBytes;
+        this.parsedCacheMaxValues = parsedCacheMaxValues;
+        Metrics.gauge("table." + name() + ".items", () -> {
+            HistoryIndex current = index;
+            return current != null ? current.size() : 0;
+        });
+    }
+
+    /**
+     * The current items of the table, oldest first
+     */
+    abstract List<T> load();
+
+    /**
+     * Index the items from the given position on
+     */
+    abstract void append(HistoryIndex index, List<T> items, int from);
+
+    /**
+     * Text identifying the item, the fingerprint of the indexed items is computed from it
+     */
+    abstract String key(T item);
+
+    @Override
+    public boolean isIndexable() {
+        return ngramMaxMemoryBytes > 0;
+    }
+
+    @Override
+    public boolean isStreamable() {
+        return false;
+    }
+
+    @Override
+    public synchronized HistoryIndex open() {
+        HistoryIndex current = index;
+        if (current == null || System.nanoTime() - lastRefresh >= refreshIntervalNanos) {
+            current = refresh(current);
+        }
+        readers.merge(current, 1, Integer::sum);
+        return current;
+    }
+
+    @Override
+    public synchronized void release(HistoryIndex released) {
+        Integer count = readers.computeIfPresent(released, (key, value) -> value == 1 ? null : value - 1);
+        if (count == null && retired.remove(released)) {
+            released.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (index != null) {
+            retire(index);
+            index = null;
+        }
+    }
+
+    private HistoryIndex refresh(HistoryIndex current) {
+        List<T> items = load();
+        if (current == null || !startsWithIndexed(current, items)) {
+            if (current != null) {
+                Log.info("The " + name() + " table changed, indexing it again");
+                Metrics.counter("table." + name() + ".rebuilds").increment();
+                retire(current);
+            }
+            // Cursors carry ids of one generation, they must not match a later one, not even after a reload
+            lastGeneration = Math.max(lastGeneration + 1, System.currentTimeMillis());
+            current = new HistoryIndex(lastGeneration);
+            if (isIndexable()) {
+                current.enableFullTextIndex(ngramMaxMemoryBytes, ngramMaxDocumentBytes);
+            }
+            if (parsedCacheMaxValues > 0) {
+                current.enableParsedFieldCache(parsedCacheMaxValues);
+            }
+            indexedFingerprint = FNV_OFFSET;
+        }
+        int from = current.size();
+        append(current, items, from);
+        indexedFingerprint = fingerprint(indexedFingerprint, items, from, current.size());
+        index = current;
+        lastRefresh = System.nanoTime();
+        return current;
+    }
+
+    private void retire(HistoryIndex replaced) {
+        if (readers.containsKey(replaced)) {
+            retired.add(replaced);
+        } else {
+            replaced.close();
+        }
+    }
+
+    private boolean startsWithIndexed(HistoryIndex index, List<T> items) {
+        int size = index.size();
+        return items.size() >= size && fingerprint(FNV_OFFSET, items, 0, size) == indexedFingerprint;
+    }
+
+    /**
+     * 64-bit FNV-1a over the keys of items[from, to), continuing from the given hash
+     */
+    private long fingerprint(long hash, List<T> items, int from, int to) {
+        for (int i = from; i < to; i++) {
+            String key = key(items.get(i));
+            for (int j = 0; j < key.length(); j++) {
+                hash ^= key.charAt(j);
+                hash *= FNV_PRIME;
+            }
+            // Keeps the boundaries between the keys apart
+            hash ^= '\n';
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,59 @@
+package com.noel.source;
+
+import com.noel.index.HistoryIndex;
+import com.noel.index.RequestFingerprint;
+import com.noel.utils.FieldRegistry;
+
+/**
+ * A table the FROM clause can name. Every source has its own incremental {@link HistoryIndex}
+ * and its own fields, the query engine, deduplication and projection run on top of them unchanged.
+ */
+public interface TableSource {
+
+    /**
+     * The table name used in FROM
+     */
+    String name();
+
+    /**
+     * True if `like` conditions on the message contents can be narrowed with the n-gram index
+     */
+    boolean isIndexable();
+
+    /**
+     * True if new items are indexed as they are captured. Such a table never rebuilds its index,
+     * so cached results stay valid and subscriptions can watch it.
+     * Other tables catch up with Burp when they are opened.
+     */
+    boolean isStreamable();
+
+    /**
+     * Catch up with Burp and return the index to query, hand it back with {@link #release} when the query is done
+     */
+    HistoryIndex open();
+
+    /**
+     * The query is done reading an index returned by {@link #open}, a rebuilt table may close it now
+     */
+    default void release(HistoryIndex index) {
+    }
+
+    /**
+     * The queryable fields of the table, reading from the given index
+     */
+    FieldRegistry fields(HistoryIndex index);
+
+    /**
+     * Parts of an item that make two results duplicates unless the query says otherwise,
+     * null for the configured default
+     */
+    default RequestFingerprint.Keys defaultDedupKeys() {
+        return null;
+    }
+
+    /**
+     * Release the index if the source owns it
+     */
+    default void close() {
+    }
+}
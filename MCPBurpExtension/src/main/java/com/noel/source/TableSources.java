@@ -0,0 +1,29 @@
+package com.noel.source;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The tables queries can select FROM, by name
+ */
+public class TableSources {
+    private final Map<String, TableSource> sources = new LinkedHashMap<>();
+
+    public void add(TableSource source) {
+        sources.put(source.name(), source);
+    }
+
+    public TableSource get(String name) {
+        TableSource source = name != null ? sources.get(name.toLowerCase()) : null;
+        if (source == null) {
+            throw new IllegalArgumentException("Unknown table: " + name + ", use one of: " + String.join(", ", sources.keySet()));
+        }
+        return source;
+    }
+
+    public void close() {
+        for (TableSource source : sources.values()) {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.noel.source;
+
+import burp.api.montoya.MontoyaApi;
+import burp.api.montoya.proxy.ProxyWebSocketMessage;
+import com.noel.index.HistoryColumns;
+import com.noel.index.HistoryIndex;
+import com.noel.index.RequestFingerprint;
+import com.noel.utils.FieldRegistry;
+import com.noel.utils.Predicate;
+
+import java.util.List;
+
+/**
+ * The proxy WebSocket history, one row per message.
+ * host and url come from the upgrade request of the WebSocket, the payloads are not n-gram indexed.
+ */
+public class WebSocketSource extends SnapshotSource<ProxyWebSocketMessage> {
+    private final MontoyaApi api;
+
+    public WebSocketSource(MontoyaApi api, long refreshIntervalMillis) {
+        super(refreshIntervalMillis, 0, 0, 0);
+        this.api = api;
+    }
+
+    @Override
+    public String name() {
+        return "websocket";
+    }
+
+    /**
+     * The messages of a WebSocket share its upgrade request, deduplicating by request would keep one of them
+     */
+    @Override
+    public RequestFingerprint.Keys defaultDedupKeys() {
+        return RequestFingerprint.Keys.NONE;
+    }
+
+    @Override
+    public FieldRegistry fields(HistoryIndex index) {
+        FieldRegistry fields = new FieldRegistry();
+        HistoryColumns columns = index.columns();
+        fields.register("host", 1, rr -> {
+            String host = columns.host(rr.id());
+            return host != null ? host : rr.request().httpService().host();
+        });
+        fields.register("url", 2, rr -> rr.request().url());
+        fields.register("ws_id", 1, Predicate.ValueKind.NUMBER, rr -> rr.webSocketMessage().webSocketId());
+        fields.register("direction", 1, rr -> rr.webSocketMessage().direction().name().toLowerCase());
+        fields.register("time", 2, rr -> rr.webSocketMessage().time().toString());
+        fields.register("payload", 10, Predicate.ValueKind.BYTES, rr -> rr.webSocketMessage().payload());
+        fields.register("len(payload)", 10, Predicate.ValueKind.NUMBER, rr -> rr.webSocketMessage().payload().length());
+        return fields;
+    }
+
+    @Override
+    List<ProxyWebSocketMessage> load() {
+        return api.proxy().webSocketHistory();
+    }
+
+    @Override
+    void append(HistoryIndex index, List<ProxyWebSocketMessage> items, int from) {
+        index.addWebSocketMessages(items, from);
+    }
+
+    @Override
+    String key(ProxyWebSocketMessage item) {
+        return item.webSocketId() + " " + item.direction() + " " + item.time();
+    }
+}
@@ -0,0 +1,102 @@
+package com.noel.subscription;
+
+import com.noel.utils.SQLParser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A continuous query: the matches of newly captured traffic wait in a bounded buffer until the subscriber
+ * fetches them. A subscriber that does not keep up loses the newest matches, they are counted as dropped
+ * and reported with the next batch, so it knows to run a normal query for what it missed.
+ */
+public class Subscription {
+    private final String id;
+    private final SQLParser parser;
+    private final int capacity;
+    private final ArrayDeque<Map<String, Object>> buffer = new ArrayDeque<>();
+    private long dropped;
+    private boolean closed;
+    private volatile long lastActive = System.nanoTime();
+
+    Subscription(String id, SQLParser parser, int capacity) {
+        this.id = id;
+        this.parser = parser;
+        this.capacity = capacity;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    SQLParser parser() {
+        return parser;
+    }
+
+    /**
+     * Buffer a match, dropped if the buffer is full
+     * @return false if the match was dropped
+     */
+    synchronized boolean offer(Map<String, Object> row) {
+        if (closed) {
+            return false;
+        }
+        if (buffer.size() >= capacity) {
+            dropped++;
+            return false;
+        }
+        buffer.add(row);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait until a match is buffered, the timeout passed or the subscription is closed
+     * @return at most max matches, oldest first, empty on timeout
+     */
+    public synchronized List<Map<String, Object>> poll(int max, long timeoutMillis) throws InterruptedException {
+        lastActive = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (buffer.isEmpty() && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        List<Map<String, Object>> rows = new ArrayList<>(Math.min(buffer.size(), max));
+        while (!buffer.isEmpty() && rows.size() < max) {
+            rows.add(buffer.poll());
+        }
+        lastActive = System.nanoTime();
+        return rows;
+    }
+
+    /**
+     * Matches dropped since the last call
+     */
+    public synchronized long takeDropped() {
+        long count = dropped;
+        dropped = 0;
+        return count;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void close() {
+        closed = true;
+        buffer.clear();
+        notifyAll();
+    }
+
+    /**
+     * Nanoseconds since the subscriber last fetched matches
+     */
+    long idleNanos() {
+        return System.nanoTime() - lastActive;
+    }
+}
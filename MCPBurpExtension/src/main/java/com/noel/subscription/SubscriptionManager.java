@@ -0,0 +1,177 @@
+package com.noel.subscription;
+
+import com.noel.Log;
+import com.noel.index.HistoryEntry;
+import com.noel.index.HistoryIndex;
+import com.noel.index.HistoryListener;
+import com.noel.metrics.Metrics;
+import com.noel.utils.ByteBudget;
+import com.noel.utils.FieldRegistry;
+import com.noel.utils.RowContext;
+import com.noel.utils.SQLParser;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks every newly captured entry against the active subscriptions once its response arrived.
+ * The proxy thread only queues the entry, matching and projecting run on a background thread,
+ * so slow conditions never delay the proxied traffic. When the queue is full new entries are skipped
+ * and counted in the subscribe.skipped metric.
+ * Subscriptions nobody fetched from for the idle timeout are closed.
+ */
+public class SubscriptionManager implements HistoryListener {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final FieldRegistry fields;
+    private final int maxSubscriptions;
+    private final int bufferSize;
+    private final long idleTimeoutNanos;
+    private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final BlockingQueue<HistoryEntry> pending;
+    private volatile SubscriptionMatcher matcher;
+    private final Thread worker;
+
+    /**
+     * @param queueSize new entries waiting to be matched at most
+     * @param bufferSize matches a subscription buffers at most
+     */
+    public SubscriptionManager(HistoryIndex historyIndex, int maxSubscriptions, int queueSize, int bufferSize, long idleTimeoutMillis) {
+        this.fields = SQLParser.historyFields(historyIndex);
+        this.maxSubscriptions = maxSubscriptions;
+        this.bufferSize = bufferSize;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        this.pending = new ArrayBlockingQueue<>(queueSize);
+        this.matcher = new SubscriptionMatcher(fields, subscriptions.values());
+        Metrics.gauge("subscribe.active", subscriptions::size);
+        Metrics.gauge("subscribe.pending", pending::size);
+        worker = new Thread(this::run, "BurpSuiteMCP-Subscriptions");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * The fields subscription queries have to be parsed with
+     */
+    public FieldRegistry fields() {
+        return fields;
+    }
+
+    /**
+     * Start pushing the matches of the query's WHERE clause in newly captured traffic
+     */
+    public Subscription subscribe(SQLParser parser) {
+        if (parser.getWhere() == null) {
+            throw new IllegalArgumentException("Cannot parse the SQL query, missing where clause");
+        }
+        if (parser.isAggregate() || parser.isExplain() || !parser.getOrderBy().isEmpty()) {
+            throw new IllegalArgumentException("Subscriptions do not support COUNT, GROUP BY, DISTINCT, ORDER BY or EXPLAIN");
+        }
+        synchronized (this) {
+            if (subscriptions.size() >= maxSubscriptions) {
+                throw new IllegalArgumentException("Too many subscriptions, at most " + maxSubscriptions + " can be active");
+            }
+            byte[] bytes = new byte[12];
+            RANDOM.nextBytes(bytes);
+            StringBuilder id = new StringBuilder();
+            for (byte b : bytes) {
+                id.append(String.format("%02x", b));
+            }
+            Subscription subscription = new Subscription(id.toString(), parser, bufferSize);
+            subscriptions.put(subscription.id(), subscription);
+            matcher = new SubscriptionMatcher(fields, subscriptions.values());
+            return subscription;
+        }
+    }
+
+    /**
+     * @return the subscription, null if it does not exist or was closed
+     */
+    public Subscription get(String id) {
+        return id != null ? subscriptions.get(id) : null;
+    }
+
+    /**
+     * @return false if there was no such subscription
+     */
+    public boolean unsubscribe(String id) {
+        synchronized (this) {
+            Subscription subscription = id != null ? subscriptions.remove(id) : null;
+            if (subscription == null) {
+                return false;
+            }
+            subscription.close();
+            matcher = new SubscriptionMatcher(fields, subscriptions.values());
+            return true;
+        }
+    }
+
+    public void shutdown() {
+        worker.interrupt();
+        for (String id : subscriptions.keySet()) {
+            unsubscribe(id);
+        }
+    }
+
+    @Override
+    public void entryAdded(HistoryEntry entry) {
+        // Matched once the response is there, conditions on the response need it
+    }
+
+    @Override
+    public void responseAttached(HistoryEntry entry) {
+        if (matcher.isEmpty()) {
+            return;
+        }
+        if (!pending.offer(entry)) {
+            Metrics.counter("subscribe.skipped").increment();
+        }
+    }
+
+    private void run() {
+        RowContext row = fields.newRow();
+        long lastExpiry = System.nanoTime();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                HistoryEntry entry = pending.poll(1, TimeUnit.SECONDS);
+                if (entry != null) {
+                    dispatch(matcher, row.reset(entry));
+                    row.clear();
+                }
+                if (System.nanoTime() - lastExpiry > TimeUnit.SECONDS.toNanos(10)) {
+                    expireIdle();
+                    lastExpiry = System.nanoTime();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                row.clear();
+                Log.error("Can not match a history item against the subscriptions", e);
+            }
+        }
+    }
+
+    private void dispatch(SubscriptionMatcher matcher, RowContext row) {
+        for (Subscription subscription : matcher.match(row)) {
+            SQLParser parser = subscription.parser();
+            // Buffered rows outlive the entry, only the per-field budget applies
+            ByteBudget budget = new ByteBudget(parser.getContext().getByteBudget().getMaxFieldBytes(), 0);
+            Map<String, Object> selected = SQLParser.toStrings(budget.apply(parser.selectFields(row, parser.getSelectFields())));
+            selected.put("id", row.entry().id());
+            Metrics.counter(subscription.offer(selected) ? "subscribe.matches" : "subscribe.dropped").increment();
+        }
+    }
+
+    private void expireIdle() {
+        for (Subscription subscription : subscriptions.values()) {
+            if (idleTimeoutNanos > 0 && subscription.idleNanos() > idleTimeoutNanos) {
+                Log.info("Closing idle subscription " + subscription.id());
+                unsubscribe(subscription.id());
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.noel.subscription;
+
+import com.noel.utils.FieldRegistry;
+import com.noel.utils.Predicate;
+import com.noel.utils.RowContext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches a new history entry against every subscription at once.
+ * The WHERE clauses are split into their top-level conditions and equal conditions are shared, each one is
+ * evaluated at most once per entry however many subscriptions use it. Subscriptions with a host = '...' condition
+ * are indexed by that host, the others are checked for every entry.
+ * A matcher is immutable, a new one is built whenever a subscription is added or removed.
+ */
+class SubscriptionMatcher {
+    private static final byte UNKNOWN = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+
+    private final Predicate[] conditions;
+    private final int hostSlot;
+    private final Map<String, List<Compiled>> byHost = new HashMap<>();
+    private final List<Compiled> anyHost = new ArrayList<>();
+
+    SubscriptionMatcher(FieldRegistry fields, Collection<Subscription> subscriptions) {
+        this.hostSlot = fields.slot("host");
+        Map<String, Integer> ids = new LinkedHashMap<>();
+        List<Predicate> shared = new ArrayList<>();
+        for (Subscription subscription : subscriptions) {
+            Predicate where = subscription.parser().getWhere();
+            List<Predicate> conjuncts = where instanceof Predicate.And ? ((Predicate.And) where).children() : List.of(where);
+            int[] conditionIds = new int[conjuncts.size()];
+            String host = null;
+            for (int i = 0; i < conjuncts.size(); i++) {
+                Predicate condition = conjuncts.get(i);
+                conditionIds[i] = ids.computeIfAbsent(condition.toString(), key -> {
+                    shared.add(condition);
+                    return shared.size() - 1;
+                });
+                if (host == null && condition instanceof Predicate.Comparison) {
+                    Predicate.Comparison comparison = (Predicate.Comparison) condition;
+                    if (comparison.field().equals("host") && comparison.operator() == Predicate.Operator.EQ) {
+                        host = comparison.value().toString();
+                    }
+                }
+            }
+            Compiled compiled = new Compiled(subscription, conditionIds);
+            if (host != null) {
+                byHost.computeIfAbsent(host, key -> new ArrayList<>()).add(compiled);
+            } else {
+                anyHost.add(compiled);
+            }
+        }
+        this.conditions = shared.toArray(new Predicate[0]);
+    }
+
+    boolean isEmpty() {
+        return byHost.isEmpty() && anyHost.isEmpty();
+    }
+
+    /**
+     * The subscriptions the entry of the row matches
+     */
+    List<Subscription> match(RowContext row) {
+        byte[] results = new byte[conditions.length];
+        List<Subscription> matched = new ArrayList<>();
+        Object host = hostSlot >= 0 ? row.get(hostSlot) : null;
+        List<Compiled> sameHost = host != null ? byHost.get(host.toString()) : null;
+        if (sameHost != null) {
+            match(row, sameHost, results, matched);
+        }
+        match(row, anyHost, results, matched);
+        return matched;
+    }
+
+    private void match(RowContext row, List<Compiled> candidates, byte[] results, List<Subscription> matched) {
+        for (Compiled candidate : candidates) {
+            boolean all = true;
+            for (int id : candidate.conditionIds) {
+                if (results[id] == UNKNOWN) {
+                    results[id] = conditions[id].test(row) ? TRUE : FALSE;
+                }
+                if (results[id] == FALSE) {
+                    all = false;
+                    break;
+                }
+            }
+            if (all) {
+                matched.add(candidate.subscription);
+            }
+        }
+    }
+
+    private static final class Compiled {
+        private final Subscription subscription;
+        private final int[] conditionIds;
+
+        Compiled(Subscription subscription, int[] conditionIds) {
+            this.subscription = subscription;
+            this.conditionIds = conditionIds;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.noel.utils;
+
+import com.noel.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * COUNT(*), GROUP BY and DISTINCT evaluated on the rows of a scan with a hash table, in a single pass.
+ * Only the group keys and their counts are kept, never the rows.
+ * Groups stay in the order they were first seen, newest first, unless ORDER BY sorts them.
+ */
+public class Aggregation implements HistoryScan.Sink {
+    public static final String COUNT = "count";
+
+    private static final int MAX_GROUPS = Config.getInt("aggregate.maxGroups", 100_000);
+
+    private final String[] groupFields;
+    private final int[] groupSlots;
+    private final boolean count;
+    private final List<OrderBy> orderBy;
+    private final int limit;
+    private final Map<List<Object>, long[]> groups = new LinkedHashMap<>();
+
+    /**
+     * @param groupFields fields the rows are grouped by, empty for a single group
+     * @param count whether the rows of each group are counted
+     * @param limit number of groups returned, 0 for all
+     */
+    public Aggregation(FieldRegistry fields, String[] groupFields, boolean count, List<OrderBy> orderBy, int limit) {
+        this.groupFields = groupFields;
+        this.groupSlots = new int[groupFields.length];
+        for (int i = 0; i < groupFields.length; i++) {
+            groupSlots[i] = fields.slot(groupFields[i]);
+        }
+        this.count = count;
+        this.orderBy = orderBy;
+        this.limit = limit;
+    }
+
+    @Override
+    public boolean accept(RowContext row) {
+        Object[] key = new Object[groupSlots.length];
+        for (int i = 0; i < groupSlots.length; i++) {
+            key[i] = OrderBy.comparable(row.get(groupSlots[i]));
+        }
+        List<Object> groupKey = Arrays.asList(key);
+        long[] counter = groups.get(groupKey);
+        if (counter == null) {
+            if (groups.size() >= MAX_GROUPS) {
+                throw new IllegalArgumentException("The query has more than " + MAX_GROUPS + " groups, narrow it down with more conditions");
+            }
+            counter = new long[1];
+            groups.put(groupKey, counter);
+        }
+        counter[0]++;
+        return true;
+    }
+
+    /**
+     * One row per group with the group fields and the count, sorted and limited
+     */
+    public List<Map<String, Object>> rows() {
+        List<Map<String, Object>> rows = new ArrayList<>(groups.size());
+        for (Map.Entry<List<Object>, long[]> group : groups.entrySet()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < groupFields.length; i++) {
+                row.put(groupFields[i], group.getKey().get(i));
+            }
+            if (count) {
+                row.put(COUNT, group.getValue()[0]);
+            }
+            rows.add(row);
+        }
+        // COUNT(*) over no rows is still one row
+        if (rows.isEmpty() && groupFields.length == 0 && count) {
+            rows.add(new LinkedHashMap<>(Map.of(COUNT, 0L)));
+        }
+        if (!orderBy.isEmpty()) {
+            rows.sort((left, right) -> {
+                for (OrderBy key : orderBy) {
+                    int result = key.compare(left.get(key.getField()), right.get(key.getField()));
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+                return 0;
+            });
+        }
+        return limit > 0 && rows.size() > limit ? new ArrayList<>(rows.subList(0, limit)) : rows;
+    }
+}
@@ -0,0 +1,103 @@
+package com.noel.utils;
+
+import com.noel.index.HistoryIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Several queries evaluated in one newest-first pass over a table.
+ * Every row is offered to each query that still wants rows, and the queries share one {@link RowContext},
+ * so a field several of them need, e.g. resp.body, is extracted once per row.
+ * Each query keeps its own plan, deduplication, LIMIT, projection and cursor.
+ * The pass only visits the ids some query can match and stops once every query is done.
+ */
+public class BatchQuery {
+    private static final int CHECKPOINT_MASK = 0xFF;
+
+    private final HistoryIndex historyIndex;
+    private final FieldRegistry fields;
+    private final QueryContext context;
+    private final List<SQLParser.Pass> passes = new ArrayList<>();
+
+    /**
+     * @param fields the fields of the table the queries select from
+     * @param context deadline of the whole batch
+     */
+    public BatchQuery(HistoryIndex historyIndex, FieldRegistry fields, QueryContext context) {
+        this.historyIndex = historyIndex;
+        this.fields = fields;
+        this.context = context;
+    }
+
+    /**
+     * The index every query of the batch has to be parsed with
+     */
+    public HistoryIndex index() {
+        return historyIndex;
+    }
+
+    /**
+     * The fields every query of the batch has to be parsed with
+     */
+    public FieldRegistry fields() {
+        return fields;
+    }
+
+    public void add(SQLParser.Pass pass) {
+        passes.add(pass);
+    }
+
+    /**
+     * Run the pass and finish every query, in the order they were added
+     */
+    public void run() {
+        int highWater = historyIndex.size();
+        int[] ids = candidates(highWater);
+        int total = ids != null ? ids.length : highWater;
+
+        RowContext row = fields.newRow();
+        int scanned = 0;
+        try {
+            for (int position = total - 1; position >= 0; position--) {
+                if ((++scanned & CHECKPOINT_MASK) == 0) {
+                    context.checkpoint();
+                }
+                row.reset(historyIndex.get(ids != null ? ids[position] : position));
+                boolean open = false;
+                for (SQLParser.Pass pass : passes) {
+                    if (!pass.isDone()) {
+                        pass.offer(row);
+                        open |= !pass.isDone();
+                    }
+                }
+                if (!open) {
+                    break;
+                }
+            }
+        } finally {
+            row.clear();
+            context.getProfile().addScanned(scanned);
+        }
+        for (SQLParser.Pass pass : passes) {
+            pass.finish();
+        }
+    }
+
+    /**
+     * The ascending ids any query can match, null if one of them has to see the whole history
+     */
+    private int[] candidates(int highWater) {
+        IntStream ids = IntStream.empty();
+        for (SQLParser.Pass pass : passes) {
+            int[] candidates = pass.candidates();
+            if (candidates == null) {
+                return null;
+            }
+            ids = IntStream.concat(ids, Arrays.stream(candidates));
+        }
+        return ids.filter(id -> id < highWater).sorted().distinct().toArray();
+    }
+}
@@ -0,0 +1,82 @@
+package com.noel.utils;
+
+import burp.api.montoya.core.ByteArray;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Limits the bytes of message content a query returns: every value is cut to the per-field budget,
+ * and the query stops after the row that used up the per-response budget.
+ */
+public class ByteBudget {
+    private final long maxFieldBytes;
+    private final long maxResponseBytes;
+    private long used;
+    private int truncatedFields;
+
+    /**
+     * @param maxFieldBytes bytes a single value may have, 0 or less means no limit
+     * @param maxResponseBytes bytes all rows may have together, 0 or less means no limit
+     */
+    public ByteBudget(long maxFieldBytes, long maxResponseBytes) {
+        this.maxFieldBytes = maxFieldBytes > 0 ? maxFieldBytes : Long.MAX_VALUE;
+        this.maxResponseBytes = maxResponseBytes > 0 ? maxResponseBytes : Long.MAX_VALUE;
+    }
+
+    /**
+     * Bytes a single value may have, Long.MAX_VALUE if there is no limit
+     */
+    public long getMaxFieldBytes() {
+        return maxFieldBytes;
+    }
+
+    /**
+     * Cut the values of a projected row to the field budget and charge them to the response budget
+     */
+    public Map<String, Object> apply(Map<String, Object> row) {
+        for (Map.Entry<String, Object> field : row.entrySet()) {
+            Object value = field.getValue();
+            if (value instanceof ByteArray) {
+                ByteArray bytes = (ByteArray) value;
+                if (bytes.length() > maxFieldBytes) {
+                    bytes = bytes.subArray(0, (int) maxFieldBytes);
+                    field.setValue(bytes);
+                    truncatedFields++;
+                }
+                used += bytes.length();
+            } else if (value instanceof String) {
+                String text = (String) value;
+                if (text.length() > maxFieldBytes) {
+                    text = text.substring(0, (int) maxFieldBytes);
+                    field.setValue(text);
+                    truncatedFields++;
+                }
+                used += text.length();
+            }
+        }
+        return row;
+    }
+
+    /**
+     * True once the rows so far used up the response budget, no more rows should be added
+     */
+    public boolean isExhausted() {
+        return used >= maxResponseBytes;
+    }
+
+    /**
+     * True if any value was cut or the rows stopped early
+     */
+    public boolean isTruncated() {
+        return truncatedFields > 0 || isExhausted();
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("fields", truncatedFields);
+        map.put("response", isExhausted());
+        map.put("bytes", used);
+        return map;
+    }
+}
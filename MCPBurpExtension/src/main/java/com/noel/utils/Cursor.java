@@ -0,0 +1,79 @@
+package com.noel.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque, stateless pagination cursor: the id of the last returned entry, the id the first page started below,
+ * and the hash of the compiled query.
+ * Ids only grow, so resuming below the last id continues the newest-first scan exactly where it stopped,
+ * and the hash makes sure a cursor is only used with the query that produced it.
+ * The matches between the two ids were returned by the earlier pages, a deduplicating query skips their requests.
+ */
+public final class Cursor {
+    private static final String VERSION = "v2";
+
+    private final int lastId;
+    private final int startId;
+
+    private Cursor(int lastId, int startId) {
+        this.lastId = lastId;
+        this.startId = startId;
+    }
+
+    /**
+     * The id the next page has to stay below
+     */
+    public int lastId() {
+        return lastId;
+    }
+
+    /**
+     * The id the first page started below, the history size when it was scanned
+     */
+    public int startId() {
+        return startId;
+    }
+
+    public static String encode(int lastId, int startId, String queryHash) {
+        String raw = VERSION + ":" + lastId + ":" + startId + ":" + queryHash;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static Cursor decode(String cursor, String queryHash) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8).split(":");
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        if (parts.length != 4 || !VERSION.equals(parts[0])) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        if (!parts[3].equals(queryHash)) {
+            throw new IllegalArgumentException("The cursor belongs to a different query or the table was indexed again, run the query again without cursor");
+        }
+        try {
+            int lastId = Integer.parseInt(parts[1]);
+            int startId = Integer.parseInt(parts[2]);
+            if (lastId < 0 || startId < lastId) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            return new Cursor(lastId, startId);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash, stable across restarts unlike String.hashCode() based maps
+     */
+    public static String hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+}
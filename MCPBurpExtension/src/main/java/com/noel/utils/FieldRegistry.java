@@ -0,0 +1,139 @@
+package com.noel.utils;
+
+import com.noel.index.HistoryEntry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Queryable fields and their extractors. Every field gets a slot number,
+ * compiled predicates and {@link RowContext} refer to fields by slot instead of by name.
+ * A field family, e.g. req.header., registers its members the first time a query names them,
+ * so a registry can grow while rows are being evaluated.
+ */
+public class FieldRegistry {
+    private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    private final List<String> names = new CopyOnWriteArrayList<>();
+    private final List<Function<HistoryEntry, Object>> extractors = new CopyOnWriteArrayList<>();
+    private final List<Double> costs = new CopyOnWriteArrayList<>();
+    private final List<Predicate.ValueKind> kinds = new CopyOnWriteArrayList<>();
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    public void register(String fieldName, Function<HistoryEntry, Object> extractor) {
+        register(fieldName, 1, extractor);
+    }
+
+    /**
+     * @param cost relative cost of extracting the field, 1 for a field read from the parsed request line
+     */
+    public void register(String fieldName, double cost, Function<HistoryEntry, Object> extractor) {
+        register(fieldName, cost, Predicate.ValueKind.STRING, extractor);
+    }
+
+    /**
+     * @param kind how conditions compare the values: NUMBER for numbers, BYTES for message contents, otherwise STRING
+     */
+    public synchronized void register(String fieldName, double cost, Predicate.ValueKind kind, Function<HistoryEntry, Object> extractor) {
+        String name = fieldName.toLowerCase();
+        Integer existing = slots.get(name);
+        if (existing != null) {
+            extractors.set(existing, extractor);
+            costs.set(existing, cost);
+            kinds.set(existing, kind);
+            return;
+        }
+        // Published through slots last, a row that finds the slot finds its extractor
+        names.add(name);
+        extractors.add(extractor);
+        costs.add(cost);
+        kinds.add(kind);
+        slots.put(name, names.size() - 1);
+    }
+
+    /**
+     * Register the fields named prefix + member, e.g. req.header.host, when a query first uses one
+     * @param factory the extractor of a member, given the lower case name after the prefix
+     */
+    public void registerFamily(String prefix, double cost, Function<String, Function<HistoryEntry, Object>> factory) {
+        families.put(prefix.toLowerCase(), new Family(cost, factory));
+    }
+
+    /**
+     * @return the slot of the field, -1 if the field is unknown
+     */
+    public int slot(String fieldName) {
+        String name = fieldName.toLowerCase();
+        Integer slot = slots.get(name);
+        return slot != null ? slot : registerMember(name);
+    }
+
+    private int registerMember(String name) {
+        String prefix = familyOf(name);
+        if (prefix == null) {
+            return -1;
+        }
+        synchronized (this) {
+            Integer slot = slots.get(name);
+            if (slot != null) {
+                return slot;
+            }
+            Family family = families.get(prefix);
+            register(name, family.cost, family.factory.apply(name.substring(prefix.length())));
+            return slots.get(name);
+        }
+    }
+
+    private String familyOf(String name) {
+        for (String prefix : families.keySet()) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Relative cost of extracting the field, 1 if the field is unknown
+     */
+    public double cost(String fieldName) {
+        int slot = slot(fieldName);
+        return slot >= 0 ? costs.get(slot) : 1;
+    }
+
+    /**
+     * How conditions compare the values of the field, STRING if the field is unknown
+     */
+    public Predicate.ValueKind kind(String fieldName) {
+        int slot = slot(fieldName);
+        return slot >= 0 ? kinds.get(slot) : Predicate.ValueKind.STRING;
+    }
+
+    public String name(int slot) {
+        return names.get(slot);
+    }
+
+    Function<HistoryEntry, Object> extractor(int slot) {
+        return extractors.get(slot);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public RowContext newRow() {
+        return new RowContext(this);
+    }
+
+    private static final class Family {
+        private final double cost;
+        private final Function<String, Function<HistoryEntry, Object>> factory;
+
+        Family(double cost, Function<String, Function<HistoryEntry, Object>> factory) {
+            this.cost = cost;
+            this.factory = factory;
+        }
+    }
+}
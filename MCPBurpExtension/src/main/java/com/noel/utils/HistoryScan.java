@@ -0,0 +1,261 @@
+package com.noel.utils;
+
+import com.noel.index.HistoryEntry;
+import com.noel.index.HistoryIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Newest-first scan over the history, or over the candidate ids chosen by the planner.
+ * Matches are handed to a {@link Sink} in newest-first order, the sink decides when to stop.
+ * The sink gets the same {@link RowContext} the residual predicate was evaluated with,
+ * so the fields it projects are not extracted twice.
+ *
+ * The parallel mode splits the scan into chunks of consecutive positions, newest chunk first,
+ * and evaluates them on a ForkJoin pool. Matches are merged back in chunk order so the sink sees
+ * exactly what the sequential scan would produce, and every worker stops as soon as the sink is satisfied.
+ */
+public class HistoryScan {
+    private static final int CHUNK_SIZE = 4096;
+    private static final int CHECKPOINT_MASK = 0xFF;
+
+    private static volatile ForkJoinPool pool;
+
+    /**
+     * Receives the matching entries, newest first
+     */
+    public interface Sink {
+        /**
+         * @param row the matching entry, only valid until the method returns
+         * @return false once no more matches are wanted
+         */
+        boolean accept(RowContext row);
+    }
+
+    private final HistoryIndex historyIndex;
+    private final int[] candidates;
+    // Positions below it hold ids the scan must not return
+    private final int first;
+    // Number of positions to scan, positions at or above it hold ids the scan must not return
+    private final int total;
+    private final Predicate residual;
+    private final QueryContext context;
+    private final FieldRegistry fields;
+
+    /**
+     * @param candidates ascending ids to scan, or null to scan the whole history
+     * @param residual predicate to evaluate per entry, or null if every candidate matches
+     */
+    public HistoryScan(HistoryIndex historyIndex, FieldRegistry fields, int[] candidates, Predicate residual, QueryContext context) {
+        this(historyIndex, fields, candidates, residual, context, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param beforeId only ids below it are scanned, used to resume from a cursor
+     */
+    public HistoryScan(HistoryIndex historyIndex, FieldRegistry fields, int[] candidates, Predicate residual, QueryContext context, int beforeId) {
+        this(historyIndex, fields, candidates, residual, context, 0, beforeId);
+    }
+
+    /**
+     * @param fromId only ids at or above it are scanned, used to replay the earlier pages of a cursor
+     * @param beforeId only ids below it are scanned
+     */
+    public HistoryScan(HistoryIndex historyIndex, FieldRegistry fields, int[] candidates, Predicate residual, QueryContext context,
+                       int fromId, int beforeId) {
+        this.historyIndex = historyIndex;
+        this.fields = fields;
+        this.candidates = candidates;
+        if (candidates != null) {
+            this.first = position(candidates, fromId);
+            this.total = Math.max(first, position(candidates, beforeId));
+        } else {
+            this.total = Math.min(historyIndex.size(), Math.max(beforeId, 0));
+            this.first = Math.min(total, Math.max(fromId, 0));
+        }
+        this.residual = residual;
+        this.context = context;
+    }
+
+    /**
+     * Position of the first candidate at or above the id
+     */
+    private static int position(int[] candidates, int id) {
+        int position = Arrays.binarySearch(candidates, id);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    /**
+     * Number of positions the scan covers, used to pick the parallel mode
+     */
+    public int size() {
+        return total - first;
+    }
+
+    public void sequential(Sink sink) {
+        RowContext row = fields.newRow();
+        try {
+            scanRange(total - 1, first - 1, sink, row);
+        } finally {
+            row.clear();
+        }
+    }
+
+    /**
+     * @param chunkMatchLimit how many matches a chunk may collect before it pauses, 0 for no limit.
+     *                        Pass the query limit: a chunk never needs more, and if deduplication drops some
+     *                        of them the merger resumes that chunk where it paused.
+     */
+    public void parallel(Sink sink, int chunkMatchLimit) {
+        if (size() <= CHUNK_SIZE) {
+            sequential(sink);
+            return;
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        RowContext row = fields.newRow();
+        List<Future<ChunkResult>> chunks = new ArrayList<>();
+        for (int from = total - 1; from >= first; from -= CHUNK_SIZE) {
+            int start = from;
+            int end = Math.max(from - CHUNK_SIZE, first - 1);
+            chunks.add(pool().submit(() -> evaluateChunk(start, end, chunkMatchLimit, stop)));
+        }
+
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                ChunkResult chunk = chunks.get(i).get();
+                boolean wantsMore = true;
+                for (int j = 0; j < chunk.count && wantsMore; j++) {
+                    // Fields a worker extracted are not shared across threads, the sink extracts its own
+                    wantsMore = sink.accept(row.reset(historyIndex.get(chunk.ids[j])));
+                }
+                if (wantsMore && chunk.resumeFrom > chunk.end) {
+                    // The chunk paused at its match limit, finish it here
+                    wantsMore = scanRange(chunk.resumeFrom, chunk.end, sink, row);
+                }
+                if (!wantsMore) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryTimeoutException("Query was interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            row.clear();
+            stop.set(true);
+            for (Future<ChunkResult> chunk : chunks) {
+                chunk.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Scan positions from start down to end (exclusive)
+     * @return false if the sink asked to stop
+     */
+    private boolean scanRange(int start, int end, Sink sink, RowContext row) {
+        int scanned = 0;
+        try {
+            for (int position = start; position > end; position--) {
+                if ((++scanned & CHECKPOINT_MASK) == 0) {
+                    context.checkpoint();
+                }
+                row.reset(entryAt(position));
+                if (residual != null && !residual.test(row)) {
+                    continue;
+                }
+                if (!sink.accept(row)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            context.getProfile().addScanned(scanned);
+        }
+    }
+
+    private ChunkResult evaluateChunk(int start, int end, int matchLimit, AtomicBoolean stop) {
+        ChunkResult result = new ChunkResult(end);
+        RowContext row = fields.newRow();
+        int scanned = 0;
+        int position = start;
+        for (; position > end; position--) {
+            if ((++scanned & CHECKPOINT_MASK) == 0) {
+                if (stop.get()) {
+                    break;
+                }
+                context.checkpoint();
+            }
+            if (matchLimit > 0 && result.count >= matchLimit) {
+                break;
+            }
+            HistoryEntry entry = entryAt(position);
+            if (residual == null || residual.test(row.reset(entry))) {
+                result.add(entry.id());
+            }
+        }
+        row.clear();
+        result.resumeFrom = position;
+        context.getProfile().addScanned(start - position);
+        return result;
+    }
+
+    private HistoryEntry entryAt(int position) {
+        return historyIndex.get(candidates != null ? candidates[position] : position);
+    }
+
+    /**
+     * Stop the workers of the parallel scan, called when the extension is unloaded so they do not keep its classes alive
+     */
+    public static void shutdown() {
+        synchronized (HistoryScan.class) {
+            if (pool != null) {
+                pool.shutdownNow();
+                pool = null;
+            }
+        }
+    }
+
+    private static ForkJoinPool pool() {
+        if (pool == null) {
+            synchronized (HistoryScan.class) {
+                if (pool == null) {
+                    pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Matching ids of one chunk, newest first, and the position the chunk stopped at
+     */
+    private static class ChunkResult {
+        private final int end;
+        private int[] ids = new int[16];
+        private int count;
+        private int resumeFrom;
+
+        ChunkResult(int end) {
+            this.end = end;
+        }
+
+        void add(int id) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.noel.utils;
+
+import burp.api.montoya.core.ByteArray;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parsers behind the header, parameter and JSON fields. They read the raw message in place and stop
+ * as soon as they found what was asked for, the rest of the message is never looked at.
+ * Names are matched in any case, the names they are given are lower case.
+ */
+final class MessageParsers {
+
+    private MessageParsers() {
+    }
+
+    /**
+     * The value of the first header with the given name, null if there is none
+     */
+    static String header(ByteArray message, String name) {
+        int length = message.length();
+        int lineStart = nextLine(message, 0, length);
+        while (lineStart < length) {
+            int next = nextLine(message, lineStart, length);
+            int end = next;
+            if (end > lineStart && message.getByte(end - 1) == '\n') {
+                end--;
+            }
+            if (end > lineStart && message.getByte(end - 1) == '\r') {
+                end--;
+            }
+            if (end == lineStart) {
+                // The blank line before the body
+                return null;
+            }
+            if (isHeader(message, lineStart, end, name)) {
+                return text(message, lineStart + name.length() + 1, end).trim();
+            }
+            lineStart = next;
+        }
+        return null;
+    }
+
+    /**
+     * The decoded value of the first query parameter with the given name, or of the first
+     * form parameter of a urlencoded body. Null if there is none, empty if it has no value.
+     */
+    static String param(ByteArray request, String name) {
+        int length = request.length();
+        int lineEnd = nextLine(request, 0, length);
+        int question = request.indexOf("?", true, 0, lineEnd);
+        if (question >= 0) {
+            int queryEnd = request.indexOf(" ", true, question, lineEnd);
+            String value = findParam(request, question + 1, queryEnd >= 0 ? queryEnd : lineEnd, name);
+            if (value != null) {
+                return value;
+            }
+        }
+        String contentType = header(request, "content-type");
+        if (contentType == null || !contentType.toLowerCase().contains("application/x-www-form-urlencoded")) {
+            return null;
+        }
+        return findParam(request, bodyStart(request), length, name);
+    }
+
+    /**
+     * The value at the path of a JSON body: strings, numbers and booleans as text, objects and arrays as JSON.
+     * Null if the body is not JSON or has nothing at the path.
+     * @param path object keys and array indexes, see {@link #jsonPath(String)}
+     */
+    static String json(ByteArray body, String[] path) {
+        if (body == null || body.length() == 0) {
+            return null;
+        }
+        try (JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInput(body), StandardCharsets.UTF_8))) {
+            reader.setLenient(true);
+            for (String step : path) {
+                switch (reader.peek()) {
+                    case BEGIN_OBJECT:
+                        reader.beginObject();
+                        if (!skipToName(reader, step)) {
+                            return null;
+                        }
+                        break;
+                    case BEGIN_ARRAY:
+                        reader.beginArray();
+                        if (!skipToIndex(reader, step)) {
+                            return null;
+                        }
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            switch (reader.peek()) {
+                case STRING:
+                case NUMBER:
+                    return reader.nextString();
+                case BOOLEAN:
+                    return String.valueOf(reader.nextBoolean());
+                case BEGIN_OBJECT:
+                case BEGIN_ARRAY:
+                    return JsonParser.parseReader(reader).toString();
+                default:
+                    return null;
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Split a JSON path like data.items[0].id into its keys and indexes
+     */
+    static String[] jsonPath(String path) {
+        List<String> steps = new ArrayList<>();
+        for (String part : path.replace("[", ".").replace("]", "").split("\\.", -1)) {
+            if (part.isEmpty()) {
+                throw new IllegalArgumentException("Invalid JSON path: " + path);
+            }
+            steps.add(part);
+        }
+        return steps.toArray(new String[0]);
+    }
+
+    private static boolean skipToName(JsonReader reader, String name) throws IOException {
+        while (reader.hasNext()) {
+            if (reader.nextName().equalsIgnoreCase(name)) {
+                return true;
+            }
+            reader.skipValue();
+        }
+        return false;
+    }
+
+    private static boolean skipToIndex(JsonReader reader, String step) throws IOException {
+        int index;
+        try {
+            index = Integer.parseInt(step);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        for (int i = 0; i < index; i++) {
+            if (!reader.hasNext()) {
+                return false;
+            }
+            reader.skipValue();
+        }
+        return reader.hasNext();
+    }
+
+    private static String findParam(ByteArray message, int start, int end, String name) {
+        int pairStart = start;
+        while (pairStart < end) {
+            int ampersand = message.indexOf("&", true, pairStart, end);
+            int pairEnd = ampersand >= 0 ? ampersand : end;
+            int equals = message.indexOf("=", true, pairStart, pairEnd);
+            int nameEnd = equals >= 0 ? equals : pairEnd;
+            if (decode(text(message, pairStart, nameEnd)).equalsIgnoreCase(name)) {
+                return equals >= 0 ? decode(text(message, equals + 1, pairEnd)) : "";
+            }
+            pairStart = pairEnd + 1;
+        }
+        return null;
+    }
+
+    private static boolean isHeader(ByteArray message, int start, int end, String name) {
+        int colon = start + name.length();
+        if (colon >= end || message.getByte(colon) != ':') {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase((char) (message.getByte(start + i) & 0xFF)) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int nextLine(ByteArray message, int from, int length) {
+        int newline = message.indexOf("\n", true, from, length);
+        return newline >= 0 ? newline + 1 : length;
+    }
+
+    private static int bodyStart(ByteArray message) {
+        int end = message.indexOf("\r\n\r\n", true, 0, message.length());
+        if (end >= 0) {
+            return end + 4;
+        }
+        end = message.indexOf("\n\n", true, 0, message.length());
+        return end >= 0 ? end + 2 : message.length();
+    }
+
+    /**
+     * Bytes as chars one to one, like Burp does
+     */
+    private static String text(ByteArray message, int start, int end) {
+        StringBuilder text = new StringBuilder(Math.max(end - start, 0));
+        for (int i = start; i < end; i++) {
+            text.append((char) (message.getByte(i) & 0xFF));
+        }
+        return text.toString();
+    }
+
+    private static String decode(String value) {
+        if (value.indexOf('%') < 0 && value.indexOf('+') < 0) {
+            return value;
+        }
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+    /**
+     * Reads a ByteArray without copying it
+     */
+    private static final class ByteArrayInput extends InputStream {
+        private final ByteArray bytes;
+        private final int length;
+        private int position;
+
+        ByteArrayInput(ByteArray bytes) {
+            this.bytes = bytes;
+            this.length = bytes.length();
+        }
+
+        @Override
+        public int read() {
+            return position < length ? bytes.getByte(position++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (position >= length) {
+                return -1;
+            }
+            int read = Math.min(count, length - position);
+            for (int i = 0; i < read; i++) {
+                buffer[offset + i] = bytes.getByte(position++);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.noel.utils;
+
+import burp.api.montoya.core.ByteArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One key of an ORDER BY clause, for example: count DESC or status_code
+ */
+public class OrderBy {
+    private final String field;
+    private final boolean descending;
+
+    public OrderBy(String field, boolean descending) {
+        this.field = field;
+        this.descending = descending;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * Parse the keys of an ORDER BY clause, e.g. "count DESC, host"
+     */
+    public static List<OrderBy> parse(String clause) {
+        List<OrderBy> keys = new ArrayList<>();
+        for (String item : clause.trim().split("\\s*,\\s*")) {
+            String[] parts = item.trim().split("\\s+");
+            if (parts.length > 2 || parts[0].isEmpty()) {
+                throw new IllegalArgumentException("Cannot parse the order by clause: " + clause);
+            }
+            boolean descending = false;
+            if (parts.length == 2) {
+                if (parts[1].equalsIgnoreCase("desc")) {
+                    descending = true;
+                } else if (!parts[1].equalsIgnoreCase("asc")) {
+                    throw new IllegalArgumentException("Cannot parse the order by clause: " + clause);
+                }
+            }
+            keys.add(new OrderBy(parts[0].toLowerCase(), descending));
+        }
+        return keys;
+    }
+
+    /**
+     * Compare two field values in this key's direction: numbers by value, anything else as text.
+     * Missing values sort last in both directions.
+     */
+    public int compare(Object left, Object right) {
+        if (left == null || right == null) {
+            return left == null ? (right == null ? 0 : 1) : -1;
+        }
+        int result;
+        if (left instanceof Number && right instanceof Number) {
+            result = Long.compare(((Number) left).longValue(), ((Number) right).longValue());
+        } else {
+            result = left.toString().compareTo(right.toString());
+        }
+        return descending ? -result : result;
+    }
+
+    /**
+     * Group and sort keys use the text of message contents, ByteArray has no value equality
+     */
+    static Object comparable(Object value) {
+        return value instanceof ByteArray ? value.toString() : value;
+    }
+
+    @Override
+    public String toString() {
+        return field + (descending ? " DESC" : " ASC");
+    }
+}
@@ -0,0 +1,399 @@
+package com.noel.utils;
+
+import burp.api.montoya.core.ByteArray;
+import com.noel.metrics.Metrics;
+
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A compiled WHERE clause node. Predicates are immutable and built once per query by {@link QueryCompiler},
+ * so evaluating one against a history item never touches the SQL text again.
+ * Field values are read from the {@link RowContext}, which extracts each field of a row at most once.
+ */
+public interface Predicate {
+
+    boolean test(RowContext row);
+
+    /**
+     * Comparison operators supported by the dialect
+     */
+    enum Operator {
+        EQ("="), NE("!="), LIKE("like"), GT(">"), LT("<"), GE(">="), LE("<="), REGEX("regex");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public String symbol() {
+            return symbol;
+        }
+
+        public static Operator of(String symbol) {
+            if (symbol.equals("~")) {
+                return REGEX;
+            }
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported operator: " + symbol);
+        }
+
+        boolean compare(int actual, int expected) {
+            switch (this) {
+                case EQ:
+                    return actual == expected;
+                case NE:
+                    return actual != expected;
+                case GT:
+                    return actual > expected;
+                case LT:
+                    return actual < expected;
+                case GE:
+                    return actual >= expected;
+                case LE:
+                    return actual <= expected;
+                default:
+                    return false;
+            }
+        }
+
+        boolean compare(String actual, String expected) {
+            switch (this) {
+                case EQ:
+                    return actual.equals(expected);
+                case NE:
+                    return !actual.equals(expected);
+                case LIKE:
+                    return actual.contains(expected);
+                case GT:
+                    return actual.compareTo(expected) > 0;
+                case LT:
+                    return actual.compareTo(expected) < 0;
+                case GE:
+                    return actual.compareTo(expected) >= 0;
+                case LE:
+                    return actual.compareTo(expected) <= 0;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * How a comparison treats the extracted field value, decided once at compile time.
+     * BYTES values are message contents matched in place, without decoding them to a String.
+     */
+    enum ValueKind {
+        STRING, NUMBER, OBJECT, BYTES
+    }
+
+    final class And implements Predicate {
+        private final Predicate[] children;
+
+        public And(List<Predicate> children) {
+            this.children = children.toArray(new Predicate[0]);
+        }
+
+        public List<Predicate> children() {
+            return List.of(children);
+        }
+
+        @Override
+        public boolean test(RowContext row) {
+            for (Predicate child : children) {
+                if (!child.test(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return List.of(children).stream().map(Object::toString).collect(Collectors.joining(" and ", "(", ")"));
+        }
+    }
+
+    final class Or implements Predicate {
+        private final Predicate[] children;
+
+        public Or(List<Predicate> children) {
+            this.children = children.toArray(new Predicate[0]);
+        }
+
+        public List<Predicate> children() {
+            return List.of(children);
+        }
+
+        @Override
+        public boolean test(RowContext row) {
+            for (Predicate child : children) {
+                if (child.test(row)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return List.of(children).stream().map(Object::toString).collect(Collectors.joining(" or ", "(", ")"));
+        }
+    }
+
+    final class Not implements Predicate {
+        private final Predicate child;
+
+        public Not(Predicate child) {
+            this.child = child;
+        }
+
+        public Predicate child() {
+            return child;
+        }
+
+        @Override
+        public boolean test(RowContext row) {
+            return !child.test(row);
+        }
+
+        @Override
+        public String toString() {
+            return "not " + child;
+        }
+    }
+
+    /**
+     * Field comparison, for example: host = 'example.com' or status_code >= 500
+     */
+    final class Comparison implements Predicate {
+        private final String field;
+        private final int slot;
+        private final Operator operator;
+        private final ValueKind kind;
+        private final Object value;
+        private final int intValue;
+        // Burp maps message bytes to chars one to one, a needle with wider chars can never match
+        private final boolean byteMatchable;
+
+        public Comparison(String field, int slot, Operator operator, ValueKind kind, Object value) {
+            this.field = field;
+            this.slot = slot;
+            this.operator = operator;
+            this.kind = kind;
+            this.value = value;
+            this.intValue = kind == ValueKind.NUMBER ? (Integer) value : 0;
+            this.byteMatchable = kind == ValueKind.BYTES && ((String) value).chars().allMatch(c -> c <= 0xFF);
+        }
+
+        public String field() {
+            return field;
+        }
+
+        public Operator operator() {
+            return operator;
+        }
+
+        public Object value() {
+            return value;
+        }
+
+        @Override
+        public boolean test(RowContext row) {
+            Object fieldValue = row.get(slot);
+            if (fieldValue == null) {
+                return false;
+            }
+            switch (kind) {
+                case NUMBER:
+                    return operator.compare(((Number) fieldValue).intValue(), intValue);
+                case OBJECT:
+                    return operator == Operator.EQ ? fieldValue.equals(value) : !fieldValue.equals(value);
+                case BYTES:
+                    return compareBytes((ByteArray) fieldValue);
+                default:
+                    return operator.compare(fieldValue.toString(), (String) value);
+            }
+        }
+
+        private boolean compareBytes(ByteArray bytes) {
+            String needle = (String) value;
+            switch (operator) {
+                case LIKE:
+                    return byteMatchable && (needle.isEmpty() || bytes.indexOf(needle, true) >= 0);
+                case EQ:
+                    return byteMatchable && equalsBytes(bytes, needle);
+                case NE:
+                    return !(byteMatchable && equalsBytes(bytes, needle));
+                default:
+                    return operator.compare(bytes.toString(), needle);
+            }
+        }
+
+        private static boolean equalsBytes(ByteArray bytes, String needle) {
+            if (bytes.length() != needle.length()) {
+                return false;
+            }
+            return needle.isEmpty() || bytes.indexOf(needle, true, 0, bytes.length()) == 0;
+        }
+
+        @Override
+        public String toString() {
+            return field + " " + operator.symbol() + " " + (value instanceof String ? "'" + value + "'" : String.valueOf(value));
+        }
+    }
+
+    /**
+     * Regular expression search, for example: resp.body regex 'eyJ[\w-]+\.eyJ[\w-]+'.
+     * The pattern only runs on values that contain every literal it requires, and a search that runs
+     * past the timeout counts as no match and in the regex.timeouts metric.
+     */
+    final class RegexMatch implements Predicate {
+        private final String field;
+        private final int slot;
+        private final Pattern pattern;
+        private final RegexLiterals literals;
+        private final long timeoutNanos;
+
+        public RegexMatch(String field, int slot, Pattern pattern, long timeoutNanos) {
+            this.field = field;
+            this.slot = slot;
+            this.pattern = pattern;
+            this.literals = RegexLiterals.of(pattern.pattern());
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        public String field() {
+            return field;
+        }
+
+        /**
+         * Literals every match contains, longest first
+         */
+        public List<String> requiredLiterals() {
+            return literals.literals();
+        }
+
+        /**
+         * True if the required literals may match in any case
+         */
+        public boolean isCaseInsensitive() {
+            return literals.isCaseInsensitive();
+        }
+
+        @Override
+        public boolean test(RowContext row) {
+            Object fieldValue = row.get(slot);
+            if (fieldValue == null) {
+                return false;
+            }
+            boolean caseSensitive = !literals.isCaseInsensitive();
+            CharSequence text;
+            long deadline = System.nanoTime() + timeoutNanos;
+            if (fieldValue instanceof ByteArray) {
+                ByteArray bytes = (ByteArray) fieldValue;
+                for (String literal : literals.literals()) {
+                    if (bytes.indexOf(literal, caseSensitive) < 0) {
+                        return false;
+                    }
+                }
+                text = new TimedCharSequence(bytes, deadline);
+            } else {
+                String value = fieldValue.toString();
+                for (String literal : literals.literals()) {
+                    if (caseSensitive && !value.contains(literal)) {
+                        return false;
+                    }
+                }
+                text = new TimedCharSequence(value, deadline);
+            }
+            try {
+                return pattern.matcher(text).find();
+            } catch (TimedCharSequence.Timeout e) {
+                Metrics.counter("regex.timeouts").increment();
+                return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return field + " regex '" + pattern.pattern() + "'";
+        }
+    }
+
+    /**
+     * Length check, for example: len(resp.body) > 10
+     */
+    final class LengthComparison implements Predicate {
+        private final String field;
+        private final int slot;
+        private final Operator operator;
+        private final int length;
+
+        public LengthComparison(String field, int slot, Operator operator, int length) {
+            this.field = field;
+            this.slot = slot;
+            this.operator = operator;
+            this.length = length;
+        }
+
+        public String field() {
+            return field;
+        }
+
+        public Operator operator() {
+            return operator;
+        }
+
+        @Override
+        public boolean test(RowContext row) {
+            Object fieldValue = row.get(slot);
+            if (fieldValue == null) {
+                return false;
+            }
+            int actual = fieldValue instanceof Number ? ((Number) fieldValue).intValue()
+                    : fieldValue instanceof ByteArray ? ((ByteArray) fieldValue).length() : fieldValue.toString().length();
+            return operator.compare(actual, length);
+        }
+
+        @Override
+        public String toString() {
+            return "len(" + field + ") " + operator.symbol() + " " + length;
+        }
+    }
+
+    /**
+     * Comparison that records how often it matches, added by the {@link QueryPlanner} to the residual predicate
+     */
+    final class Measured implements Predicate {
+        private final Predicate child;
+        private final PredicateStats stats;
+
+        Measured(Predicate child, PredicateStats stats) {
+            this.child = child;
+            this.stats = stats;
+        }
+
+        public Predicate child() {
+            return child;
+        }
+
+        @Override
+        public boolean test(RowContext row) {
+            boolean matched = child.test(row);
+            stats.record(matched);
+            return matched;
+        }
+
+        @Override
+        public String toString() {
+            return child.toString();
+        }
+    }
+}
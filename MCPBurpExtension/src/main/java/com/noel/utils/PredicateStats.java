@@ -0,0 +1,61 @@
+package com.noel.utils;
+
+import com.noel.index.HistoryIndex;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running selectivity of the comparisons seen by the queries, keyed by their normalized text.
+ * Agents repeat the same conditions, so what a condition matched last time is a good guess for the next query.
+ * Every history index keeps its own statistics, the tables do not share their estimates.
+ */
+public final class PredicateStats {
+    // Keep the table small, conditions seen after it is full are estimated from their operator only
+    private static final int MAX_PREDICATES = 4096;
+    // Weight of the prior estimate, in rows, before enough rows have been observed
+    private static final double PRIOR_ROWS = 32;
+
+    // Statistics of an index go away with it, a rebuilt table starts over
+    private static final Map<HistoryIndex, Map<String, PredicateStats>> byIndex = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder passed = new LongAdder();
+
+    private PredicateStats() {
+    }
+
+    /**
+     * Stats of a comparison over the given index, null once its table is full and the comparison is new
+     */
+    static PredicateStats of(HistoryIndex historyIndex, Predicate comparison) {
+        Map<String, PredicateStats> stats = byIndex.computeIfAbsent(historyIndex, index -> new ConcurrentHashMap<>());
+        String key = comparison.toString();
+        PredicateStats result = stats.get(key);
+        if (result == null && stats.size() < MAX_PREDICATES) {
+            result = stats.computeIfAbsent(key, k -> new PredicateStats());
+        }
+        return result;
+    }
+
+    void record(boolean matched) {
+        evaluated.increment();
+        if (matched) {
+            passed.increment();
+        }
+    }
+
+    public long evaluated() {
+        return evaluated.sum();
+    }
+
+    /**
+     * Observed fraction of rows that passed, blended with the prior while few rows were seen
+     */
+    public double selectivity(double prior) {
+        return (passed.sum() + prior * PRIOR_ROWS) / (evaluated.sum() + PRIOR_ROWS);
+    }
+}
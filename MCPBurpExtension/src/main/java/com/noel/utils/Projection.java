@@ -0,0 +1,224 @@
+package com.noel.utils;
+
+import burp.api.montoya.core.ByteArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A function in the SELECT list returning part of a field instead of all of it:
+ * snippet(resp.body, 'password', 200), head(resp, 4096) or headers(resp).
+ * Message contents are cut from their bytes, only the returned part is copied and nothing is decoded to a String.
+ */
+public abstract class Projection {
+    private static final Pattern FUNCTION = Pattern.compile("(\\w+)\\s*\\((.*)\\)", Pattern.DOTALL);
+    private static final int DEFAULT_SNIPPET_LENGTH = 200;
+
+    private final String name;
+    protected final int slot;
+
+    private Projection(String name, int slot) {
+        this.name = name;
+        this.slot = slot;
+    }
+
+    /**
+     * True if the SELECT item calls a function rather than naming a field
+     */
+    public static boolean isFunction(String item) {
+        return FUNCTION.matcher(item.trim()).matches();
+    }
+
+    /**
+     * Compile a SELECT item such as snippet(resp.body, 'token', 100), the item text becomes the result key
+     */
+    public static Projection compile(String item, FieldRegistry fields) {
+        Matcher matcher = FUNCTION.matcher(item.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Cannot parse the select item: " + item);
+        }
+        String function = matcher.group(1).toLowerCase();
+        List<String> arguments = split(matcher.group(2));
+        String field = arguments.isEmpty() ? "" : arguments.get(0).toLowerCase();
+        int slot = fields.slot(field);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unsupported field: " + field);
+        }
+        String name = item.trim();
+        switch (function) {
+            case "snippet":
+                if (arguments.size() < 2 || arguments.size() > 3) {
+                    throw new IllegalArgumentException("Usage: snippet(field, 'text', length)");
+                }
+                return new Snippet(name, slot, unquote(arguments.get(1)),
+                        arguments.size() == 3 ? number(arguments.get(2)) : DEFAULT_SNIPPET_LENGTH);
+            case "head":
+                if (arguments.size() != 2) {
+                    throw new IllegalArgumentException("Usage: head(field, length)");
+                }
+                return new Head(name, slot, number(arguments.get(1)));
+            case "headers":
+                if (arguments.size() != 1 || !(field.equals("req") || field.equals("resp"))) {
+                    throw new IllegalArgumentException("Usage: headers(req) or headers(resp)");
+                }
+                return new Headers(name, slot);
+            default:
+                throw new IllegalArgumentException("Unsupported function: " + function);
+        }
+    }
+
+    /**
+     * Split a comma separated list, commas inside quotes or parentheses do not count
+     */
+    public static List<String> split(String list) {
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                items.add(list.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        String last = list.substring(start).trim();
+        if (!last.isEmpty() || !items.isEmpty()) {
+            items.add(last);
+        }
+        return items;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The part of the field of the current row, null if the field is missing or has no such part
+     */
+    public abstract Object apply(RowContext row);
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && (value.charAt(0) == '\'' || value.charAt(0) == '"')
+                && value.charAt(value.length() - 1) == value.charAt(0)) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static int number(String value) {
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number < 0) {
+                throw new IllegalArgumentException("Expected a positive length: " + value);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number: " + value);
+        }
+    }
+
+    /**
+     * The bytes or chars from start to end of a field value
+     */
+    private static Object slice(Object value, int start, int end) {
+        if (value instanceof ByteArray) {
+            ByteArray bytes = (ByteArray) value;
+            if (start == 0 && end == bytes.length()) {
+                return bytes;
+            }
+            return end > start ? bytes.subArray(start, end) : "";
+        }
+        return value.toString().substring(start, end);
+    }
+
+    private static int length(Object value) {
+        return value instanceof ByteArray ? ((ByteArray) value).length() : value.toString().length();
+    }
+
+    private static int indexOf(Object value, String text) {
+        if (value instanceof ByteArray) {
+            return text.isEmpty() ? 0 : ((ByteArray) value).indexOf(text, true);
+        }
+        return value.toString().indexOf(text);
+    }
+
+    /**
+     * A window of the given length around the first match of the text, like the `like` operator matches
+     */
+    private static final class Snippet extends Projection {
+        private final String text;
+        private final int length;
+
+        Snippet(String name, int slot, String text, int length) {
+            super(name, slot);
+            this.text = text;
+            this.length = length;
+        }
+
+        @Override
+        public Object apply(RowContext row) {
+            Object value = row.get(slot);
+            if (value == null) {
+                return null;
+            }
+            int match = indexOf(value, text);
+            if (match < 0) {
+                return null;
+            }
+            int total = length(value);
+            int start = Math.max(0, match - Math.max(0, length - text.length()) / 2);
+            int end = Math.min(total, start + length);
+            return slice(value, Math.max(0, end - length), end);
+        }
+    }
+
+    /**
+     * The first bytes of the field
+     */
+    private static final class Head extends Projection {
+        private final int length;
+
+        Head(String name, int slot, int length) {
+            super(name, slot);
+            this.length = length;
+        }
+
+        @Override
+        public Object apply(RowContext row) {
+            Object value = row.get(slot);
+            return value == null ? null : slice(value, 0, Math.min(length, length(value)));
+        }
+    }
+
+    /**
+     * The start line and headers of a message, up to the blank line before the body
+     */
+    private static final class Headers extends Projection {
+        Headers(String name, int slot) {
+            super(name, slot);
+        }
+
+        @Override
+        public Object apply(RowContext row) {
+            Object value = row.get(slot);
+            if (value == null) {
+                return null;
+            }
+            int end = indexOf(value, "\r\n\r\n");
+            return slice(value, 0, end >= 0 ? end : length(value));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.noel.utils;
+
+import com.noel.metrics.Metrics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of query results keyed by the normalized compiled query.
+ * Only the matching ids are kept, never message contents, and every result is tagged with the history
+ * high-water mark so it can be reused as is, or extended with the traffic captured since.
+ * Evicts by number of entries and by the total number of cached ids.
+ */
+public class QueryCache {
+    // Rough per-entry cost besides the ids: map entry, key and result object
+    private static final int ENTRY_OVERHEAD_IDS = 32;
+
+    /**
+     * Ids of a query result, newest first, and the state of the history they were computed from
+     */
+    public static class Result {
+        private final int[] ids;
+        private final int highWater;
+        private final int attachSeq;
+        private final boolean complete;
+
+        /**
+         * @param highWater history size when the result was computed
+         * @param attachSeq number of responses attached to the history at that time
+         * @param complete  true if the scan reached the end of the history instead of stopping at LIMIT
+         */
+        public Result(int[] ids, int highWater, int attachSeq, boolean complete) {
+            this.ids = ids;
+            this.highWater = highWater;
+            this.attachSeq = attachSeq;
+            this.complete = complete;
+        }
+
+        public int[] getIds() {
+            return ids;
+        }
+
+        public int getHighWater() {
+            return highWater;
+        }
+
+        public int getAttachSeq() {
+            return attachSeq;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+
+        private long weight(String key) {
+            return ids.length + key.length() / 2 + ENTRY_OVERHEAD_IDS;
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxIds;
+    private final Map<String, Result> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private final LongAdder hits = Metrics.counter("cache.hits");
+    private final LongAdder misses = Metrics.counter("cache.misses");
+    private final LongAdder extended = Metrics.counter("cache.incremental");
+    private final LongAdder evictions = Metrics.counter("cache.evictions");
+
+    public QueryCache(int maxEntries, long maxIds) {
+        this.maxEntries = maxEntries;
+        this.maxIds = maxIds;
+        Metrics.gauge("cache.entries", this::size);
+        Metrics.gauge("cache.bytes", () -> weight() * Integer.BYTES);
+    }
+
+    public synchronized Result get(String key) {
+        return results.get(key);
+    }
+
+    public synchronized void put(String key, Result result) {
+        if (result.weight(key) > maxIds) {
+            // Too large to ever fit, keep whatever is cached instead
+            return;
+        }
+        Result previous = results.put(key, result);
+        if (previous != null) {
+            weight -= previous.weight(key);
+        }
+        weight += result.weight(key);
+
+        Iterator<Map.Entry<String, Result>> eldest = results.entrySet().iterator();
+        while ((results.size() > maxEntries || weight > maxIds) && eldest.hasNext()) {
+            Map.Entry<String, Result> entry = eldest.next();
+            if (entry.getValue() == result) {
+                break;
+            }
+            weight -= entry.getValue().weight(entry.getKey());
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    public void recordExtended() {
+        extended.increment();
+    }
+
+    public synchronized long size() {
+        return results.size();
+    }
+
+    private synchronized long weight() {
+        return weight;
+    }
+}
@@ -0,0 +1,319 @@
+package com.noel.utils;
+
+import burp.api.montoya.http.message.ContentType;
+import burp.api.montoya.http.message.MimeType;
+import com.noel.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Compile a WHERE clause into an immutable {@link Predicate} tree.
+ * All regex matching, lowercasing and value conversion happen here, once per query.
+ * Grammar (lowest to highest precedence): or, and, not, parentheses, condition.
+ */
+public class QueryCompiler {
+
+    private static final Pattern LEN_PATTERN = Pattern.compile("len\\(([^)]+)\\)\\s*(>=|<=|!=|>|<|=)\\s*(\\d+)");
+    private static final Pattern CONDITION_PATTERN = Pattern.compile("((?:req|resp)\\.(?:header|param|json)\\.[\\w.\\-\\[\\]]+|(?:req|resp)?(?:\\.|\\w+\\.)?\\w+)\\s*(=|like|regex|~|!=|>=|<=|>|<)\\s*(?:'([^']*)'|\"([^\"]*)\"|([^\\s]+))");
+
+    // A regex search on one value that takes longer counts as no match
+    private static final long REGEX_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Config.getLong("regex.timeoutMs", 100));
+
+    private final FieldRegistry fields;
+    private final List<String> conditions = new ArrayList<>();
+
+    private List<String> tokens;
+    private int position;
+
+    public QueryCompiler(FieldRegistry fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * The raw condition strings seen by the last compile, in the order they were written
+     */
+    public List<String> getConditions() {
+        return conditions;
+    }
+
+    public Predicate compile(String whereClause) {
+        conditions.clear();
+        tokens = tokenize(whereClause);
+        position = 0;
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("Cannot parse the SQL query, missing where clause");
+        }
+
+        Predicate predicate = parseOr();
+        if (position < tokens.size()) {
+            throw new IllegalArgumentException("Cannot parse the where clause near: " + tokens.get(position));
+        }
+        return predicate;
+    }
+
+    private Predicate parseOr() {
+        List<Predicate> children = new ArrayList<>();
+        children.add(parseAnd());
+        while (peekKeyword("or")) {
+            position++;
+            children.add(parseAnd());
+        }
+        return children.size() == 1 ? children.get(0) : new Predicate.Or(children);
+    }
+
+    private Predicate parseAnd() {
+        List<Predicate> children = new ArrayList<>();
+        children.add(parseNot());
+        while (peekKeyword("and")) {
+            position++;
+            children.add(parseNot());
+        }
+        return children.size() == 1 ? children.get(0) : new Predicate.And(children);
+    }
+
+    private Predicate parseNot() {
+        if (peekKeyword("not")) {
+            position++;
+            return new Predicate.Not(parseNot());
+        }
+        if (peek("(")) {
+            position++;
+            Predicate inner = parseOr();
+            if (!peek(")")) {
+                throw new IllegalArgumentException("Cannot parse the where clause, missing ')'");
+            }
+            position++;
+            return inner;
+        }
+        if (position >= tokens.size()) {
+            throw new IllegalArgumentException("Cannot parse the where clause, missing condition");
+        }
+        String condition = tokens.get(position++);
+        conditions.add(condition);
+        return compileCondition(condition);
+    }
+
+    private boolean peek(String token) {
+        return position < tokens.size() && tokens.get(position).equals(token);
+    }
+
+    private boolean peekKeyword(String keyword) {
+        return position < tokens.size() && tokens.get(position).equalsIgnoreCase(keyword);
+    }
+
+    /**
+     * Compile a single condition, for example: host = 'example.com', url ~ '/api/v\d+/' or len(resp.body) > 10
+     */
+    private Predicate compileCondition(String condition) {
+        // Handle length conditions
+        Matcher lenMatcher = LEN_PATTERN.matcher(condition);
+        if (lenMatcher.find()) {
+            String key = lenMatcher.group(1).trim().toLowerCase();
+            Predicate.Operator operator = lengthOperator(lenMatcher.group(2).trim());
+            // Whole messages have their length in a column, read it instead of the message
+            int lengthSlot = fields.slot("len(" + key + ")");
+            int slot = lengthSlot >= 0 ? lengthSlot : slot(key);
+            return new Predicate.LengthComparison(key, slot, operator, Integer.parseInt(lenMatcher.group(3).trim()));
+        }
+
+        // Handle standard conditions
+        Matcher condMatcher = CONDITION_PATTERN.matcher(condition);
+        if (!condMatcher.find()) {
+            throw new IllegalArgumentException("Cannot parse the condition: " + condition);
+        }
+        String key = condMatcher.group(1).trim().toLowerCase();
+        Predicate.Operator operator = Predicate.Operator.of(condMatcher.group(2).trim());
+        int slot = slot(key);
+
+        // Handle quoted values (single or double quotes) or unquoted values
+        String value = condMatcher.group(3) != null ? condMatcher.group(3) :
+                condMatcher.group(4) != null ? condMatcher.group(4) :
+                        condMatcher.group(5);
+
+        if (operator == Predicate.Operator.REGEX) {
+            // Compiled once per query, every row reuses the pattern
+            try {
+                return new Predicate.RegexMatch(key, slot, Pattern.compile(value), REGEX_TIMEOUT_NANOS);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid regex for " + key + ": " + e.getDescription());
+            }
+        }
+
+        boolean isEquality = operator == Predicate.Operator.EQ || operator == Predicate.Operator.NE;
+        Predicate.ValueKind fieldKind = fields.kind(key);
+        if (fieldKind == Predicate.ValueKind.NUMBER && operator != Predicate.Operator.LIKE) {
+            try {
+                return new Predicate.Comparison(key, slot, operator, Predicate.ValueKind.NUMBER, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Expected a number for " + key + ": " + value);
+            }
+        }
+
+        String lowerValue = value.toLowerCase();
+        // Todo this is not the perfect way to find corresponding ContentType or MimeType
+        switch (key) {
+            case "req.content_type":
+            {
+                if (!isEquality) {
+                    break;
+                }
+                ContentType contentType;
+                if (lowerValue.contains("json")) {
+                    contentType = ContentType.JSON;
+                } else if (lowerValue.contains("xml")) {
+                    contentType = ContentType.XML;
+                } else if (lowerValue.contains("urlencoded")) {
+                    contentType = ContentType.URL_ENCODED;
+                } else {
+                    contentType = constant(ContentType.class, lowerValue);
+                    if (contentType == null) {
+                        throw new IllegalArgumentException("Unsupported request content type: " + lowerValue
+                                + ", compare req.header.content-type for the exact header");
+                    }
+                }
+                return new Predicate.Comparison(key, slot, operator, Predicate.ValueKind.OBJECT, contentType);
+            }
+            case "resp.content_type":
+            {
+                if (!isEquality) {
+                    break;
+                }
+                if (lowerValue.contains("json")) {
+                    value = MimeType.JSON.description();
+                } else if (lowerValue.contains("xml")) {
+                    value = MimeType.XML.description();
+                } else {
+                    MimeType mimeType = mimeType(lowerValue);
+                    if (mimeType == null) {
+                        throw new IllegalArgumentException("Unsupported response content type: " + lowerValue
+                                + ", compare resp.header.content-type for the exact header");
+                    }
+                    value = mimeType.description();
+                }
+                break;
+            }
+        }
+
+        Predicate.ValueKind kind = fieldKind == Predicate.ValueKind.BYTES ? Predicate.ValueKind.BYTES : Predicate.ValueKind.STRING;
+        return new Predicate.Comparison(key, slot, operator, kind, value);
+    }
+
+    /**
+     * The constant named like the value, e.g. multipart or url_encoded, null if there is none
+     */
+    private static <E extends Enum<E>> E constant(Class<E> type, String value) {
+        String name = value.trim().replace('-', '_').replace(' ', '_');
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(name)) {
+                return constant;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The MIME type Burp describes or names like the value, e.g. html, script or image_png
+     */
+    private static MimeType mimeType(String value) {
+        for (MimeType mimeType : MimeType.values()) {
+            if (mimeType.description().equalsIgnoreCase(value.trim())) {
+                return mimeType;
+            }
+        }
+        return constant(MimeType.class, value);
+    }
+
+    private Predicate.Operator lengthOperator(String symbol) {
+        Predicate.Operator operator = Predicate.Operator.of(symbol);
+        if (operator == Predicate.Operator.LIKE || operator == Predicate.Operator.REGEX) {
+            throw new IllegalArgumentException("Unsupported operator for len(): " + symbol);
+        }
+        return operator;
+    }
+
+    private int slot(String key) {
+        int slot = fields.slot(key);
+        if (slot < 0) {
+            throw new IllegalArgumentException("Unsupported field: " + key);
+        }
+        return slot;
+    }
+
+    /**
+     * Split the where clause into '(', ')', 'and', 'or', 'not' and condition tokens.
+     * Quoted values and the parentheses of len(...) stay inside their condition.
+     */
+    static List<String> tokenize(String whereClause) {
+        List<String> result = new ArrayList<>();
+        int length = whereClause.length();
+        int i = 0;
+        while (i < length) {
+            char c = whereClause.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            if (c == '(' || c == ')') {
+                result.add(String.valueOf(c));
+                i++;
+                continue;
+            }
+            String keyword = keywordAt(whereClause, i);
+            if (keyword != null) {
+                result.add(keyword);
+                i += keyword.length();
+                continue;
+            }
+
+            // Read a condition until a top level ')' or a boolean keyword
+            int start = i;
+            char quote = 0;
+            int depth = 0;
+            while (i < length) {
+                c = whereClause.charAt(i);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '\'' || c == '"') {
+                    quote = c;
+                } else if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    if (depth == 0) {
+                        break;
+                    }
+                    depth--;
+                } else if (Character.isWhitespace(c) && depth == 0) {
+                    int next = i;
+                    while (next < length && Character.isWhitespace(whereClause.charAt(next))) {
+                        next++;
+                    }
+                    String nextKeyword = keywordAt(whereClause, next);
+                    if (nextKeyword != null && !nextKeyword.equalsIgnoreCase("not")) {
+                        break;
+                    }
+                }
+                i++;
+            }
+            result.add(whereClause.substring(start, i).trim());
+        }
+        return result;
+    }
+
+    private static String keywordAt(String text, int index) {
+        for (String keyword : new String[]{"and", "or", "not"}) {
+            int end = index + keyword.length();
+            if (end <= text.length() && text.regionMatches(true, index, keyword, 0, keyword.length())
+                    && (end == text.length() || Character.isWhitespace(text.charAt(end)) || text.charAt(end) == '(')) {
+                return text.substring(index, end);
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,121 @@
+package com.noel.utils;
+
+import com.noel.index.RequestFingerprint;
+
+/**
+ * Per-query execution state shared with the scan loop: the deadline, the cancellation flag
+ * and the per-query options. The scan calls {@link #checkpoint()} regularly, so a slow query stops cooperatively.
+ */
+public class QueryContext {
+    private final long deadline;
+    private volatile boolean cancelled;
+    private Boolean parallel;
+    private String cursor;
+    private RequestFingerprint.Keys dedupKeys;
+    private final QueryProfile profile = new QueryProfile();
+    private boolean profileRequested;
+    private boolean useIndexes = true;
+    private ByteBudget byteBudget = new ByteBudget(0, 0);
+
+    /**
+     * @param timeoutMillis time budget of the query, 0 or less means no timeout
+     */
+    public QueryContext(long timeoutMillis) {
+        this.deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1_000_000L : Long.MAX_VALUE;
+    }
+
+    public static QueryContext unlimited() {
+        return new QueryContext(0);
+    }
+
+    /**
+     * Force the parallel (true) or sequential (false) scan, null lets the history size decide
+     */
+    public Boolean getParallel() {
+        return parallel;
+    }
+
+    public void setParallel(Boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Cursor returned by the previous page, null for the first page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    /**
+     * Parts of a request that make two results duplicates, null for the configured default
+     */
+    public RequestFingerprint.Keys getDedupKeys() {
+        return dedupKeys;
+    }
+
+    public void setDedupKeys(RequestFingerprint.Keys dedupKeys) {
+        this.dedupKeys = dedupKeys;
+    }
+
+    /**
+     * False to skip the indexes and scan the whole history, e.g. to measure what they save
+     */
+    public boolean isUseIndexes() {
+        return useIndexes;
+    }
+
+    public void setUseIndexes(boolean useIndexes) {
+        this.useIndexes = useIndexes;
+    }
+
+    public QueryProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * True if the stage breakdown should be returned with the result
+     */
+    public boolean isProfileRequested() {
+        return profileRequested;
+    }
+
+    public void setProfileRequested(boolean profileRequested) {
+        this.profileRequested = profileRequested;
+    }
+
+    /**
+     * Limits on the message bytes the query returns, unlimited unless set
+     */
+    public ByteBudget getByteBudget() {
+        return byteBudget;
+    }
+
+    public void setByteBudget(ByteBudget byteBudget) {
+        this.byteBudget = byteBudget;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throw if the query was cancelled or ran out of time
+     */
+    public void checkpoint() {
+        if (cancelled) {
+            throw new QueryTimeoutException("Query was cancelled");
+        }
+        if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) {
+            cancelled = true;
+            throw new QueryTimeoutException("Query timed out, narrow the conditions or lower the limit");
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package com.noel.utils;
+
+import com.noel.index.FullTextIndex;
+import com.noel.index.HistoryIndex;
+import com.noel.index.IntList;
+import com.noel.index.SecondaryIndex;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decide how a compiled where clause is scanned.
+ * AND-ed equality comparisons on indexed fields are answered by intersecting the secondary indexes,
+ * AND-ed `like` comparisons on body and url fields are narrowed with the n-gram index when it is enabled,
+ * and so are `regex` comparisons by the literals their pattern requires.
+ * Only the remaining (residual) predicates are evaluated against the candidate entries, `like` and `regex`
+ * comparisons stay in the residual because the n-gram index can only return possible matches.
+ *
+ * The residual is then reordered by expected cost: every comparison costs what extracting its field costs,
+ * and AND-ed (OR-ed) children run in the order that rejects (accepts) a row as cheaply as possible,
+ * using the selectivity observed for the same comparison by earlier queries. `EXPLAIN SELECT ...` shows the plan.
+ */
+public class QueryPlanner {
+
+    /**
+     * The result of planning: either a full scan, or a sorted candidate id list plus the residual predicate
+     */
+    public static class Plan {
+        private final int[] candidates;
+        private final Predicate residual;
+        private final List<Predicate> indexed;
+        private final Step residualStep;
+
+        Plan(int[] candidates, Step residualStep, List<Predicate> indexed) {
+            this.candidates = candidates;
+            this.residual = residualStep != null ? residualStep.predicate : null;
+            this.residualStep = residualStep;
+            this.indexed = indexed;
+        }
+
+        /**
+         * Ascending candidate ids, or null when every entry has to be scanned
+         */
+        public int[] getCandidates() {
+            return candidates;
+        }
+
+        /**
+         * Predicate left to evaluate per entry, or null when the indexes answered the whole clause
+         */
+        public Predicate getResidual() {
+            return residual;
+        }
+
+        /**
+         * Conjuncts that used an index to produce the candidates
+         */
+        public List<Predicate> getIndexed() {
+            return indexed;
+        }
+
+        /**
+         * Expected cost of evaluating the residual predicate on one entry
+         */
+        public double getCostPerRow() {
+            return residualStep != null ? residualStep.cost : 0;
+        }
+
+        /**
+         * The plan as a JSON friendly map, for EXPLAIN
+         * @param historySize number of entries a full scan would read
+         */
+        public Map<String, Object> explain(int historySize) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            int rows = candidates != null ? candidates.length : historySize;
+            result.put("scan", candidates != null ? "index" : "full");
+            result.put("rows", rows);
+            List<String> indexedText = new ArrayList<>();
+            for (Predicate predicate : indexed) {
+                indexedText.add(predicate.toString());
+            }
+            result.put("indexed", indexedText);
+            result.put("residual", residualStep != null ? residualStep.explain() : null);
+            result.put("estimated_cost", round(rows * getCostPerRow()));
+            return result;
+        }
+    }
+
+    /**
+     * A planned predicate with its expected cost per row and the fraction of rows expected to pass
+     */
+    static class Step {
+        private final Predicate predicate;
+        private final double cost;
+        private final double selectivity;
+        private final List<Step> children;
+        private final PredicateStats stats;
+
+        Step(Predicate predicate, double cost, double selectivity, List<Step> children, PredicateStats stats) {
+            this.predicate = predicate;
+            this.cost = cost;
+            this.selectivity = selectivity;
+            this.children = children;
+            this.stats = stats;
+        }
+
+        Map<String, Object> explain() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("predicate", predicate.toString());
+            result.put("cost", round(cost));
+            result.put("selectivity", round(selectivity));
+            if (stats != null) {
+                result.put("rows_observed", stats.evaluated());
+            }
+            if (!children.isEmpty()) {
+                List<Map<String, Object>> steps = new ArrayList<>();
+                for (Step child : children) {
+                    steps.add(child.explain());
+                }
+                result.put("children", steps);
+            }
+            return result;
+        }
+    }
+
+    // Rows passing a comparison before anything is observed, by operator
+    private static final double EQ_SELECTIVITY = 0.1;
+    private static final double LIKE_SELECTIVITY = 0.2;
+    private static final double RANGE_SELECTIVITY = 0.33;
+    // Scanning the bytes of a field costs more than comparing it as a whole
+    private static final double LIKE_COST_FACTOR = 2;
+    // A regex runs after the literal search, on the rows that contain its literals
+    private static final double REGEX_COST_FACTOR = 4;
+
+    private final HistoryIndex historyIndex;
+    private final SecondaryIndex secondaryIndex;
+    private final FullTextIndex fullTextIndex;
+    private final FieldRegistry fields;
+    private final boolean useIndexes;
+
+    /**
+     * @param useIndexes false plans a full scan, the conditions are only ordered
+     */
+    public QueryPlanner(HistoryIndex historyIndex, FieldRegistry fields, boolean useIndexes) {
+        this.historyIndex = historyIndex;
+        this.secondaryIndex = historyIndex.secondaryIndex();
+        this.fullTextIndex = historyIndex.fullTextIndex();
+        this.fields = fields;
+        this.useIndexes = useIndexes;
+    }
+
+    /**
+     * The plan of a query without conditions: every entry is read and nothing is left to evaluate
+     */
+    public static Plan fullScan() {
+        return new Plan(null, null, List.of());
+    }
+
+    public Plan plan(Predicate where) {
+        if (!useIndexes) {
+            return new Plan(null, order(where, true), List.of());
+        }
+        List<Predicate> conjuncts = where instanceof Predicate.And ? ((Predicate.And) where).children() : List.of(where);
+
+        int[] candidates = null;
+        List<Predicate> indexed = new ArrayList<>();
+        List<Predicate> residual = new ArrayList<>();
+        for (Predicate conjunct : conjuncts) {
+            int[] ids = null;
+            if (isIndexedEquality(conjunct)) {
+                Predicate.Comparison comparison = (Predicate.Comparison) conjunct;
+                ids = secondaryIndex.lookup(comparison.field(), comparison.value());
+            } else {
+                residual.add(conjunct);
+                if (isIndexedLike(conjunct)) {
+                    Predicate.Comparison comparison = (Predicate.Comparison) conjunct;
+                    ids = fullTextIndex.candidates(comparison.field(), (String) comparison.value());
+                } else if (isIndexedRegex(conjunct)) {
+                    ids = regexCandidates((Predicate.RegexMatch) conjunct);
+                }
+            }
+            if (ids != null) {
+                candidates = candidates == null ? ids : IntList.intersect(candidates, ids);
+                indexed.add(conjunct);
+            }
+        }
+
+        if (candidates == null) {
+            return new Plan(null, order(where, true), indexed);
+        }
+        Predicate residualPredicate = residual.isEmpty() ? null
+                : residual.size() == 1 ? residual.get(0) : new Predicate.And(residual);
+        // The candidates already passed the indexed conditions, what the residual matches among them says little
+        // about how it does over the whole table, so it is not recorded
+        return new Plan(candidates, residualPredicate != null ? order(residualPredicate, false) : null, indexed);
+    }
+
+    /**
+     * Rebuild the predicate with its children in the cheapest order
+     * @param measure wrap the comparisons to record their selectivity, only done when every entry is scanned
+     */
+    private Step order(Predicate predicate, boolean measure) {
+        if (predicate instanceof Predicate.And || predicate instanceof Predicate.Or) {
+            boolean and = predicate instanceof Predicate.And;
+            List<Step> children = new ArrayList<>();
+            for (Predicate child : and ? ((Predicate.And) predicate).children() : ((Predicate.Or) predicate).children()) {
+                children.add(order(child, measure));
+            }
+            // AND: cheapest per rejected row first, OR: cheapest per accepted row first. The sort is stable,
+            // children with the same rank keep the order they were written in.
+            children.sort(Comparator.comparingDouble(step -> step.cost / Math.max(and ? 1 - step.selectivity : step.selectivity, 0.001)));
+
+            double cost = 0;
+            double reached = 1;
+            List<Predicate> ordered = new ArrayList<>();
+            for (Step child : children) {
+                cost += reached * child.cost;
+                reached *= and ? child.selectivity : 1 - child.selectivity;
+                ordered.add(child.predicate);
+            }
+            return and
+                    ? new Step(new Predicate.And(ordered), cost, reached, children, null)
+                    : new Step(new Predicate.Or(ordered), cost, 1 - reached, children, null);
+        }
+        if (predicate instanceof Predicate.Not) {
+            Step child = order(((Predicate.Not) predicate).child(), measure);
+            return new Step(new Predicate.Not(child.predicate), child.cost, 1 - child.selectivity, List.of(child), null);
+        }
+
+        Predicate.Operator operator = operator(predicate);
+        double cost = fields.cost(field(predicate)) * (operator == Predicate.Operator.LIKE ? LIKE_COST_FACTOR
+                : operator == Predicate.Operator.REGEX ? REGEX_COST_FACTOR : 1);
+        double prior = priorSelectivity(operator);
+        PredicateStats stats = PredicateStats.of(historyIndex, predicate);
+        if (stats == null) {
+            return new Step(predicate, cost, prior, List.of(), null);
+        }
+        return new Step(measure ? new Predicate.Measured(predicate, stats) : predicate, cost, stats.selectivity(prior), List.of(), stats);
+    }
+
+    private String field(Predicate predicate) {
+        if (predicate instanceof Predicate.Comparison) {
+            return ((Predicate.Comparison) predicate).field();
+        }
+        if (predicate instanceof Predicate.LengthComparison) {
+            // The compiler reads the length from its own field when there is one
+            String field = ((Predicate.LengthComparison) predicate).field();
+            return fields.slot("len(" + field + ")") >= 0 ? "len(" + field + ")" : field;
+        }
+        if (predicate instanceof Predicate.RegexMatch) {
+            return ((Predicate.RegexMatch) predicate).field();
+        }
+        return "";
+    }
+
+    private static Predicate.Operator operator(Predicate predicate) {
+        if (predicate instanceof Predicate.Comparison) {
+            return ((Predicate.Comparison) predicate).operator();
+        }
+        if (predicate instanceof Predicate.LengthComparison) {
+            return ((Predicate.LengthComparison) predicate).operator();
+        }
+        if (predicate instanceof Predicate.RegexMatch) {
+            return Predicate.Operator.REGEX;
+        }
+        return Predicate.Operator.EQ;
+    }
+
+    private static double priorSelectivity(Predicate.Operator operator) {
+        switch (operator) {
+            case EQ:
+                return EQ_SELECTIVITY;
+            case NE:
+                return 1 - EQ_SELECTIVITY;
+            case LIKE:
+            case REGEX:
+                return LIKE_SELECTIVITY;
+            default:
+                return RANGE_SELECTIVITY;
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private boolean isIndexedEquality(Predicate predicate) {
+        if (!(predicate instanceof Predicate.Comparison)) {
+            return false;
+        }
+        Predicate.Comparison comparison = (Predicate.Comparison) predicate;
+        return comparison.operator() == Predicate.Operator.EQ && secondaryIndex.isIndexed(comparison.field());
+    }
+
+    private boolean isIndexedLike(Predicate predicate) {
+        if (fullTextIndex == null || !(predicate instanceof Predicate.Comparison)) {
+            return false;
+        }
+        Predicate.Comparison comparison = (Predicate.Comparison) predicate;
+        return comparison.operator() == Predicate.Operator.LIKE && fullTextIndex.isIndexed(comparison.field());
+    }
+
+    private boolean isIndexedRegex(Predicate predicate) {
+        if (fullTextIndex == null || !(predicate instanceof Predicate.RegexMatch)) {
+            return false;
+        }
+        Predicate.RegexMatch regex = (Predicate.RegexMatch) predicate;
+        // The n-gram index is case sensitive
+        return !regex.isCaseInsensitive() && !regex.requiredLiterals().isEmpty() && fullTextIndex.isIndexed(regex.field());
+    }
+
+    /**
+     * The entries containing every required literal of the pattern, null if none of them is long enough to look up
+     */
+    private int[] regexCandidates(Predicate.RegexMatch regex) {
+        int[] candidates = null;
+        for (String literal : regex.requiredLiterals()) {
+            int[] ids = fullTextIndex.candidates(regex.field(), literal);
+            if (ids != null) {
+                candidates = candidates == null ? ids : IntList.intersect(candidates, ids);
+            }
+        }
+        return candidates;
+    }
+}
@@ -0,0 +1,95 @@
+package com.noel.utils;
+
+import com.noel.metrics.Metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Where the time of one query went, stage by stage, and how many rows it touched.
+ * Every query is profiled, {@link #publish()} adds it to the /metrics histograms,
+ * and the breakdown is returned inline when the query asks for profile=true.
+ */
+public class QueryProfile {
+
+    public enum Stage {
+        // SQL text to predicate tree
+        PARSE,
+        // index lookups and ordering of the residual conditions
+        PLAN,
+        // walking the history and evaluating the residual conditions
+        SCAN,
+        DEDUP,
+        // extracting the selected fields
+        PROJECT,
+        // writing the rows as JSON
+        SERIALIZE;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final long started = System.nanoTime();
+    // Stages run on the query thread, only the scanned count is shared with the scan workers
+    private final long[] stageNanos = new long[Stage.values().length];
+    private final LongAdder rowsScanned = new LongAdder();
+    private long rowsMatched;
+    private long bytesSerialized;
+
+    public void add(Stage stage, long nanos) {
+        stageNanos[stage.ordinal()] += nanos;
+    }
+
+    public long nanos(Stage stage) {
+        return stageNanos[stage.ordinal()];
+    }
+
+    public void addScanned(long rows) {
+        rowsScanned.add(rows);
+    }
+
+    public void setMatched(long rows) {
+        rowsMatched = rows;
+    }
+
+    public void setBytesSerialized(long bytes) {
+        bytesSerialized = bytes;
+    }
+
+    /**
+     * The breakdown returned with profile=true, times in milliseconds
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.label(), millis(stageNanos[stage.ordinal()]));
+        }
+        result.put("total_ms", millis(System.nanoTime() - started));
+        result.put("stages_ms", stages);
+        result.put("rows_scanned", rowsScanned.sum());
+        result.put("rows_matched", rowsMatched);
+        result.put("bytes_serialized", bytesSerialized);
+        return result;
+    }
+
+    /**
+     * Record the finished query in the process-wide metrics
+     */
+    public void publish() {
+        Metrics.histogram("query.duration").recordNanos(System.nanoTime() - started);
+        for (Stage stage : Stage.values()) {
+            Metrics.histogram("query.stage." + stage.label()).recordNanos(stageNanos[stage.ordinal()]);
+        }
+        Metrics.counter("query.completed").increment();
+        Metrics.counter("query.rows.scanned").add(rowsScanned.sum());
+        Metrics.counter("query.rows.matched").add(rowsMatched);
+        Metrics.counter("query.bytes.serialized").add(bytesSerialized);
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+}
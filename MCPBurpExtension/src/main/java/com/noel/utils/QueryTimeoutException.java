@@ -0,0 +1,10 @@
+package com.noel.utils;
+
+/**
+ * Thrown by the scan when a query exceeds its time budget or is cancelled
+ */
+public class QueryTimeoutException extends RuntimeException {
+    public QueryTimeoutException(String message) {
+        super(message);
+    }
+}
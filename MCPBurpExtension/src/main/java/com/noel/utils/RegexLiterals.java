@@ -0,0 +1,273 @@
+package com.noel.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The literal strings every match of a regular expression contains, found without running the pattern.
+ * Only the top level of the pattern is read: groups, character classes and escapes like \d end a literal,
+ * a character followed by ?, * or {0,...} is left out, and a pattern with a top-level | requires nothing.
+ * When in doubt a literal is dropped, a missing literal only costs speed, a wrong one would lose matches.
+ */
+final class RegexLiterals {
+    private final List<String> literals = new ArrayList<>();
+    private boolean caseInsensitive;
+
+    private RegexLiterals() {
+    }
+
+    /**
+     * The literals required by the pattern, longest first
+     */
+    static RegexLiterals of(String regex) {
+        RegexLiterals result = new RegexLiterals();
+        if (!result.parse(regex)) {
+            result.literals.clear();
+        }
+        result.literals.sort(Comparator.comparingInt(String::length).reversed());
+        // A literal inside a longer one is found with it
+        List<String> kept = new ArrayList<>();
+        for (String literal : result.literals) {
+            if (kept.stream().noneMatch(longer -> longer.contains(literal))) {
+                kept.add(literal);
+            }
+        }
+        result.literals.clear();
+        result.literals.addAll(kept);
+        return result;
+    }
+
+    List<String> literals() {
+        return literals;
+    }
+
+    /**
+     * True if the pattern turns on case insensitive matching, the literals then match in any case
+     */
+    boolean isCaseInsensitive() {
+        return caseInsensitive;
+    }
+
+    /**
+     * @return false if the pattern requires no literal that can be known
+     */
+    private boolean parse(String regex) {
+        StringBuilder run = new StringBuilder();
+        // True while the last atom read is the last char of the run, a quantifier then applies to that char
+        boolean lastIsLiteral = false;
+        int length = regex.length();
+        int i = 0;
+        while (i < length) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '\\': {
+                    if (i + 1 >= length) {
+                        return false;
+                    }
+                    char escaped = regex.charAt(i + 1);
+                    if (escaped == 'Q') {
+                        int end = regex.indexOf("\\E", i + 2);
+                        String quoted = end < 0 ? regex.substring(i + 2) : regex.substring(i + 2, end);
+                        run.append(quoted);
+                        lastIsLiteral = !quoted.isEmpty();
+                        i = end < 0 ? length : end + 2;
+                    } else if (Character.isLetterOrDigit(escaped)) {
+                        flush(run);
+                        lastIsLiteral = false;
+                        i = skipEscape(regex, i);
+                    } else {
+                        run.append(escaped);
+                        lastIsLiteral = true;
+                        i += 2;
+                    }
+                    break;
+                }
+                case '[':
+                    flush(run);
+                    lastIsLiteral = false;
+                    i = skipClass(regex, i);
+                    break;
+                case '(':
+                    if (!readFlags(regex, i)) {
+                        return false;
+                    }
+                    flush(run);
+                    lastIsLiteral = false;
+                    i = skipGroup(regex, i);
+                    break;
+                case '|':
+                    return false;
+                case '*':
+                case '?':
+                    dropLast(run, lastIsLiteral);
+                    flush(run);
+                    lastIsLiteral = false;
+                    i = skipQuantifierMode(regex, i + 1);
+                    break;
+                case '+':
+                    flush(run);
+                    lastIsLiteral = false;
+                    i = skipQuantifierMode(regex, i + 1);
+                    break;
+                case '{': {
+                    int end = regex.indexOf('}', i);
+                    if (end < 0) {
+                        return false;
+                    }
+                    String min = regex.substring(i + 1, end).split(",", -1)[0].trim();
+                    if (min.isEmpty() || min.equals("0")) {
+                        dropLast(run, lastIsLiteral);
+                    }
+                    flush(run);
+                    lastIsLiteral = false;
+                    i = skipQuantifierMode(regex, end + 1);
+                    break;
+                }
+                case '.':
+                case '^':
+                case '$':
+                    flush(run);
+                    lastIsLiteral = false;
+                    i++;
+                    break;
+                default:
+                    run.append(c);
+                    lastIsLiteral = true;
+                    i++;
+            }
+        }
+        flush(run);
+        return true;
+    }
+
+    private void flush(StringBuilder run) {
+        if (run.length() > 0) {
+            literals.add(run.toString());
+            run.setLength(0);
+        }
+    }
+
+    private static void dropLast(StringBuilder run, boolean lastIsLiteral) {
+        if (lastIsLiteral && run.length() > 0) {
+            run.setLength(run.length() - 1);
+        }
+    }
+
+    /**
+     * Note the flags of an inline flag group like (?i) or (?i:...)
+     * @return false if the group turns on comments mode, whitespace in the pattern is then not literal
+     */
+    private boolean readFlags(String regex, int start) {
+        if (start + 1 >= regex.length() || regex.charAt(start + 1) != '?') {
+            return true;
+        }
+        for (int i = start + 2; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == 'i') {
+                caseInsensitive = true;
+            } else if (c == 'x') {
+                return false;
+            } else if (c == '-' || c == ')' || c == ':' || !Character.isLetter(c)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The index after an escape like \d, \x41, \p{Alpha} or \k<name>
+     */
+    private static int skipEscape(String regex, int start) {
+        char escaped = regex.charAt(start + 1);
+        int i = start + 2;
+        switch (escaped) {
+            case 'x':
+                return i < regex.length() && regex.charAt(i) == '{' ? closing(regex, i, '}') : i + 2;
+            case 'u':
+                return i + 4;
+            case 'c':
+                return i + 1;
+            case '0':
+                while (i < regex.length() && i < start + 5 && regex.charAt(i) >= '0' && regex.charAt(i) <= '7') {
+                    i++;
+                }
+                return i;
+            case 'p':
+            case 'P':
+            case 'N':
+                return i < regex.length() && regex.charAt(i) == '{' ? closing(regex, i, '}') : i + 1;
+            case 'k':
+                return closing(regex, i, '>');
+            default:
+                return i;
+        }
+    }
+
+    private static int closing(String regex, int start, char close) {
+        int end = regex.indexOf(close, start);
+        return end < 0 ? regex.length() : end + 1;
+    }
+
+    /**
+     * The index after the character class starting at start
+     */
+    private static int skipClass(String regex, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                depth++;
+                // A ] right after the opening [ or [^ is a literal
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == ']' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return regex.length();
+    }
+
+    /**
+     * The index after the group starting at start
+     */
+    private static int skipGroup(String regex, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                i += 2;
+                continue;
+            }
+            if (c == '[') {
+                i = skipClass(regex, i);
+                continue;
+            }
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return regex.length();
+    }
+
+    /**
+     * Skip the ? or + that makes a quantifier lazy or possessive
+     */
+    private static int skipQuantifierMode(String regex, int i) {
+        return i < regex.length() && (regex.charAt(i) == '?' || regex.charAt(i) == '+') ? i + 1 : i;
+    }
+}
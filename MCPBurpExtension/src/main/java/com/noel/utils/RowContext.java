@@ -0,0 +1,65 @@
+package com.noel.utils;
+
+import com.noel.index.HistoryEntry;
+
+import java.util.Arrays;
+
+/**
+ * The history entry being evaluated and the fields extracted from it so far.
+ * Each field is extracted at most once per row and the value is shared by the predicates and the projection,
+ * so a condition and a select on resp.body decode the body once.
+ * One context is reused for every row of a scan, {@link #reset(HistoryEntry)} moves it to the next row.
+ */
+public class RowContext {
+    private final FieldRegistry fields;
+    private Object[] values;
+    // A value is current when its stamp equals the stamp of the row, so moving to a row clears nothing
+    private int[] stamps;
+    private int stamp;
+    private HistoryEntry entry;
+
+    public RowContext(FieldRegistry fields) {
+        this.fields = fields;
+        this.values = new Object[fields.size()];
+        this.stamps = new int[fields.size()];
+    }
+
+    public RowContext reset(HistoryEntry entry) {
+        this.entry = entry;
+        if (++stamp == 0) {
+            Arrays.fill(stamps, 0);
+            stamp = 1;
+        }
+        return this;
+    }
+
+    public HistoryEntry entry() {
+        return entry;
+    }
+
+    /**
+     * Value of a field of the current row, extracted on first use
+     * @param slot slot of the field in the {@link FieldRegistry}
+     */
+    public Object get(int slot) {
+        if (slot >= stamps.length) {
+            // The field was registered after the context was created
+            values = Arrays.copyOf(values, fields.size());
+            stamps = Arrays.copyOf(stamps, fields.size());
+        }
+        if (stamps[slot] != stamp) {
+            values[slot] = fields.extractor(slot).apply(entry);
+            stamps[slot] = stamp;
+        }
+        return values[slot];
+    }
+
+    /**
+     * Drop the values of the last row so they are not kept alive by an idle context
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        entry = null;
+        reset(null);
+    }
+}
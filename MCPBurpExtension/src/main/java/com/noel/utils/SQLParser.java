@@ -1,75 +1,86 @@
 package com.noel.utils;
 
 import burp.api.montoya.MontoyaApi;
+import burp.api.montoya.core.ByteArray;
 import burp.api.montoya.http.message.ContentType;
-import burp.api.montoya.http.message.MimeType;
 import burp.api.montoya.proxy.ProxyHttpRequestResponse;
+import com.noel.Config;
+import com.noel.Log;
+import com.noel.index.HistoryColumns;
+import com.noel.index.HistoryEntry;
+import com.noel.index.FingerprintSet;
+import com.noel.index.HistoryIndex;
+import com.noel.index.ParsedFieldCache;
+import com.noel.index.RequestFingerprint;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 
 public class SQLParser {
     private String[] selectFields;
     private List<String> whereConditions;
+    private Predicate where;
     private int limit;
+    private boolean explain;
+    private String table;
+    private boolean count;
+    // Fields the rows are grouped by, null unless the query aggregates
+    private String[] groupBy;
+    private List<OrderBy> orderBy = List.of();
+    // Function items of the SELECT list by their text
+    private final Map<String, Projection> projections = new HashMap<>();
+    private String nextCursor;
     private final MontoyaApi api;
+    private final HistoryIndex historyIndex;
+    private final QueryContext context;
+    private QueryCache queryCache;
+    private final RequestFingerprint.Keys dedupKeys;
+
+    private final FieldRegistry fieldRegistry;
+
+    // Scans over at least this many items switch to the parallel mode unless the query says otherwise
+    private static final int PARALLEL_THRESHOLD = Config.getInt("scan.parallelThreshold", 50_000);
+    // Parts of a request that make two results duplicates, unless the query picks its own
+    private static final RequestFingerprint.Keys DEDUP_KEYS = RequestFingerprint.Keys.of(Config.getString("dedup.keys", "full"));
+    // A cached result is extended when at most this many items changed since, otherwise it is computed again
+    private static final int INCREMENTAL_MAX_ITEMS = Config.getInt("cache.incrementalMaxItems", 10_000);
+
+    public SQLParser(String sql, MontoyaApi api, HistoryIndex historyIndex) {
+        this(sql, api, historyIndex, QueryContext.unlimited());
+    }
 
-    private static final Pattern LEN_PATTERN = Pattern.compile("len\\(([^)]+)\\)\\s*(>|<|>=|<=|!=|=)\\s*(\\d+)");
-    private static final Pattern CONDITION_PATTERN = Pattern.compile("((?:req|resp)?(?:\\.|\\w+\\.)?\\w+)\\s*(=|like|!=|>=|<=|>|<)\\s*(?:'([^']*)'|\"([^\"]*)\"|([^\\s]+))");
-    private static final List<String> SUPPORTED_OPERATORS = Arrays.asList("=", "!=", "like", ">", "<");
-    private final HashMap<String, Function<ProxyHttpRequestResponse, Object>> fieldExtractors;
-
-    private static class Condition {
-        String key;
-        String operator;
-        Object value;
-        boolean isLengthCheck = false;
+    public SQLParser(String sql, MontoyaApi api, HistoryIndex historyIndex, QueryContext context) {
+        this(sql, api, historyIndex, context, null);
     }
 
-    public SQLParser(String sql, MontoyaApi api) {
+    /**
+     * @param fields the fields of the history, shared by queries that are evaluated over the same rows,
+     *               or null to create them for this query
+     */
+    public SQLParser(String sql, MontoyaApi api, HistoryIndex historyIndex, QueryContext context, FieldRegistry fields) {
         this.api = api;
-        fieldExtractors = new HashMap<>();
-
-        registerFieldExtractor("req", rr -> rr.request().toString());
-        registerFieldExtractor("host", rr -> rr.request().httpService().host());
-        registerFieldExtractor("url", rr -> rr.request().url());
-        registerFieldExtractor("method", rr -> rr.request().method().toUpperCase());
-        registerFieldExtractor("req.content_type", rr -> rr.request().contentType());
-        registerFieldExtractor("req.body", rr -> rr.request().bodyToString());
+        this.historyIndex = historyIndex;
+        this.context = context;
+        this.dedupKeys = context.getDedupKeys() != null ? context.getDedupKeys() : DEDUP_KEYS;
+        this.fieldRegistry = fields != null ? fields : historyFields(historyIndex);
 
-        registerFieldExtractor("resp", rr -> {
-            if (rr.response() == null) {
-                return null;
-            }
-            return rr.response().toString();
-        });
-        registerFieldExtractor("status_code", rr -> {
-            if (rr.response() == null) {
-                return null;
-            }
-            return rr.response().statusCode();
-        });
-        registerFieldExtractor("resp.content_type", rr -> {
-            if (rr.response() == null) {
-                return null;
-            }
-            return rr.response().mimeType().description();
-        });
-        registerFieldExtractor("resp.body", rr -> {
-            if (rr.response() == null) {
-                return null;
-            }
-            return rr.response().bodyToString();
-        });
+        parseSQL(sql);
+        if (context.getCursor() != null && (isAggregate() || !orderBy.isEmpty())) {
+            throw new IllegalArgumentException("Cursors are not supported with COUNT, GROUP BY, DISTINCT or ORDER BY");
+        }
+    }
 
+    public QueryContext getContext() {
+        return context;
+    }
 
-        parseSQL(sql);
+    /**
+     * Reuse and store results of this query in the given cache
+     */
+    public void setQueryCache(QueryCache queryCache) {
+        this.queryCache = queryCache;
     }
 
     public String[] getSelectFields() {
@@ -80,360 +91,823 @@ public class SQLParser {
         return whereConditions;
     }
 
+    public Predicate getWhere() {
+        return where;
+    }
+
     public int getLimit() {
         return limit;
     }
 
+    public List<OrderBy> getOrderBy() {
+        return orderBy;
+    }
 
-    @Deprecated
-    public List<ProxyHttpRequestResponse> executeQuery() {
-        List<ProxyHttpRequestResponse> filteredHistory = filterHistoryByConditions(this.getWhereConditions());
-        if (this.getLimit() > 0 && filteredHistory.size() > this.getLimit()) {
-            filteredHistory = filteredHistory.subList(0, this.getLimit());
-        }
+    /**
+     * The table the query selects FROM, lower case
+     */
+    public String getTable() {
+        return table;
+    }
 
-        return filteredHistory;
-        // 处理选定的字段
-//        return processSelectedFields(filteredHistory, this.getSelectFields());
+    /**
+     * The table a query selects FROM, read before it is parsed to pick the rows and fields it runs against
+     */
+    public static String tableOf(String sql) {
+        int fromIndex = sql.indexOf(" FROM ");
+        if (fromIndex == -1) {
+            throw new IllegalArgumentException("Cannot parse the SQL query, missing select or from clause");
+        }
+        String rest = sql.substring(fromIndex + 6).trim();
+        int end = 0;
+        while (end < rest.length() && !Character.isWhitespace(rest.charAt(end))) {
+            end++;
+        }
+        if (end == 0) {
+            throw new IllegalArgumentException("Cannot parse the SQL query, missing table after from");
+        }
+        return rest.substring(0, end).toLowerCase();
     }
 
     /**
-     * filter the proxy history with SQL style condition
-     * @return List<ProxyHttpRequestResponse>
+     * True for COUNT(*), GROUP BY and DISTINCT queries, they return groups from {@link #aggregate()} instead of rows
      */
-    public List<ProxyHttpRequestResponse> filterHistoryBySQL() {
-        List<ProxyHttpRequestResponse> allHistory = this.api.proxy().history();
-        // Reverse the order of the history to match latest item all the time.
-        Collections.reverse(allHistory);
+    public boolean isAggregate() {
+        return groupBy != null;
+    }
 
-        List<String> conditions = this.getWhereConditions();
+    /**
+     * True if the query starts with EXPLAIN and only the plan should be returned
+     */
+    public boolean isExplain() {
+        return explain;
+    }
 
-        // Do not allow empty conditions, if you want to get all history, use method: this.getAllHistory()
-        if (conditions == null || conditions.isEmpty()) {
+    /**
+     * The plan the query would run with: the index lookups, the residual conditions in evaluation order,
+     * and their expected cost and selectivity
+     */
+    public Map<String, Object> explain() {
+        if (where == null && !isAggregate()) {
             throw new IllegalArgumentException("Cannot parse the SQL query, missing where clause");
         }
+        // An aggregate without a where clause reads every entry
+        QueryPlanner.Plan queryPlan = where != null
+                ? new QueryPlanner(historyIndex, fieldRegistry, context.isUseIndexes()).plan(where)
+                : QueryPlanner.fullScan();
+        Map<String, Object> plan = queryPlan.explain(historyIndex.size());
+        plan.put("table", table);
+        if (isAggregate()) {
+            plan.put("groupBy", List.of(groupBy));
+        }
+        if (!orderBy.isEmpty()) {
+            plan.put("orderBy", orderBy.stream().map(OrderBy::toString).collect(Collectors.toList()));
+        }
+        return plan;
+    }
 
-        List<ProxyHttpRequestResponse> filteredHistory = new ArrayList<>();
-        HashMap<byte[],String> uniqueMap = new HashMap<>();
+    /**
+     * Stable hash of the compiled query, its table and the generation of the table's index, and the dedup keys,
+     * LIMIT is left out so the page size can change between pages
+     */
+    public String getQueryHash() {
+        return Cursor.hash(table + "@" + historyIndex.generation() + "|" + String.join(",", selectFields) + "|" + where
+                + "|" + dedupKeys);
+    }
 
-        for (ProxyHttpRequestResponse proxyRequestOrResponse : allHistory) {
-            if (filteredHistory.size() > this.getLimit()-1){
-                break;
-            }
+    /**
+     * Cursor to fetch the next page, null when the last scan reached the end of the history
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
 
-            // Check if the request matches all conditions
-            boolean isMatch = false;
-            for (String condition : conditions) {
-                if (!evaluateCondition(condition.trim(), proxyRequestOrResponse)) {
-                    isMatch = false;
-                    break;
-                }
-                isMatch = true;
-            }
-            if (!isMatch) {
-                continue;
-            }
-            byte[] reqHash = calcRequestHash(proxyRequestOrResponse);
-            if (uniqueMap.containsKey(reqHash)){
-                continue;
-            }
-            uniqueMap.put(reqHash,proxyRequestOrResponse.request().url());
-            filteredHistory.add(proxyRequestOrResponse);
-        }
 
+    /**
+     * filter the proxy history with SQL style condition
+     * @return List<HistoryEntry>
+     */
+    public List<HistoryEntry> filterHistoryBySQL() {
+        List<HistoryEntry> filteredHistory = new ArrayList<>();
+        filterHistoryBySQL(row -> {
+            filteredHistory.add(row.entry());
+            return true;
+        });
         return filteredHistory;
     }
 
-    public List<ProxyHttpRequestResponse> getAllHistory() {
-        return api.proxy().history();
+    /**
+     * filter the proxy history with SQL style condition, streaming the unique matches newest first,
+     * or in ORDER BY order when the query has one
+     * @param matches receives at most LIMIT entries, it may return false to stop early
+     * @return the number of entries handed to matches
+     */
+    public int filterHistoryBySQL(HistoryScan.Sink matches) {
+        // Do not allow empty conditions, if you want to get all history, use method: this.getAllHistory()
+        if (where == null) {
+            throw new IllegalArgumentException("Cannot parse the SQL query, missing where clause");
+        }
+        if (orderBy.isEmpty()) {
+            return scanMatches(matches, this.getLimit());
+        }
+
+        // Every match has to be seen before the first one is known
+        TopRows top = new TopRows(fieldRegistry, orderBy, this.getLimit());
+        scanMatches(top, 0);
+        int emitted = emit(top.ids(), matches, this.getLimit(), historyIndex.size());
+        nextCursor = null;
+        return emitted;
     }
 
     /**
-     * Process the selected fields from the filtered history
+     * Run a COUNT(*), GROUP BY or DISTINCT query over every unique match in one pass.
+     * Without a where clause the whole history is aggregated.
+     * @return one row per group with the group fields and the count, in ORDER BY order, at most LIMIT rows
      */
-    public List<Map<String, Object>> processSelectedFields(List<ProxyHttpRequestResponse> history, String[] fields) {
-        return history.stream().map(item -> {
-            Map<String, Object> result = new HashMap<>();
-            for (String field : fields) {
-                String fieldLower = field.toLowerCase();
-                if (fieldExtractors.containsKey(fieldLower)) {
-                    result.put(fieldLower, fieldExtractors.get(fieldLower).apply(item));
-                }
-            }
-            return result;
-        }).collect(Collectors.toList());
+    public List<Map<String, Object>> aggregate() {
+        if (!isAggregate()) {
+            throw new IllegalStateException("Not an aggregate query");
+        }
+        Aggregation aggregation = new Aggregation(fieldRegistry, groupBy, count, orderBy, this.getLimit());
+        QueryProfile profile = context.getProfile();
+        scanMatches(row -> {
+            long start = System.nanoTime();
+            aggregation.accept(row);
+            profile.add(QueryProfile.Stage.PROJECT, System.nanoTime() - start);
+            return true;
+        }, 0);
+        nextCursor = null;
+        return aggregation.rows();
     }
 
-    private void registerFieldExtractor(String fieldName, Function<ProxyHttpRequestResponse, Object> extractor) {
-        fieldExtractors.put(fieldName.toLowerCase(), extractor);
+    /**
+     * Start this query as one of several sharing a scan, see {@link BatchQuery}.
+     * The query keeps its own plan, deduplication, LIMIT and cursor, only the rows and their extracted fields are shared,
+     * so the query has to be parsed with the fields of the batch.
+     * @param matches receives the matches like {@link #filterHistoryBySQL(HistoryScan.Sink)} would hand them,
+     *                unused for aggregate queries
+     */
+    public Pass openPass(HistoryScan.Sink matches) {
+        if (where == null && !isAggregate()) {
+            throw new IllegalArgumentException("Cannot parse the SQL query, missing where clause");
+        }
+        return new Pass(matches);
     }
 
-    // // Parse the SQL query and extract the select fields, where conditions, and limit
-    private void parseSQL(String sql) {
-        sql = sql.trim();
-
-        // parse the select fields
-        int selectIndex = sql.indexOf("SELECT ");
-        int fromIndex = sql.indexOf(" FROM ");
+    /**
+     * The state of a query in a shared scan
+     */
+    public class Pass {
+        private final HistoryScan.Sink matches;
+        private final HistoryScan.Sink sink;
+        private final int limit;
+        private final int[] candidates;
+        private final Predicate residual;
+        private final int beforeId;
+        private final int startId;
+        private final FingerprintSet seen = new FingerprintSet();
+        private final TopRows top;
+        private final Aggregation aggregation;
+        private List<Map<String, Object>> groups;
+        private int matched;
+        private int lastId;
+        private boolean stopped;
+        private boolean done;
+
+        private Pass(HistoryScan.Sink matches) {
+            this.matches = matches;
+            if (isAggregate()) {
+                aggregation = new Aggregation(fieldRegistry, groupBy, count, orderBy, getLimit());
+                top = null;
+                sink = aggregation;
+                limit = 0;
+            } else if (!orderBy.isEmpty()) {
+                aggregation = null;
+                top = new TopRows(fieldRegistry, orderBy, getLimit());
+                sink = top;
+                limit = 0;
+            } else {
+                aggregation = null;
+                top = null;
+                sink = matches;
+                limit = getLimit();
+            }
+            if (where != null) {
+                long planStart = System.nanoTime();
+                QueryPlanner.Plan plan = new QueryPlanner(historyIndex, fieldRegistry, context.isUseIndexes()).plan(where);
+                context.getProfile().add(QueryProfile.Stage.PLAN, System.nanoTime() - planStart);
+                candidates = plan.getCandidates();
+                residual = plan.getResidual();
+            } else {
+                candidates = null;
+                residual = null;
+            }
+            // Entries captured after the pass was opened are left for the next query, like a scan leaves them
+            Cursor cursor = context.getCursor() != null ? Cursor.decode(context.getCursor(), getQueryHash()) : null;
+            startId = cursor != null ? cursor.startId() : historyIndex.size();
+            beforeId = cursor != null ? cursor.lastId() : startId;
+            if (cursor != null) {
+                replayEarlierPages(cursor, candidates, residual, seen);
+            }
+        }
 
-        if (selectIndex == -1 || fromIndex == -1 || selectIndex > fromIndex) {
-            throw new IllegalArgumentException("Cannot parse the SQL query, missing select or from clause");
+        public SQLParser parser() {
+            return SQLParser.this;
         }
-        String selectClause = sql.substring(selectIndex + 7, fromIndex).trim();
-        selectFields = selectClause.split("\\s*,\\s*");
 
-        // parse the where conditions
-        whereConditions = new ArrayList<>();
-        int whereIndex = sql.indexOf(" WHERE ");
-        int limitIndex = sql.indexOf(" LIMIT ");
+        /**
+         * Ascending ids the query can match, null if any id can
+         */
+        public int[] candidates() {
+            return candidates;
+        }
 
-        String whereClause = "";
-        if (whereIndex != -1) {
-            whereClause = limitIndex != -1
-                    ? sql.substring(whereIndex + 7, limitIndex).trim()
-                    : sql.substring(whereIndex + 7).trim();
+        /**
+         * True once the query has all the rows it wants
+         */
+        public boolean isDone() {
+            return done;
+        }
 
-            // split the where conditions by 'and'
-            String[] conditions = whereClause.split("\\s+and\\s+");
-            whereConditions = new ArrayList<>(List.of(conditions));
+        /**
+         * Evaluate the query on the next row of the scan, rows come newest first
+         */
+        public void offer(RowContext row) {
+            int id = row.entry().id();
+            if (done || id >= beforeId) {
+                return;
+            }
+            if (candidates != null && Arrays.binarySearch(candidates, id) < 0) {
+                return;
+            }
+            if (residual != null && !residual.test(row)) {
+                return;
+            }
+            if (!firstSeen(row.entry(), seen)) {
+                return;
+            }
+            matched++;
+            lastId = id;
+            if (!sink.accept(row)) {
+                stopped = true;
+                done = true;
+            } else if (limit > 0 && matched >= limit) {
+                done = true;
+            }
         }
 
-        // parse the limit
-        if (limitIndex != -1) {
-            try {
-                limit = Integer.parseInt(sql.substring(limitIndex + 7).trim());
-            } catch (NumberFormatException e) {
-                limit = 1;
+        /**
+         * Finish the query once the scan is over: sorted rows are handed to the sink now
+         * and the cursor of the next page is set
+         * @return the number of rows handed to the sink, or the number of groups
+         */
+        public int finish() {
+            context.getProfile().setMatched(matched);
+            if (aggregation != null) {
+                groups = aggregation.rows();
+                nextCursor = null;
+                return groups.size();
             }
+            if (top != null) {
+                int emitted = emit(top.ids(), matches, getLimit(), historyIndex.size());
+                nextCursor = null;
+                return emitted;
+            }
+            nextCursor = (limit > 0 && matched >= limit) || stopped ? Cursor.encode(lastId, startId, getQueryHash()) : null;
+            return matched;
         }
 
-        // Log the parsed SQL query
-        api.logging().logToOutput("[Info] Parsed SQL query: " + sql);
-        api.logging().logToOutput("Select fields: " + String.join(", ", selectFields));
-        api.logging().logToOutput("Where conditions: " + String.join(", ", whereConditions));
-        api.logging().logToOutput("Limit: " + limit);
+        /**
+         * The groups of an aggregate query, after {@link #finish()}
+         */
+        public List<Map<String, Object>> groups() {
+            if (groups == null) {
+                throw new IllegalStateException("Not a finished aggregate query");
+            }
+            return groups;
+        }
     }
 
-
     /**
-     * Todo this logic is not correct, need to fix it later
-     * Calculate the hash of the request to identify unique requests
-     * @return byte[]
+     * Hand the unique matches to the sink newest first, at most limit of them unless limit is 0
      */
-    private byte[] calcRequestHash(ProxyHttpRequestResponse proxyRequestOrResponse) {
-        String method = proxyRequestOrResponse.request().method();
-        String url = proxyRequestOrResponse.request().url();
-        String query = proxyRequestOrResponse.request().query();
-        String body = proxyRequestOrResponse.request().bodyToString();
+    private int scanMatches(HistoryScan.Sink matches, int limit) {
+        Predicate where = this.getWhere();
+
+        // Only first pages are cached, a cursor resumes a scan the cache knows nothing about
+        String cacheKey = queryCache != null && context.getCursor() == null && where != null ? getCacheKey(limit) : null;
+        // Read the attach count before the size, a response attached in between is re-checked next time
+        int attachSeq = historyIndex.attachCount();
+        int highWater = historyIndex.size();
+        QueryProfile profile = context.getProfile();
+        if (cacheKey != null) {
+            long lookupStart = System.nanoTime();
+            int[] cachedIds = cachedIds(cacheKey, where, highWater, attachSeq, limit);
+            if (cachedIds != null) {
+                profile.add(QueryProfile.Stage.SCAN, System.nanoTime() - lookupStart);
+                int emitted = emit(cachedIds, matches, limit, highWater);
+                profile.setMatched(emitted);
+                return emitted;
+            }
+            profile.add(QueryProfile.Stage.SCAN, System.nanoTime() - lookupStart);
+        }
 
-        String urlWithoutQuery;
-        try{
-            urlWithoutQuery = url.split(query)[0];
-        }catch (IndexOutOfBoundsException e){
-            urlWithoutQuery = url;
+        int[] matched = new int[1];
+        int[] lastId = new int[1];
+        boolean[] stopped = new boolean[1];
+        List<Integer> recorded = new ArrayList<>();
+        FingerprintSet seen = new FingerprintSet();
+
+        // Resume below the last id of the previous page
+        Cursor cursor = context.getCursor() != null ? Cursor.decode(context.getCursor(), getQueryHash()) : null;
+        int beforeId = cursor != null ? cursor.lastId() : highWater;
+        int startId = cursor != null ? cursor.startId() : highWater;
+
+        // Narrow the scan with the indexes, only the residual predicate runs per item
+        int[] candidates = null;
+        Predicate residual = null;
+        if (where != null) {
+            long planStart = System.nanoTime();
+            QueryPlanner.Plan plan = new QueryPlanner(historyIndex, fieldRegistry, context.isUseIndexes()).plan(where);
+            profile.add(QueryProfile.Stage.PLAN, System.nanoTime() - planStart);
+            candidates = plan.getCandidates();
+            residual = plan.getResidual();
+        }
+        HistoryScan scan = new HistoryScan(historyIndex, fieldRegistry, candidates, residual, context, beforeId);
+        if (cursor != null) {
+            long replayStart = System.nanoTime();
+            replayEarlierPages(cursor, candidates, residual, seen);
+            profile.add(QueryProfile.Stage.DEDUP, System.nanoTime() - replayStart);
         }
 
-        String reqIdentifier = method + urlWithoutQuery + query + body;
-        byte[] identifierHash = null;
-        try{
-            MessageDigest message =  MessageDigest.getInstance("MD5");
-            identifierHash =  message.digest(reqIdentifier.getBytes());
-        }catch (NoSuchAlgorithmException e){
-            this.api.logging().logToError("[Error] Error calculating request hash", e);
+        // Walk the ids from the newest down to match latest item all the time,
+        // no copy of the history is made and the scan stops as soon as the limit is reached.
+        // Time spent in dedup and in the downstream sink, the rest of the scan time is predicate evaluation
+        long[] sinkNanos = new long[2];
+        HistoryScan.Sink sink = row -> {
+            long dedupStart = System.nanoTime();
+            boolean unique = firstSeen(row.entry(), seen);
+            long acceptStart = System.nanoTime();
+            sinkNanos[0] += acceptStart - dedupStart;
+            if (!unique) {
+                return true;
+            }
+            matched[0]++;
+            lastId[0] = row.entry().id();
+            if (cacheKey != null) {
+                recorded.add(lastId[0]);
+            }
+            boolean wantsMore = matches.accept(row);
+            sinkNanos[1] += System.nanoTime() - acceptStart;
+            if (!wantsMore) {
+                stopped[0] = true;
+                return false;
+            }
+            return limit <= 0 || matched[0] < limit;
+        };
+        long scanStart = System.nanoTime();
+        if (isParallel(scan)) {
+            scan.parallel(sink, limit);
+        } else {
+            scan.sequential(sink);
+        }
+        profile.add(QueryProfile.Stage.DEDUP, sinkNanos[0]);
+        profile.add(QueryProfile.Stage.SCAN, System.nanoTime() - scanStart - sinkNanos[0] - sinkNanos[1]);
+        profile.setMatched(matched[0]);
+
+        if (cacheKey != null && !stopped[0]) {
+            queryCache.recordMiss();
+            boolean complete = limit <= 0 || matched[0] < limit;
+            queryCache.put(cacheKey, new QueryCache.Result(recorded.stream().mapToInt(Integer::intValue).toArray(),
+                    highWater, attachSeq, complete));
         }
 
-        return identifierHash;
+        // A full page means there may be more, an empty or partial page means the history is exhausted.
+        // A sink that stopped early, e.g. out of byte budget, continues after the last row it took.
+        nextCursor = (limit > 0 && matched[0] >= limit) || stopped[0] ? Cursor.encode(lastId[0], startId, getQueryHash()) : null;
+        return matched[0];
     }
 
     /**
-     * Filter the history by conditions
+     * Fill the set with the requests the earlier pages of the cursor returned: the matches between the id
+     * the first page started below and the last returned id. Every one of them was returned, or was dropped
+     * as a duplicate of one that was.
      */
-    @Deprecated
-    private List<ProxyHttpRequestResponse> filterHistoryByConditions(List<String> conditions) {
-        if (conditions == null || conditions.isEmpty()) {
-            return this.api.proxy().history();
+    private void replayEarlierPages(Cursor cursor, int[] candidates, Predicate residual, FingerprintSet seen) {
+        if (dedupKeys == RequestFingerprint.Keys.NONE) {
+            return;
         }
-
-        return this.api.proxy().history(proxyRequestOrResponse -> {
-            for (String condition : conditions) {
-                if (!evaluateCondition(condition.trim(), proxyRequestOrResponse)) {
-                    return false;
-                }
-            }
+        HistoryScan replay = new HistoryScan(historyIndex, fieldRegistry, candidates, residual, context,
+                cursor.lastId(), cursor.startId());
+        HistoryScan.Sink sink = row -> {
+            firstSeen(row.entry(), seen);
             return true;
-        });
+        };
+        if (isParallel(replay)) {
+            replay.parallel(sink, 0);
+        } else {
+            replay.sequential(sink);
+        }
     }
 
-
     /**
-     * Evaluate the condition against the request or response
-     * @return true if the condition is met, false otherwise
+     * Ids of a cached result, extended with the traffic captured since it was computed,
+     * or null if it has to be computed again
      */
-    private boolean evaluateCondition(String condition, ProxyHttpRequestResponse request) {
-        Condition parsedCondition = parseCondition(condition);
-        if (parsedCondition == null) {
-            return false;
+    private int[] cachedIds(String cacheKey, Predicate where, int highWater, int attachSeq, int limit) {
+        QueryCache.Result cached = queryCache.get(cacheKey);
+        if (cached == null || cached.getHighWater() > highWater) {
+            return null;
+        }
+        if (cached.getHighWater() == highWater && cached.getAttachSeq() == attachSeq) {
+            queryCache.recordHit();
+            return cached.getIds();
         }
 
-        if (parsedCondition.isLengthCheck) {
-            return evaluateLengthCondition(parsedCondition, request);
-        } else {
-            return evaluateStandardCondition(parsedCondition, request);
+        int[] attached = historyIndex.attachedSince(cached.getAttachSeq());
+        if (highWater - cached.getHighWater() + attached.length > INCREMENTAL_MAX_ITEMS) {
+            return null;
+        }
+
+        // The ids that may have changed: entries whose response arrived since, and the new entries
+        RowContext row = fieldRegistry.newRow();
+        TreeSet<Integer> ids = new TreeSet<>(Comparator.reverseOrder());
+        for (int id : cached.getIds()) {
+            ids.add(id);
+        }
+        for (int id : attached) {
+            if (id >= cached.getHighWater()) {
+                continue;
+            }
+            if (where.test(row.reset(historyIndex.get(id)))) {
+                ids.add(id);
+            } else if (ids.contains(id)) {
+                // An older duplicate the cached result dropped may take its place, start over
+                return null;
+            }
+        }
+        context.getProfile().addScanned(attached.length + highWater - cached.getHighWater());
+        for (int id = highWater - 1; id >= cached.getHighWater(); id--) {
+            if (((highWater - id) & 0xFF) == 0) {
+                context.checkpoint();
+            }
+            if (where.test(row.reset(historyIndex.get(id)))) {
+                ids.add(id);
+            }
         }
+        row.clear();
+
+        // Deduplicate again newest first, a new entry replaces the older copy of the same request
+        FingerprintSet seen = new FingerprintSet();
+        List<Integer> result = new ArrayList<>();
+        for (int id : ids) {
+            if (limit > 0 && result.size() >= limit) {
+                break;
+            }
+            if (firstSeen(historyIndex.get(id), seen)) {
+                result.add(id);
+            }
+        }
+        boolean complete = limit <= 0 || result.size() < limit;
+        if (complete && !cached.isComplete()) {
+            // Duplicates pushed the result under LIMIT, the cached result does not know what came after it
+            return null;
+        }
+
+        int[] extended = result.stream().mapToInt(Integer::intValue).toArray();
+        queryCache.put(cacheKey, new QueryCache.Result(extended, highWater, attachSeq, complete));
+        queryCache.recordExtended();
+        return extended;
     }
 
     /**
-     * Parse the condition string and extract the key, operator, and value
+     * Hand cached ids to the sink the way a scan would
+     * @param startId the history size the ids were matched below
      */
-    private Condition parseCondition(String condition) {
-        Condition result = new Condition();
-
-        // Handle length conditions
-        Matcher lenMatcher = LEN_PATTERN.matcher(condition);
-        if (lenMatcher.find()) {
-            result.isLengthCheck = true;
-            result.key = lenMatcher.group(1).trim().toLowerCase();
-            result.operator = lenMatcher.group(2).trim();
-            if (!SUPPORTED_OPERATORS.contains(result.operator)) {
-                throw new IllegalArgumentException("Unsupported operator: " + result.operator);
-            }
-            result.value = lenMatcher.group(3).trim();
-            return result;
-        }
-
-        // Handle standard conditions
-        Matcher condMatcher = CONDITION_PATTERN.matcher(condition);
-        if (condMatcher.find()) {
-            result.isLengthCheck = false;
-            result.key = condMatcher.group(1).trim().toLowerCase();
-            result.operator = condMatcher.group(2).trim();
-            if (!SUPPORTED_OPERATORS.contains(result.operator)) {
-                throw new IllegalArgumentException("Unsupported operator: " + result.operator);
-            }
-
-            // Handle quoted values (single or double quotes) or unquoted values
-            String tmpValue = condMatcher.group(3) != null ? condMatcher.group(3) :
-                    condMatcher.group(4) != null ? condMatcher.group(4) :
-                            condMatcher.group(5);
-
-            result.value = tmpValue;
-            tmpValue = tmpValue.toLowerCase();
-            // Todo this is not the perfect way to find corresponding ContentType or MimeType
-            switch (result.key){
-                case "req.content_type":
-                {
-                    if (tmpValue.contains("json") || tmpValue.contains("application/json")){
-                        result.value = ContentType.JSON;
-                    } else if (tmpValue.contains("xml")){
-                        result.value = ContentType.XML;
-                    }else {
-                        throw new IllegalArgumentException("Unsupported request content type: " + tmpValue);
-                    }
-                    break;
-                }
-                case "resp.content_type":
-                {
-                    if (tmpValue.contains("json")){
-                        result.value = MimeType.JSON.description();
-                    }else if (tmpValue.contains("xml")){
-                        result.value = MimeType.XML.description();
-                    }else{
-                        throw new IllegalArgumentException("Unsupported response content type: " + tmpValue);
-                    }
-                    break;
-                }
+    private int emit(int[] ids, HistoryScan.Sink matches, int limit, int startId) {
+        int matched = 0;
+        int lastId = 0;
+        boolean stopped = false;
+        RowContext row = fieldRegistry.newRow();
+        for (int id : ids) {
+            if (limit > 0 && matched >= limit) {
+                break;
+            }
+            matched++;
+            lastId = id;
+            if (!matches.accept(row.reset(historyIndex.get(id)))) {
+                stopped = matched < ids.length;
+                break;
             }
-
-            return result;
         }
+        row.clear();
+        nextCursor = (limit > 0 && matched >= limit) || stopped ? Cursor.encode(lastId, startId, getQueryHash()) : null;
+        return matched;
+    }
 
-        return null;
+    /**
+     * Cache key of the query, the selected fields are left out since only ids are cached
+     */
+    private String getCacheKey(int limit) {
+        return where + "|" + limit + "|" + dedupKeys;
     }
 
     /**
-     * Evaluate the standard condition against the request or response
-     * For example: host = 'example.com'
+     * @return true the first time a request is seen by this query
      */
-    private boolean evaluateStandardCondition(Condition condition, ProxyHttpRequestResponse proxyRequestOrResponse) {
-        if (!fieldExtractors.containsKey(condition.key)) {
-            return false;
+    private boolean firstSeen(HistoryEntry entry, FingerprintSet seen) {
+        if (dedupKeys == RequestFingerprint.Keys.NONE) {
+            return true;
         }
+        return seen.add(entry.fingerprintHigh(dedupKeys), entry.fingerprintLow(dedupKeys));
+    }
 
-        Object fieldValue = fieldExtractors.get(condition.key).apply(proxyRequestOrResponse);
-        if (fieldValue == null) {
-            return false;
+    private boolean isParallel(HistoryScan scan) {
+        if (context.getParallel() != null) {
+            return context.getParallel();
         }
+        return Runtime.getRuntime().availableProcessors() > 1 && scan.size() >= PARALLEL_THRESHOLD;
+    }
+
+    public List<ProxyHttpRequestResponse> getAllHistory() {
+        return api.proxy().history();
+    }
+
+    /**
+     * A row context over the fields of this query, for callers projecting entries outside of a scan
+     */
+    public RowContext newRow() {
+        return fieldRegistry.newRow();
+    }
+
+    /**
+     * Process the selected fields from the filtered history
+     */
+    public List<Map<String, Object>> processSelectedFields(List<HistoryEntry> history, String[] fields) {
+        RowContext row = fieldRegistry.newRow();
+        return history.stream().map(item -> toStrings(selectFields(row.reset(item), fields))).collect(Collectors.toList());
+    }
+
+    /**
+     * Turn the message contents of a projected row into Strings for callers that buffer the result
+     */
+    public static Map<String, Object> toStrings(Map<String, Object> result) {
+        result.replaceAll((field, value) -> value instanceof ByteArray ? value.toString() : value);
+        return result;
+    }
 
-        return isComparedValues(condition.operator, fieldValue.toString(), condition.value);
+    /**
+     * Extract the selected fields of one item in select order.
+     * Message contents stay ByteArray values so a streaming writer can copy them without building Strings.
+     * Fields the WHERE clause already extracted for the row are reused.
+     * Functions such as snippet() are keyed by their text in the SELECT list.
+     */
+    public Map<String, Object> selectFields(RowContext row, String[] fields) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String field : fields) {
+            int slot = fieldRegistry.slot(field);
+            if (slot >= 0) {
+                result.put(fieldRegistry.name(slot), row.get(slot));
+                continue;
+            }
+            Projection projection = projections.get(field);
+            if (projection != null) {
+                result.put(projection.name(), projection.apply(row));
+            }
+        }
+        return result;
     }
 
     /**
-     * Evaluate the length condition against the request or response
-     * For example: len(body) > 10
+     * The queryable fields of the history and their extractors
      */
-    private boolean evaluateLengthCondition(Condition condition, ProxyHttpRequestResponse request) {
-        if (!fieldExtractors.containsKey(condition.key)) {
-            return false;
+    public static FieldRegistry historyFields(HistoryIndex historyIndex) {
+        FieldRegistry fields = new FieldRegistry();
+        // Message contents are extracted as ByteArray and matched in place,
+        // they are only turned into Strings when they are selected for output.
+        // The number is the relative cost of extracting the field, used to order the conditions.
+        // Small fields are read from the primitive columns, the message is only read when they are not known.
+        HistoryColumns columns = historyIndex.columns();
+        fields.register("req", 30, Predicate.ValueKind.BYTES, rr -> rr.request().toByteArray());
+        fields.register("host", 1, rr -> {
+            String host = columns.host(rr.id());
+            return host != null ? host : rr.request().httpService().host();
+        });
+        fields.register("url", 2, rr -> rr.stored() != null ? rr.stored().url() : rr.request().url());
+        fields.register("method", 1, rr -> {
+            String method = columns.method(rr.id());
+            return method != null ? method : rr.request().method().toUpperCase();
+        });
+        fields.register("req.content_type", 3, rr -> {
+            ContentType contentType = columns.requestContentType(rr.id());
+            return contentType != null ? contentType : rr.request().contentType();
+        });
+        fields.register("len(req)", 1, Predicate.ValueKind.NUMBER, rr -> {
+            int length = columns.requestLength(rr.id());
+            return length >= 0 ? length : rr.request().toByteArray().length();
+        });
+        fields.register("req.body", 20, Predicate.ValueKind.BYTES, rr -> rr.request().body());
+
+        fields.register("resp", 30, Predicate.ValueKind.BYTES, rr -> {
+            if (rr.response() == null) {
+                return null;
+            }
+            return rr.response().toByteArray();
+        });
+        fields.register("status_code", 1, Predicate.ValueKind.NUMBER, rr -> {
+            short statusCode = columns.statusCode(rr.id());
+            if (statusCode != 0) {
+                return statusCode;
+            }
+            if (rr.response() == null) {
+                return null;
+            }
+            return rr.response().statusCode();
+        });
+        fields.register("resp.content_type", 5, rr -> {
+            String mimeType = columns.mimeType(rr.id());
+            if (mimeType != null) {
+                return mimeType;
+            }
+            if (rr.response() == null) {
+                return null;
+            }
+            return rr.response().mimeType().description();
+        });
+        fields.register("resp.body", 20, Predicate.ValueKind.BYTES, rr -> {
+            if (rr.response() == null) {
+                return null;
+            }
+            return rr.response().body();
+        });
+        fields.register("len(resp)", 1, Predicate.ValueKind.NUMBER, rr -> {
+            int length = columns.responseLength(rr.id());
+            if (length >= 0) {
+                return length;
+            }
+            return rr.response() == null ? null : rr.response().toByteArray().length();
+        });
+
+        // Header, parameter and JSON fields are registered when a query first names them,
+        // e.g. req.header.cookie or resp.json.data.items[0].id. Their values are cached per entry in the index.
+        ParsedFieldCache parsed = historyIndex.parsedFieldCache();
+        fields.registerFamily("req.header.", 10, name -> cached(parsed, "req.header." + name, false,
+                rr -> MessageParsers.header(rr.request().toByteArray(), name)));
+        fields.registerFamily("resp.header.", 10, name -> cached(parsed, "resp.header." + name, true,
+                rr -> rr.response() == null ? null : MessageParsers.header(rr.response().toByteArray(), name)));
+        fields.registerFamily("req.param.", 10, name -> cached(parsed, "req.param." + name, false,
+                rr -> MessageParsers.param(rr.request().toByteArray(), name)));
+        fields.registerFamily("req.json.", 25, name -> {
+            String[] path = MessageParsers.jsonPath(name);
+            return cached(parsed, "req.json." + name, false, rr -> MessageParsers.json(rr.request().body(), path));
+        });
+        fields.registerFamily("resp.json.", 25, name -> {
+            String[] path = MessageParsers.jsonPath(name);
+            return cached(parsed, "resp.json." + name, true,
+                    rr -> rr.response() == null ? null : MessageParsers.json(rr.response().body(), path));
+        });
+        return fields;
+    }
+
+    private static Function<HistoryEntry, Object> cached(ParsedFieldCache cache, String field, boolean fromResponse,
+                                                         Function<HistoryEntry, Object> parser) {
+        return cache != null ? cache.cached(field, fromResponse, parser) : parser;
+    }
+
+    // // Parse the SQL query and extract the select fields, where conditions, and limit
+    private void parseSQL(String sql) {
+        sql = sql.trim();
+
+        if (sql.regionMatches(true, 0, "EXPLAIN ", 0, 8)) {
+            explain = true;
+            sql = sql.substring(8).trim();
+        }
+
+        // parse the select fields
+        int selectIndex = sql.indexOf("SELECT ");
+        int fromIndex = sql.indexOf(" FROM ");
+
+        if (selectIndex == -1 || fromIndex == -1 || selectIndex > fromIndex) {
+            throw new IllegalArgumentException("Cannot parse the SQL query, missing select or from clause");
+        }
+        String selectClause = sql.substring(selectIndex + 7, fromIndex).trim();
+        table = tableOf(sql);
+        boolean distinct = false;
+        if (selectClause.regionMatches(true, 0, "DISTINCT ", 0, 9)) {
+            distinct = true;
+            selectClause = selectClause.substring(9).trim();
         }
+        List<String> fields = new ArrayList<>();
+        for (String item : Projection.split(selectClause)) {
+            if (item.replaceAll("\\s+", "").equalsIgnoreCase("count(*)")) {
+                count = true;
+            } else if (Projection.isFunction(item)) {
+                projections.put(item, Projection.compile(item, fieldRegistry));
+                fields.add(item);
+            } else {
+                // Registers header, parameter and JSON fields before any row is read
+                fieldRegistry.slot(item);
+                fields.add(item);
+            }
+        }
+        selectFields = fields.toArray(new String[0]);
+
+        // parse the where conditions
+        whereConditions = new ArrayList<>();
+        int whereIndex = sql.indexOf(" WHERE ");
+        int groupIndex = sql.indexOf(" GROUP BY ");
+        int orderIndex = sql.indexOf(" ORDER BY ");
+        int limitIndex = sql.indexOf(" LIMIT ");
+
+        String whereClause = "";
+        if (whereIndex != -1) {
+            whereClause = clause(sql, whereIndex + 7, groupIndex, orderIndex, limitIndex);
 
-        Object fieldValue = fieldExtractors.get(condition.key).apply(request);
-        if (fieldValue == null) {
-            return false;
+            // compile the where clause into a predicate tree once per query
+            QueryCompiler compiler = new QueryCompiler(fieldRegistry);
+            where = compiler.compile(whereClause);
+            whereConditions = new ArrayList<>(compiler.getConditions());
         }
 
-        try {
-            int length = fieldValue.toString().length();
-            int intValue = Integer.parseInt((String)condition.value);
-            return compareNumbers(condition.operator, length, intValue);
-        } catch (NumberFormatException e) {
-            return false;
+        // parse grouping and ordering
+        if (groupIndex != -1) {
+            groupBy = clause(sql, groupIndex + 10, orderIndex, limitIndex).toLowerCase().split("\\s*,\\s*");
+        } else if (distinct) {
+            groupBy = fields.stream().map(String::toLowerCase).toArray(String[]::new);
+        } else if (count) {
+            groupBy = new String[0];
         }
-    }
+        if (orderIndex != -1) {
+            orderBy = OrderBy.parse(clause(sql, orderIndex + 10, limitIndex));
+        }
+        validateAggregation();
 
+        // parse the limit
+        if (limitIndex != -1) {
+            try {
+                limit = Integer.parseInt(sql.substring(limitIndex + 7).trim());
+            } catch (NumberFormatException e) {
+                limit = 1;
+            }
+        }
 
+        // Log the parsed SQL query
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            Log.debug("Parsed SQL query: " + sql + "\nSelect fields: " + String.join(", ", selectFields)
+                    + "\nWhere conditions: " + where + "\nLimit: " + limit);
+        }
+    }
 
     /**
-     * Compare two string values based on the operator
-     * This function is used for standard conditions like: host = 'example.com'
+     * Check that every selected field is grouped and every ORDER BY key exists in the result.
+     * Message contents can not be grouped or ordered by, every group or ordered row would keep a copy of them.
      */
-    private boolean isComparedValues(String operator, String fieldValue, Object conditionValue) {
-        switch (operator) {
-            case "=":
-                return fieldValue.equals(conditionValue);
-            case "!=":
-                return !fieldValue.equals(conditionValue);
-            case "like":
-                return fieldValue.contains((String)conditionValue);
-            case ">":
-                return fieldValue.compareTo((String)conditionValue) > 0;
-            case "<":
-                return fieldValue.compareTo((String)conditionValue) < 0;
-            default:
-                return false;
+    private void validateAggregation() {
+        if (groupBy != null) {
+            List<String> grouped = List.of(groupBy);
+            for (String field : groupBy) {
+                if (fieldRegistry.slot(field) < 0) {
+                    throw new IllegalArgumentException("Unsupported field: " + field);
+                }
+                if (fieldRegistry.kind(field) == Predicate.ValueKind.BYTES) {
+                    throw new IllegalArgumentException("Cannot group by message contents: " + field
+                            + ", use a field such as host, url or status_code");
+                }
+            }
+            for (String field : selectFields) {
+                if (!grouped.contains(field.toLowerCase())) {
+                    throw new IllegalArgumentException("Selected field must appear in GROUP BY: " + field);
+                }
+            }
+        }
+        List<OrderBy> keys = new ArrayList<>();
+        for (OrderBy key : orderBy) {
+            String field = key.getField().equals("count(*)") ? Aggregation.COUNT : key.getField();
+            boolean known = isAggregate()
+                    ? (count && field.equals(Aggregation.COUNT)) || List.of(groupBy).contains(field)
+                    : fieldRegistry.slot(field) >= 0;
+            if (!known) {
+                throw new IllegalArgumentException("Cannot order by: " + key.getField());
+            }
+            if (!field.equals(Aggregation.COUNT) && fieldRegistry.kind(field) == Predicate.ValueKind.BYTES) {
+                throw new IllegalArgumentException("Cannot order by message contents: " + key.getField());
+            }
+            keys.add(new OrderBy(field, key.isDescending()));
         }
+        orderBy = keys;
     }
 
-
     /**
-     * Compare two numbers based on the operator,
-     * This function is used for length check when condition is like: len(body) > 10
+     * Text of the clause starting at start, up to the closest of the following clauses that is present
      */
-    private boolean compareNumbers(String operator, int actual, int expected) {
-        switch (operator) {
-            case ">":
-                return actual > expected;
-            case "<":
-                return actual < expected;
-            case ">=":
-                return actual >= expected;
-            case "<=":
-                return actual <= expected;
-            case "=":
-                return actual == expected;
-            case "!=":
-                return actual != expected;
-            default:
-                return false;
+    private static String clause(String sql, int start, int... nextClauses) {
+        int end = sql.length();
+        for (int next : nextClauses) {
+            if (next > start && next < end) {
+                end = next;
+            }
         }
+        return sql.substring(start, end).trim();
     }
+
 }
@@ -0,0 +1,81 @@
+package com.noel.utils;
+
+import burp.api.montoya.core.ByteArray;
+
+/**
+ * A field value as the chars a regular expression runs on, without copying it.
+ * Message bytes map to chars one to one like Burp does. Reading it after the deadline throws {@link Timeout},
+ * which stops a pattern that backtracks catastrophically.
+ */
+final class TimedCharSequence implements CharSequence {
+    // Check the clock once every this many reads
+    private static final int CHECK_MASK = 0x3FF;
+
+    private final ByteArray bytes;
+    private final String text;
+    private final int offset;
+    private final int length;
+    private final long deadline;
+    private int reads;
+
+    TimedCharSequence(ByteArray bytes, long deadline) {
+        this(bytes, null, 0, bytes.length(), deadline);
+    }
+
+    TimedCharSequence(String text, long deadline) {
+        this(null, text, 0, text.length(), deadline);
+    }
+
+    private TimedCharSequence(ByteArray bytes, String text, int offset, int length, long deadline) {
+        this.bytes = bytes;
+        this.text = text;
+        this.offset = offset;
+        this.length = length;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if ((++reads & CHECK_MASK) == 0 && System.nanoTime() - deadline > 0) {
+            throw new Timeout();
+        }
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of length " + length);
+        }
+        return bytes != null ? (char) (bytes.getByte(offset + index) & 0xFF) : text.charAt(offset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + ".." + end + " out of length " + length);
+        }
+        return new TimedCharSequence(bytes, text, offset + start, end - start, deadline);
+    }
+
+    @Override
+    public String toString() {
+        if (text != null) {
+            return text.substring(offset, offset + length);
+        }
+        StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            result.append((char) (bytes.getByte(offset + i) & 0xFF));
+        }
+        return result.toString();
+    }
+
+    /**
+     * The regular expression ran past its deadline
+     */
+    static final class Timeout extends RuntimeException {
+        Timeout() {
+            super("Regular expression timed out", null, false, false);
+        }
+    }
+}
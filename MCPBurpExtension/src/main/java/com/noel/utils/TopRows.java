@@ -0,0 +1,80 @@
+package com.noel.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The matches of a scan in ORDER BY order, for queries without aggregation.
+ * Only the ids and the sort keys are kept, with a LIMIT in a heap that never holds more than LIMIT rows.
+ * Rows with equal keys keep the scan order, newest first.
+ */
+class TopRows implements HistoryScan.Sink {
+    private final int[] slots;
+    private final List<OrderBy> orderBy;
+    private final int limit;
+    private final Comparator<Row> order;
+    // With a limit the worst row is on top so it can be dropped
+    private final PriorityQueue<Row> heap;
+    private final List<Row> all = new ArrayList<>();
+    private long sequence;
+
+    TopRows(FieldRegistry fields, List<OrderBy> orderBy, int limit) {
+        this.orderBy = orderBy;
+        this.limit = limit;
+        this.slots = new int[orderBy.size()];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = fields.slot(orderBy.get(i).getField());
+        }
+        this.order = (left, right) -> {
+            for (int i = 0; i < slots.length; i++) {
+                int result = this.orderBy.get(i).compare(left.keys[i], right.keys[i]);
+                if (result != 0) {
+                    return result;
+                }
+            }
+            return Long.compare(left.sequence, right.sequence);
+        };
+        this.heap = limit > 0 ? new PriorityQueue<>(limit + 1, order.reversed()) : null;
+    }
+
+    @Override
+    public boolean accept(RowContext row) {
+        Object[] keys = new Object[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            keys[i] = OrderBy.comparable(row.get(slots[i]));
+        }
+        Row sorted = new Row(row.entry().id(), keys, sequence++);
+        if (heap == null) {
+            all.add(sorted);
+        } else {
+            heap.add(sorted);
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Ids of the kept rows, in order
+     */
+    int[] ids() {
+        List<Row> rows = heap != null ? new ArrayList<>(heap) : all;
+        rows.sort(order);
+        return rows.stream().mapToInt(row -> row.id).toArray();
+    }
+
+    private static class Row {
+        private final int id;
+        private final Object[] keys;
+        private final long sequence;
+
+        Row(int id, Object[] keys, long sequence) {
+            this.id = id;
+            this.keys = keys;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.noel.index;
+
+import burp.api.montoya.http.HttpService;
+import burp.api.montoya.http.message.MimeType;
+import burp.api.montoya.http.message.requests.HttpRequest;
+import burp.api.montoya.http.message.responses.HttpResponse;
+import burp.api.montoya.proxy.ProxyHttpRequestResponse;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A backfilled proxy item whose response was still in flight gets it attached when it arrives,
+ * the entry, the columns and the listeners must all see it.
+ */
+class HistoryIndexTest {
+
+    @Test
+    void attachesAResponseToABackfilledPendingEntry() {
+        HistoryIndex index = new HistoryIndex();
+        List<Integer> attached = new ArrayList<>();
+        index.addListener(new HistoryListener() {
+            @Override
+            public void entryAdded(HistoryEntry entry) {
+            }
+
+            @Override
+            public void responseAttached(HistoryEntry entry) {
+                attached.add(entry.id());
+            }
+        });
+        HttpRequest request = request("api.example.com");
+        index.backfill(List.of(item(request, response(200)), item(request, null)));
+
+        HistoryEntry pending = index.get(1);
+        assertFalse(pending.isSettled());
+        assertEquals(0, index.columns().statusCode(1));
+
+        HttpResponse response = response(503);
+        index.attachResponse(pending, response);
+
+        assertSame(response, pending.response());
+        assertTrue(pending.isSettled());
+        assertEquals(503, index.columns().statusCode(1));
+        assertEquals(List.of(1), attached);
+        assertEquals(1, index.attachCount());
+        assertArrayEquals(new int[]{1}, index.secondaryIndex().lookup("status_code", 503));
+    }
+
+    @Test
+    void postsEntriesToTheSecondaryIndexBeforePublishingThem() {
+        HistoryIndex index = new HistoryIndex();
+        List<String> missing = new ArrayList<>();
+        // The last listener runs right before the entry or its response gets published
+        index.addListener(new HistoryListener() {
+            @Override
+            public void beforeEntryAdded(HistoryEntry entry) {
+                if (index.secondaryIndex().lookup("host", "api.example.com").length != entry.id() + 1) {
+                    missing.add("host of " + entry.id());
+                }
+            }
+
+            @Override
+            public void beforeResponseAttached(HistoryEntry entry) {
+                if (index.secondaryIndex().lookup("status_code", 404).length != index.attachCount() + 1) {
+                    missing.add("status_code of " + entry.id());
+                }
+            }
+
+            @Override
+            public void entryAdded(HistoryEntry entry) {
+            }
+
+            @Override
+            public void responseAttached(HistoryEntry entry) {
+            }
+        });
+        HttpRequest request = request("api.example.com");
+        index.backfill(List.of(item(request, response(200)), item(request, null)));
+        index.attachResponse(index.get(1), response(404));
+
+        assertEquals(List.of(), missing);
+        assertArrayEquals(new int[]{1}, index.secondaryIndex().lookup("status_code", 404));
+    }
+
+    private static HttpRequest request(String host) {
+        HttpService service = fake(HttpService.class, (proxy, method, args) -> method.getName().equals("host") ? host : null);
+        return fake(HttpRequest.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "httpService":
+                    return service;
+                case "method":
+                    return "GET";
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static HttpResponse response(int statusCode) {
+        return fake(HttpResponse.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "statusCode":
+                    return (short) statusCode;
+                case "mimeType":
+                    return MimeType.JSON;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static ProxyHttpRequestResponse item(HttpRequest request, HttpResponse response) {
+        return fake(ProxyHttpRequestResponse.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "request":
+                    return request;
+                case "response":
+                    return response;
+                case "hasResponse":
+                    return response != null;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, InvocationHandler handler) {
+        return (T) java.lang.reflect.Proxy.newProxyInstance(HistoryIndexTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
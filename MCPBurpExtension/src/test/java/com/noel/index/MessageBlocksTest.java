@@ -0,0 +1,45 @@
+package com.noel.index;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Messages that no longer fit the off-heap budget are rejected and counted, closing releases every block
+ */
+class MessageBlocksTest {
+    private static final byte[] MESSAGE = "GET /index.html HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    @Test
+    void countsMessagesRejectedOnceTheBudgetIsUsedUp() {
+        MessageBlocks blocks = new MessageBlocks(200);
+        long handle = blocks.put("example.com", MESSAGE);
+        int stored = 1;
+        while (blocks.put("example.com", MESSAGE) >= 0) {
+            stored++;
+        }
+        blocks.put("example.com", MESSAGE);
+
+        assertArrayEquals(MESSAGE, blocks.get(handle));
+        assertEquals(stored, blocks.messageCount());
+        assertEquals(2, blocks.rejectedCount());
+        assertTrue(blocks.storedBytes() <= 200);
+    }
+
+    @Test
+    void releasesTheBlocksWhenClosed() {
+        MessageBlocks blocks = new MessageBlocks(1024 * 1024);
+        long handle = blocks.put("example.com", MESSAGE);
+        blocks.close();
+
+        assertEquals(0, blocks.storedBytes());
+        assertEquals(-1, blocks.put("example.com", MESSAGE));
+        assertEquals(0, blocks.rejectedCount());
+        assertThrows(IllegalStateException.class, () -> blocks.get(handle));
+    }
+}
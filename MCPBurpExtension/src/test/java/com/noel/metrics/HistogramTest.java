@@ -0,0 +1,22 @@
+package com.noel.metrics;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HistogramTest {
+
+    @Test
+    void reportsTheHighestBoundForValuesAboveIt() {
+        Histogram histogram = new Histogram();
+        histogram.recordNanos(2_000_000);
+        histogram.recordNanos(90_000_000_000L);
+        histogram.recordNanos(120_000_000_000L);
+
+        assertEquals(60.0, histogram.quantile(0.99));
+        // Gson refuses to serialize Infinity by default
+        assertEquals("{\"count\":3,\"sum_seconds\":210.002,\"p50_seconds\":60.0,\"p95_seconds\":60.0,\"p99_seconds\":60.0}",
+                new Gson().toJson(histogram.snapshot()));
+    }
+}
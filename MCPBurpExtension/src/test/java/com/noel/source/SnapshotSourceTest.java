@@ -0,0 +1,113 @@
+package com.noel.source;
+
+import burp.api.montoya.http.HttpService;
+import burp.api.montoya.http.message.HttpRequestResponse;
+import burp.api.montoya.http.message.requests.HttpRequest;
+import com.noel.index.HistoryIndex;
+import com.noel.utils.FieldRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * A snapshot table only appends the items Burp added at the end, any other change builds a new generation
+ */
+class SnapshotSourceTest {
+    private final List<String> urls = new ArrayList<>();
+    private final Table table = new Table();
+
+    @Test
+    void appendsItemsAddedAtTheEnd() {
+        urls.addAll(List.of("/a", "/b", "/c"));
+        HistoryIndex first = table.open();
+        urls.add("/d");
+        HistoryIndex second = table.open();
+
+        assertSame(first, second);
+        assertEquals(4, second.size());
+        assertEquals("https://example.com/d", second.get(3).request().url());
+    }
+
+    @Test
+    void rebuildsWhenAnItemIsInsertedBetweenIndexedOnes() {
+        urls.addAll(List.of("/a", "/x", "/x", "/x", "/x"));
+        HistoryIndex first = table.open();
+        // The first, middle and last items stay where they were, only the whole prefix tells the change
+        urls.add(1, "/inserted");
+        HistoryIndex second = table.open();
+
+        assertNotSame(first, second);
+        assertNotEquals(first.generation(), second.generation());
+        assertEquals(6, second.size());
+        assertEquals("https://example.com/inserted", second.get(1).request().url());
+        // The replaced index stays readable until its query releases it
+        assertEquals(5, first.size());
+        assertEquals("https://example.com/x", first.get(4).request().url());
+        table.release(first);
+        table.release(second);
+    }
+
+    private class Table extends SnapshotSource<HttpRequestResponse> {
+        Table() {
+            super(0, 0, 0, 0);
+        }
+
+        @Override
+        public String name() {
+            return "test";
+        }
+
+        @Override
+        public FieldRegistry fields(HistoryIndex index) {
+            return new FieldRegistry();
+        }
+
+        @Override
+        List<HttpRequestResponse> load() {
+            List<HttpRequestResponse> items = new ArrayList<>();
+            for (String url : urls) {
+                items.add(item(url));
+            }
+            return items;
+        }
+
+        @Override
+        void append(HistoryIndex index, List<HttpRequestResponse> items, int from) {
+            index.addSiteMapItems(items, from);
+        }
+
+        @Override
+        String key(HttpRequestResponse item) {
+            return item.request().url();
+        }
+    }
+
+    private static HttpRequestResponse item(String path) {
+        HttpService service = fake(HttpService.class, (proxy, method, args) -> method.getName().equals("host") ? "example.com" : null);
+        HttpRequest request = fake(HttpRequest.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "httpService":
+                    return service;
+                case "method":
+                    return "GET";
+                case "url":
+                    return "https://example.com" + path;
+                default:
+                    return null;
+            }
+        });
+        return fake(HttpRequestResponse.class, (proxy, method, args) -> method.getName().equals("request") ? request : null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, InvocationHandler handler) {
+        return (T) java.lang.reflect.Proxy.newProxyInstance(SnapshotSourceTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
@@ -0,0 +1,114 @@
+package com.noel.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * A WHERE clause is compiled once into a predicate tree, evaluating it per row only reads the fields it needs.
+ * The fields of these tests count their extractions, so any per-row parsing or re-extraction shows up in the counts.
+ */
+class QueryCompilerTest {
+    private static final int ROWS = 1000;
+
+    private final String[] hosts = new String[ROWS];
+    private final int[] statusCodes = new int[ROWS];
+    private final String[] urls = new String[ROWS];
+    private final Map<String, Integer> extractions = new HashMap<>();
+    private FieldRegistry fields;
+    private int current;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < ROWS; i++) {
+            hosts[i] = i % 3 == 0 ? "api.example.com" : "cdn.example.com";
+            statusCodes[i] = i % 7 == 0 ? 500 : 200;
+            urls[i] = i % 5 == 0 ? "/admin/users/" + i : "/static/app-" + i + ".js";
+        }
+        fields = new FieldRegistry();
+        fields.register("host", 1, Predicate.ValueKind.STRING, entry -> count("host", hosts[current]));
+        fields.register("status_code", 1, Predicate.ValueKind.NUMBER, entry -> count("status_code", statusCodes[current]));
+        fields.register("url", 1, Predicate.ValueKind.STRING, entry -> count("url", urls[current]));
+    }
+
+    @Test
+    void extractsEachFieldAtMostOncePerRow() {
+        Predicate where = new QueryCompiler(fields).compile(
+                "(host = 'api.example.com' and status_code >= 500) or (host = 'api.example.com' and url like '/admin/')");
+
+        int matched = scan(where);
+
+        int expected = 0;
+        int apiRows = 0;
+        int apiRowsWithoutError = 0;
+        for (int i = 0; i < ROWS; i++) {
+            if (hosts[i].equals("api.example.com")) {
+                apiRows++;
+                apiRowsWithoutError += statusCodes[i] < 500 ? 1 : 0;
+                expected += statusCodes[i] >= 500 || urls[i].contains("/admin/") ? 1 : 0;
+            }
+        }
+        assertEquals(expected, matched);
+        // host is named twice but read once per row, the other fields only for the rows that get that far
+        assertEquals(ROWS, extractions("host"));
+        assertEquals(apiRows, extractions("status_code"));
+        assertEquals(apiRowsWithoutError, extractions("url"));
+    }
+
+    @Test
+    void skipsFieldsOnceTheResultIsKnown() {
+        Predicate where = new QueryCompiler(fields).compile("host = 'api.example.com' and status_code >= 500");
+
+        scan(where);
+
+        int apiRows = 0;
+        for (String host : hosts) {
+            if (host.equals("api.example.com")) {
+                apiRows++;
+            }
+        }
+        assertEquals(ROWS, extractions("host"));
+        assertEquals(apiRows, extractions("status_code"));
+        assertEquals(0, extractions("url"));
+    }
+
+    @Test
+    void runsARegexCompiledOnceOverEveryRow() {
+        Predicate where = new QueryCompiler(fields).compile("url regex '/admin/users/\\d+$'");
+
+        int matched = scan(where);
+
+        int expected = 0;
+        for (String url : urls) {
+            if (url.matches("/admin/users/\\d+")) {
+                expected++;
+            }
+        }
+        assertEquals(expected, matched);
+        assertEquals(ROWS, extractions("url"));
+    }
+
+    private int scan(Predicate where) {
+        RowContext row = fields.newRow();
+        int matched = 0;
+        for (current = 0; current < ROWS; current++) {
+            if (where.test(row.reset(null))) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    private int extractions(String field) {
+        return extractions.getOrDefault(field, 0);
+    }
+
+    private Object count(String field, Object value) {
+        extractions.merge(field, 1, Integer::sum);
+        return value;
+    }
+}
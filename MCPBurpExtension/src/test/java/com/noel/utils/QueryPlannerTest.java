@@ -0,0 +1,70 @@
+package com.noel.utils;
+
+import com.noel.index.HistoryIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The selectivity a comparison is planned with is observed per table, and only on scans the indexes did not narrow
+ */
+class QueryPlannerTest {
+    private static final int ROWS = 100;
+
+    private final String[] urls = new String[ROWS];
+    private FieldRegistry fields;
+    private int current;
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < ROWS; i++) {
+            urls[i] = i % 4 == 0 ? "/admin/" + i : "/static/" + i;
+        }
+        fields = new FieldRegistry();
+        fields.register("host", 1, entry -> "api.example.com");
+        fields.register("url", 2, entry -> urls[current]);
+    }
+
+    @Test
+    void recordsTheSelectivityOfFullScansPerTable() {
+        HistoryIndex proxy = new HistoryIndex();
+        HistoryIndex sitemap = new HistoryIndex();
+        Predicate where = new QueryCompiler(fields).compile("url like '/admin/'");
+
+        scan(new QueryPlanner(proxy, fields, true).plan(where));
+
+        assertEquals(ROWS, rowsObserved(new QueryPlanner(proxy, fields, true).plan(where)));
+        assertEquals(0, rowsObserved(new QueryPlanner(sitemap, fields, true).plan(where)));
+    }
+
+    @Test
+    void doesNotRecordTheRowsTheIndexesNarrowed() {
+        HistoryIndex proxy = new HistoryIndex();
+        Predicate where = new QueryCompiler(fields).compile("host = 'api.example.com' and url like '/admin/'");
+
+        QueryPlanner.Plan plan = new QueryPlanner(proxy, fields, true).plan(where);
+        assertEquals("index", plan.explain(ROWS).get("scan"));
+        scan(plan);
+
+        assertEquals(0, rowsObserved(new QueryPlanner(proxy, fields, true).plan(where)));
+    }
+
+    private void scan(QueryPlanner.Plan plan) {
+        RowContext row = fields.newRow();
+        for (current = 0; current < ROWS; current++) {
+            plan.getResidual().test(row.reset(null));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> residual(QueryPlanner.Plan plan) {
+        return (Map<String, Object>) plan.explain(ROWS).get("residual");
+    }
+
+    private static int rowsObserved(QueryPlanner.Plan plan) {
+        return ((Number) residual(plan).get("rows_observed")).intValue();
+    }
+}
@@ -1,6 +1,8 @@
 from mcp.server.fastmcp import FastMCP
 import requests
 import base64
+import json
+import re
 
 burpsuite_server_url = "http://localhost:8889"
 
@@ -16,15 +18,35 @@ ALLOWED_FIELDS = [
     "resp",
     "resp.content_type",
     "resp.body",
-    "status_code"
+    "status_code",
+    # websocket table only
+    "ws_id",
+    "direction",
+    "payload",
+    "time"
 ]
 
-Allowed_Operators = ["=", ">", "<", "like", "!="]
+# Fields parsed from the messages: req.header.<name>, resp.header.<name>, req.param.<name>, req.json.<path>, resp.json.<path>
+STRUCTURED_FIELD = re.compile(r"^(req\.(header|param|json)|resp\.(header|json))\.[\w.\-\[\]]+$")
 
-NOT_ALLOWED = ["SELECT", "FROM", "WHERE", "LIMIT"]
+# Tables a query can select from
+TABLES = ["proxy", "sitemap", "websocket"]
+
+Allowed_Operators = ["=", ">", "<", "like", "!=", "regex", "~"]
+
+NOT_ALLOWED = ["SELECT", "FROM", "WHERE", "LIMIT", "GROUP BY", "ORDER BY"]
+
+# Functions returning part of a field: snippet(resp.body, 'password', 200), head(resp, 4096), headers(resp)
+PROJECTIONS = [
+    re.compile(r"^snippet\(\s*([\w.]+)\s*,\s*'[^']*'\s*(,\s*\d+\s*)?\)$"),
+    re.compile(r"^head\(\s*([\w.]+)\s*,\s*\d+\s*\)$"),
+    re.compile(r"^headers\(\s*(req|resp)\s*\)$"),
+]
 
 @mcp.tool()
-def query_history(fields: list,conditions: str, limit: int = 20):
+def query_history(fields: list,conditions: str, limit: int = 20, cursor: str = None, dedup: str = None, explain: bool = False, profile: bool = False,
+                  count: bool = False, group_by: list = None, distinct: bool = False, order_by: str = None,
+                  max_field_bytes: int = None, max_response_bytes: int = None, table: str = "proxy"):
     """
     Query the history of Burp Suite with multiple conditions.
 
@@ -41,6 +63,19 @@ def query_history(fields: list,conditions: str, limit: int = 20):
             "resp.content_type": content type of response, string
             "resp.body": raw string response body
             "resp.status_code": status code of response, int    
+
+            Fields parsed from the messages, also usable in conditions, group_by and order_by:
+            "req.header.<name>", "resp.header.<name>": value of the first header with that name, e.g. "resp.header.set-cookie"
+            "req.param.<name>": decoded value of a query or urlencoded form parameter, e.g. "req.param.redirect"
+            "req.json.<path>", "resp.json.<path>": value in a JSON body, e.g. "resp.json.data.items[0].id",
+                objects and arrays are returned as JSON text
+            Names and paths match in any case, a message without the header, parameter or path gives null.
+            Their values are strings, ">" and "<" compare them as text.
+
+            Instead of a whole field, a part of it can be selected:
+            "snippet(resp.body, 'password', 200)": 200 characters around the first 'password', null if not found
+            "head(resp, 4096)": the first 4096 bytes
+            "headers(resp)": the start line and headers of "req" or "resp", without the body
         conditions (str): SQL-style conditions, e.g. "req.content_type='text/html' and  resp.status_code=200"
             conditions operator:
             = : means equal
@@ -48,9 +83,44 @@ def query_history(fields: list,conditions: str, limit: int = 20):
             < : means less than
             != : means not equal
             like: means contains, do not add '%' in like condition
+            regex (or ~): means contains a match of the Java regular expression, e.g. "resp.body regex 'eyJ[\\w-]+\\.eyJ'"
+                or "url ~ '/api/v\\d+/'". Literal text in the pattern makes it fast, use (?i) for any case.
             
             
         limit (int): the limit of the result.If not specified, 20 will be used.
+        cursor (str): the "cursor" returned by a previous call with the same fields, conditions and dedup.
+            Pass it to get the next page of results, it is null when there are no more results.
+            Requests returned on an earlier page are not repeated, traffic captured after the first page is left out.
+        dedup (str): which parts of a request make two results duplicates, only the newest one is returned.
+            "full" (default): method, url, query and body
+            "ignore_query_values": like "full", but only the names of the query parameters count
+            "ignore_body": method, url and query
+            "path": method and url without query
+            "none": return every matching request
+        explain (bool): return the query plan instead of the results: the indexes used, the order the
+            conditions run in, and their estimated cost and selectivity.
+        profile (bool): also return where the time of the query went (parse, plan, scan, dedup, project,
+            serialize), the rows scanned and matched, and the bytes returned.
+        count (bool): return the number of matching requests instead of the requests, per group with group_by.
+            Each result then has a "count" field.
+        group_by (list): fields to group the matching requests by, one result per group.
+            Every field in fields must also be in group_by, use it with count to get e.g. the number of 500s per host.
+        distinct (bool): return each distinct combination of the selected fields once, e.g. the endpoints seen.
+        order_by (str): sort the results before the limit is applied, e.g. "count desc" or "status_code desc, url".
+            With count or group_by only the grouped fields and "count" can be used.
+        Message contents (req, resp, req.body, resp.body, payload) can not be grouped, distinct or ordered by.
+        With count, group_by or distinct the conditions may be empty to cover the whole history,
+        the limit applies to the groups and cursor is not supported.
+        max_field_bytes (int): cut every returned field to this many bytes, the server caps it at its own limit.
+        max_response_bytes (int): stop after the result that reaches this many bytes, "cursor" then continues.
+            Cut fields or an early stop are reported in "truncated".
+        table (str): where to search:
+            "proxy" (default): the proxy HTTP history
+            "sitemap": the site map, with the same fields as proxy
+            "websocket": the proxy WebSocket messages, one result per message, with the fields
+                "host" and "url" of the WebSocket, "ws_id" (int), "direction" ('client_to_server' or
+                'server_to_client'), "payload", "len(payload)" (int, conditions only) and "time".
+                Messages are not deduplicated unless dedup is given.
 
     Example:
         query the url and request of Burp Suite history which:
@@ -60,18 +130,184 @@ def query_history(fields: list,conditions: str, limit: int = 20):
         4. limit 10
         
         query_history(["url", "req"], "req.content_type='application/json' and status_code=200 and req.body like 'password'", 10) 
+
+        count the 500 responses per host, most first:
+
+        query_history(["host"], "status_code=500", 10, count=True, group_by=["host"], order_by="count desc")
+
+        find WebSocket messages sent by the client containing a token:
+
+        query_history(["ws_id", "payload"], "direction='client_to_server' and payload like 'token'", table="websocket")
     """
 
-    (is_validate, error_msg) = check_input(fields, conditions, limit)
+    params = query_params(fields, conditions, limit, cursor, dedup, explain, profile, count, group_by, distinct,
+                          order_by, max_field_bytes, max_response_bytes, table)
+    if isinstance(params, str):
+        return params
+    return safe_post("query", params)
+
+
+
+@mcp.tool()
+def query_history_batch(queries: list):
+    """
+    Run several history queries at once, in one pass over the Burp Suite history.
+    Use it instead of calling query_history several times in a row, e.g. one query per vulnerability class.
+
+    Args:
+        queries (list): one dict per query with the arguments of query_history:
+            "fields" and "conditions" are required, "limit" (default 20), "cursor", "dedup", "count",
+            "group_by", "distinct", "order_by", "max_field_bytes", "max_response_bytes" and "table" are optional.
+            Every query keeps its own limit, dedup and fields, but all of them have to use the same table.
+
+    Returns one entry per query, in order, with its "data", its "cursor" and its "truncated" info.
+
+    Example:
+        query_history_batch([
+            {"fields": ["url"], "conditions": "resp.body like 'password'", "limit": 10},
+            {"fields": ["url", "status_code"], "conditions": "status_code=500"},
+            {"fields": ["host"], "conditions": "", "count": True, "group_by": ["host"], "order_by": "count desc"}
+        ])
+    """
+    batch = []
+    for i, query in enumerate(queries):
+        if not isinstance(query, dict) or "fields" not in query or "conditions" not in query:
+            return f"Query {i} needs fields and conditions"
+        params = query_params(query["fields"], query["conditions"], query.get("limit", 20), query.get("cursor"),
+                              query.get("dedup"), False, False, query.get("count", False), query.get("group_by"),
+                              query.get("distinct", False), query.get("order_by"), query.get("max_field_bytes"),
+                              query.get("max_response_bytes"), query.get("table", "proxy"))
+        if isinstance(params, str):
+            return f"Query {i}: {params}"
+        item = {"query": build_sql(params)}
+        for option, name in [("cursor", "cursor"), ("dedup", "dedup"), ("max_field_bytes", "maxFieldBytes"),
+                             ("max_response_bytes", "maxResponseBytes")]:
+            if params.get(option):
+                item[name] = str(params[option])
+        batch.append(item)
+
+    url = f"{burpsuite_server_url}/batch"
+    data = {"queries": base64.b64encode(json.dumps(batch).encode('utf-8')).decode('utf-8')}
+    try:
+        response = requests.post(url, data=data, timeout=30)
+        response.encoding = 'utf-8'
+        if response.ok:
+            return response.json()
+        else:
+            return [f"Error {response.status_code}: {response.text.strip()}"]
+    except Exception as e:
+        return [f"Request failed: {str(e)}"]
+
+
+@mcp.tool()
+def subscribe(fields: list, conditions: str, max_field_bytes: int = None):
+    """
+    Watch the traffic captured from now on for requests matching the conditions, instead of polling query_history.
+    Every request matching the conditions is buffered as soon as its response arrives.
+    Fetch the matches with poll_subscription and stop with unsubscribe.
+    A subscription nobody polls for 5 minutes is closed.
+
+    Args:
+        fields (list): fields of each match, the same as in query_history
+        conditions (str): SQL-style conditions, the same as in query_history, e.g. "status_code=500"
+        max_field_bytes (int): cut every returned field to this many bytes
+
+    Returns the "id" of the subscription.
+
+    Example:
+        subscribe(["url", "status_code"], "host='api.example.com' and status_code>499")
+    """
+    params = query_params(fields, conditions, 0, None, None, False, False, False, None, False, None,
+                          max_field_bytes, None)
+    if isinstance(params, str):
+        return params
+    data = {"query": encode(f"SELECT {params['fields']} FROM proxy WHERE {params['conditions']}")}
+    if max_field_bytes:
+        data["maxFieldBytes"] = encode(str(max_field_bytes))
+    return post_form("subscribe", data, 5)
+
+
+@mcp.tool()
+def poll_subscription(id: str, timeout_seconds: int = 20, max_results: int = 100):
+    """
+    Get the new matches of a subscription, waiting up to timeout_seconds for the first one.
+
+    Args:
+        id (str): the id returned by subscribe
+        timeout_seconds (int): how long to wait when there is no match yet, at most 30
+        max_results (int): the most matches to return, the rest stay for the next call
+
+    Returns the "matches", oldest first, each with the history "id" of the request, and "dropped":
+    the number of matches lost because they were not polled fast enough, use query_history to find them.
+    """
+    data = {"id": encode(id), "timeoutMs": encode(str(timeout_seconds * 1000)), "max": encode(str(max_results))}
+    return post_form("subscribe/poll", data, timeout_seconds + 5)
+
+
+@mcp.tool()
+def unsubscribe(id: str):
+    """
+    Stop a subscription
+
+    Args:
+        id (str): the id returned by subscribe
+    """
+    return post_form("unsubscribe", {"id": encode(id)}, 5)
+
+
+def encode(value: str) -> str:
+    return base64.b64encode(value.encode('utf-8')).decode('utf-8')
+
+
+def post_form(endpoint: str, data: dict, timeout: int):
+    url = f"{burpsuite_server_url}/{endpoint}"
+    try:
+        response = requests.post(url, data=data, timeout=timeout)
+        response.encoding = 'utf-8'
+        if response.ok:
+            return response.json()
+        else:
+            return [f"Error {response.status_code}: {response.text.strip()}"]
+    except Exception as e:
+        return [f"Request failed: {str(e)}"]
+
+
+def query_params(fields: list, conditions: str, limit: int, cursor: str, dedup: str, explain: bool, profile: bool,
+                 count: bool, group_by: list, distinct: bool, order_by: str, max_field_bytes: int,
+                 max_response_bytes: int, table: str = "proxy"):
+    """
+    Validate the arguments of a query, return the parameters to send or an error message
+    """
+    if table not in TABLES:
+        return f"Invalid table: {table}, use one of {', '.join(TABLES)}"
+    (is_validate, error_msg) = check_input(fields + (group_by or []), conditions, limit)
     if not is_validate:
         return error_msg
-    params = {
+    if order_by:
+        for key in order_by.split(","):
+            parts = key.split()
+            if not parts or len(parts) > 2 or (parts[0] != "count" and not is_field(parts[0])) \
+                    or (len(parts) == 2 and parts[1].lower() not in ("asc", "desc")):
+                return f"Invalid order_by: {order_by}"
+    aggregate = count or distinct or bool(group_by)
+    if not conditions.strip() and not aggregate:
+        return "Conditions are required unless count, group_by or distinct is used"
+    return {
         "fields": ",".join(fields),
         "conditions": conditions,
-        "limit": limit
+        "limit": limit,
+        "cursor": cursor,
+        "dedup": dedup,
+        "explain": explain,
+        "profile": profile,
+        "count": count,
+        "group_by": ",".join(group_by) if group_by else None,
+        "distinct": distinct,
+        "order_by": order_by,
+        "max_field_bytes": max_field_bytes,
+        "max_response_bytes": max_response_bytes,
+        "table": table
     }
-    return safe_post("query", params)
-
 
 
 def safe_get(endpoint: str, params: dict = None) -> list:
@@ -93,11 +329,40 @@ def safe_get(endpoint: str, params: dict = None) -> list:
         return [f"Request failed: {str(e)}"]
 
 
+def build_sql(params: dict) -> str:
+    select = params['fields']
+    if params.get("count"):
+        select = f"{select}, COUNT(*)" if select else "COUNT(*)"
+    if params.get("distinct"):
+        select = "DISTINCT " + select
+    data = f"SELECT {select} FROM {params.get('table') or 'proxy'}"
+    if params['conditions'].strip():
+        data += f" WHERE {params['conditions']}"
+    if params.get("group_by"):
+        data += f" GROUP BY {params['group_by']}"
+    if params.get("order_by"):
+        data += f" ORDER BY {params['order_by']}"
+    data += f" LIMIT {params['limit']}"
+    if params.get("explain"):
+        data = "EXPLAIN " + data
+    return data
+
+
 def safe_post(endpoint: str, params: dict) -> list:
     url = f"{burpsuite_server_url}/{endpoint}"
 
-    data = f"SELECT {params['fields']} FROM proxy WHERE {params['conditions']} LIMIT {params['limit']}"
+    data = build_sql(params)
     base64_data = {"query": base64.b64encode(data.encode('utf-8')).decode('utf-8')}
+    if params.get("cursor"):
+        base64_data["cursor"] = base64.b64encode(params["cursor"].encode('utf-8')).decode('utf-8')
+    if params.get("profile"):
+        base64_data["profile"] = base64.b64encode(b"true").decode('utf-8')
+    if params.get("dedup"):
+        base64_data["dedup"] = base64.b64encode(params["dedup"].encode('utf-8')).decode('utf-8')
+    if params.get("max_field_bytes"):
+        base64_data["maxFieldBytes"] = base64.b64encode(str(params["max_field_bytes"]).encode('utf-8')).decode('utf-8')
+    if params.get("max_response_bytes"):
+        base64_data["maxResponseBytes"] = base64.b64encode(str(params["max_response_bytes"]).encode('utf-8')).decode('utf-8')
     try:
         response = requests.post(url, data=base64_data, timeout=5)
         response.encoding = 'utf-8'
@@ -114,7 +379,7 @@ def check_input(fields: list, conditions: str, limit: int = 20) -> (bool, str):
     Validate the input parameters.
     1. Both fields and conditions input can not contain SQL keywords: SELECT, FROM, WHERE, LIMIT
     2. For fields, only allowed fields are: ALLOWED_FIELDS
-    3. For conditions, only allowed operators are: =, >, <, like, !=
+    3. For conditions, only allowed operators are: =, >, <, like, !=, regex, ~
     4. limit must be a positive integer
 
     return True if validate, False and error message if not
@@ -132,7 +397,7 @@ def check_input(fields: list, conditions: str, limit: int = 20) -> (bool, str):
             return (False, f"Invalid condition: {conditions}")
 
     for field in fields:
-        if field.strip() not in ALLOWED_FIELDS:
+        if not is_field(field.strip()) and not is_projection(field.strip()):
             return (False, f"Invalid field: {field}")
 
     # check operators in Burp suite extension
@@ -143,5 +408,17 @@ def check_input(fields: list, conditions: str, limit: int = 20) -> (bool, str):
     return (True, "")
     
 
+def is_field(field: str) -> bool:
+    return field in ALLOWED_FIELDS or STRUCTURED_FIELD.match(field) is not None
+
+
+def is_projection(field: str) -> bool:
+    for pattern in PROJECTIONS:
+        match = pattern.match(field)
+        if match and match.group(1) in ALLOWED_FIELDS:
+            return True
+    return False
+
+
 if __name__ == "__main__":
     mcp.run()
\ No newline at end of file
@@ -0,0 +1,59 @@
+"""
+Fire many concurrent /query calls at the Burp Suite extension and report latency percentiles.
+
+usage: uv run scripts/load_test.py --requests 200 --concurrency 16 \
+           --query "SELECT url FROM proxy WHERE resp.body like 'password' LIMIT 20"
+"""
+import argparse
+import base64
+import time
+from collections import Counter
+from concurrent.futures import ThreadPoolExecutor
+
+import requests
+
+burpsuite_server_url = "http://localhost:8889"
+
+
+def run_query(query: str, timeout: float) -> (float, str):
+    data = {"query": base64.b64encode(query.encode('utf-8')).decode('utf-8')}
+    start = time.perf_counter()
+    try:
+        response = requests.post(f"{burpsuite_server_url}/query", data=data, timeout=timeout)
+        outcome = str(response.json().get("code")) if response.ok else f"http {response.status_code}"
+    except Exception as e:
+        outcome = type(e).__name__
+    return time.perf_counter() - start, outcome
+
+
+def percentile(values: list, p: float) -> float:
+    if not values:
+        return 0.0
+    index = min(len(values) - 1, int(round(p / 100 * (len(values) - 1))))
+    return values[index]
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Concurrent /query load test")
+    parser.add_argument("--requests", type=int, default=200)
+    parser.add_argument("--concurrency", type=int, default=16)
+    parser.add_argument("--timeout", type=float, default=60)
+    parser.add_argument("--query", default="SELECT url FROM proxy WHERE status_code=200 LIMIT 20")
+    args = parser.parse_args()
+
+    start = time.perf_counter()
+    with ThreadPoolExecutor(max_workers=args.concurrency) as pool:
+        results = list(pool.map(lambda _: run_query(args.query, args.timeout), range(args.requests)))
+    elapsed = time.perf_counter() - start
+
+    latencies = sorted(latency * 1000 for latency, _ in results)
+    outcomes = Counter(outcome for _, outcome in results)
+    print(f"requests: {args.requests}, concurrency: {args.concurrency}, wall time: {elapsed:.2f}s, "
+          f"throughput: {args.requests / elapsed:.1f} req/s")
+    print("outcomes: " + ", ".join(f"{code}={count}" for code, count in sorted(outcomes.items())))
+    for p in (50, 90, 95, 99, 100):
+        print(f"p{p}: {percentile(latencies, p):.1f} ms")
+
+
+if __name__ == "__main__":
+    main()